@@ -0,0 +1,117 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.NumberFormatException;
+import java.lang.System;
+
+// settings that can be changed without a new jar, one "app_config" object per setting (name, value)
+// they are read at most every CACHE_TTL_MILLIS, a setting that is not set has its default value
+public class AppConfig {
+
+	public static final long CACHE_TTL_MILLIS = 60L * 1000L;
+
+	private static final AppConfig INSTANCE = new AppConfig();
+
+	public static AppConfig getInstance() {
+		return INSTANCE;
+	}
+
+	// name -> value (null until the first read)
+	private Map<String, String> values = null;
+	private long readDate = 0L;
+
+	private AppConfig() {
+	}
+
+	public String getString(DataService dataService, String name, String defaultValue) throws InvalidSchemaException, DatastoreException {
+		String value = read(dataService).get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBoolean(DataService dataService, String name, boolean defaultValue) throws InvalidSchemaException, DatastoreException {
+		String value = read(dataService).get(name);
+		return value == null ? defaultValue : value.trim().equalsIgnoreCase("true");
+	}
+
+	// a value that is not a number has the default value
+	public long getLong(DataService dataService, String name, long defaultValue) throws InvalidSchemaException, DatastoreException {
+		String value = read(dataService).get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	// comma separated values (without blanks)
+	public List<String> getList(DataService dataService, String name) throws InvalidSchemaException, DatastoreException {
+		List<String> list = new ArrayList<String>();
+		String value = read(dataService).get(name);
+		if (value != null) {
+			String[] items = value.split(",");
+			for (int i = 0; i < items.length; i++) {
+				if (!items[i].trim().isEmpty()) {
+					list.add(items[i].trim());
+				}
+			}
+		}
+		return list;
+	}
+
+	// the settings, read again if they are older than CACHE_TTL_MILLIS (the old ones are kept if they can't be read)
+	private synchronized Map<String, String> read(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		long currentTime = System.currentTimeMillis();
+		if (values != null && currentTime - readDate < CACHE_TTL_MILLIS) {
+			return values;
+		}
+		List<String> fields = new ArrayList<String>();
+		fields.add("name");
+		fields.add("value");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> settings = dataService.readObjects("app_config", new ArrayList<SMCondition>(), 0, filter);
+		if (settings != null) {
+			Map<String, String> newValues = new HashMap<String, String>();
+			for (int i = 0; i < settings.size(); i++) {
+				SMObject setting = settings.get(i);
+				SMValue value = setting.getValue().get("value");
+				if (value != null) {
+					newValues.put(((SMString)setting.getValue().get("name")).getValue(), ((SMString)value).getValue());
+				}
+			}
+			values = newValues;
+		} else if (values == null) {
+			values = new HashMap<String, String>();
+		}
+		readDate = currentTime;
+		return values;
+	}
+}
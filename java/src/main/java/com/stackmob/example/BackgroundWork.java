@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.LoggerService;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.String;
+import java.lang.System;
+
+// work left over by requests (queued removals & writes, expiry sweeps, index rebuilds) is run in small slices by the worker:
+// a scheduler calls run_background_work (RunBackgroundWork), which runs slices for up to WORK_BUDGET_MILLIS with its service provider,
+// so no user request waits for it and no work keeps the provider of a finished request; a task is only run by one call at a time
+// (tasks of process-local indexes are only run in the processes the worker calls reach, the other processes read the datastore instead)
+public class BackgroundWork {
+
+	// time a worker call spends on background work
+	public static final long WORK_BUDGET_MILLIS = 20L * 1000L;
+	// a task that failed is not run again for this long
+	public static final long FAILURE_BACKOFF_MILLIS = 60L * 1000L;
+
+	private static final BackgroundWork INSTANCE = new BackgroundWork();
+
+	public static BackgroundWork getInstance() {
+		return INSTANCE;
+	}
+
+	private final CopyOnWriteArrayList<Task> tasks = new CopyOnWriteArrayList<Task>();
+	// the task the next request starts with, so that a slow task does not starve the others
+	private final AtomicInteger nextTask = new AtomicInteger();
+
+	private BackgroundWork() {
+	}
+
+	// one kind of background work, its slices must be short (e.g. one datastore batch)
+	public static abstract class Task {
+		private final AtomicBoolean running = new AtomicBoolean(false);
+		private volatile long retryDate = 0L;
+
+		// check if the task has work to do at the given time
+		protected abstract boolean isDue(long now);
+
+		// do one slice of the work
+		protected abstract void runSlice(SDKServiceProvider serviceProvider) throws Exception;
+	}
+
+	public void register(Task task) {
+		tasks.addIfAbsent(task);
+	}
+
+	// run slices of the due tasks until they are done or the budget is spent, return the number of slices run
+	public int runDue(SDKServiceProvider serviceProvider) {
+		long deadline = System.currentTimeMillis() + WORK_BUDGET_MILLIS;
+		int sliceCount = 0;
+		int taskCount = tasks.size();
+		if (taskCount == 0) {
+			return sliceCount;
+		}
+		int first = (nextTask.getAndIncrement() & Integer.MAX_VALUE) % taskCount;
+		boolean ranSlice = true;
+		while (ranSlice) {
+			ranSlice = false;
+			for (int i = 0; i < taskCount; i++) {
+				long now = System.currentTimeMillis();
+				if (now >= deadline) {
+					return sliceCount;
+				}
+				Task task = tasks.get((first + i) % taskCount);
+				if (now < task.retryDate || !task.isDue(now) || !task.running.compareAndSet(false, true)) {
+					continue;
+				}
+				try {
+					task.runSlice(serviceProvider);
+					ranSlice = true;
+					sliceCount++;
+				} catch (Exception e) {
+					task.retryDate = System.currentTimeMillis() + FAILURE_BACKOFF_MILLIS;
+					LoggerService logger = serviceProvider.getLoggerService(task.getClass());
+					logger.error("background work failed: " + task.getClass().getSimpleName(), e);
+				} finally {
+					task.running.set(false);
+				}
+			}
+		}
+		return sliceCount;
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.lang.String;
+
+// counters of the events for a user by type, kept on the user object (badge_count_<type>)
+// they are changed wherever events are created or removed, the user is the one the event is for
+public class BadgeCounts {
+
+	// event types are 1 to MAX_EVENT_TYPE
+	public static final int MAX_EVENT_TYPE = 5;
+
+	public static String fieldName(long type) {
+		return "badge_count_" + type;
+	}
+
+	// number of events by type (index = type)
+	public static long[] countTypes(List<SMObject> events) {
+		long[] counts = new long[MAX_EVENT_TYPE + 1];
+		for (int i = 0; i < events.size(); i++) {
+			long type = ((SMInt)events.get(i).getValue().get("type")).getValue().longValue();
+			if (type > 0 && type <= MAX_EVENT_TYPE) {
+				counts[(int)type]++;
+			}
+		}
+		return counts;
+	}
+
+	// change one counter of the user (no user for invites)
+	public static void add(DataService dataService, String username, long type, long delta) throws InvalidSchemaException, DatastoreException {
+		long[] deltas = new long[MAX_EVENT_TYPE + 1];
+		deltas[(int)type] = delta;
+		apply(dataService, username, deltas);
+	}
+
+	// counter changes for removing the events (index = type)
+	public static long[] countRemoved(List<SMObject> events) {
+		long[] deltas = countTypes(events);
+		for (int type = 1; type <= MAX_EVENT_TYPE; type++) {
+			deltas[type] = -deltas[type];
+		}
+		return deltas;
+	}
+
+	// subtract the removed events from the user's counters
+	public static void subtract(DataService dataService, String username, List<SMObject> events) throws InvalidSchemaException, DatastoreException {
+		apply(dataService, username, countRemoved(events));
+	}
+
+	// change the user's counters in one update
+	public static void apply(DataService dataService, String username, long[] deltas) throws InvalidSchemaException, DatastoreException {
+		if (username == null) {
+			return;
+		}
+		List<SMUpdate> userUpdates = new ArrayList<SMUpdate>();
+		addIncrements(userUpdates, deltas);
+		if (userUpdates.size() > 0) {
+			dataService.updateObject("user", new SMString(username), userUpdates);
+		}
+	}
+
+	// add increments of the counters to an update of the user
+	public static void addIncrements(List<SMUpdate> userUpdates, long[] deltas) {
+		for (int type = 1; type <= MAX_EVENT_TYPE; type++) {
+			if (deltas[type] != 0) {
+				userUpdates.add(new SMIncrement(fieldName(type), deltas[type]));
+			}
+		}
+	}
+
+	// add settings of every counter to an update of the user
+	public static void addSets(List<SMUpdate> userUpdates, long[] counts) {
+		for (int type = 1; type <= MAX_EVENT_TYPE; type++) {
+			userUpdates.add(new SMSet(fieldName(type), new SMInt(counts[type])));
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.lang.String;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// initializes many users at once (for migrations), only for the admins listed in the ADMIN_USERNAMES_SETTING config
+// the users are initialized by an "initialize" import job: the request returns the job id, the job is run by the worker
+// (ImportJobs.CHUNK_SIZE users at a time) & its progress and throughput returned by polling get_import_job
+public class BulkInitializeUsers implements CustomCodeMethod {
+
+	// comma-separated usernames allowed to call this method
+	public static final String ADMIN_USERNAMES_SETTING = "admin_usernames";
+	// maximum number of usernames in one request
+	public static final int MAX_USERS = ImportJobs.MAX_USERNAMES;
+	// number of users of a chunk initialized at once (each one also runs its writes on ParallelWrites)
+	public static final int POOL_SIZE = 4;
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "bulk-initialize-users");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	@Override
+	public String getMethodName() {
+		return "bulk_initialize_users";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("usernames");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow POST method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("post")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+
+		// get the usernames to be initialized (without duplicates)
+		List<SMString> reqIds = new ArrayList<SMString>();
+		if (!request.getBody().isEmpty()) {
+			try {
+				JSONObject jsonObj = new JSONObject(request.getBody());
+				if (!jsonObj.isNull("usernames")) {
+					JSONArray usernameArray = jsonObj.getJSONArray("usernames");
+					LinkedHashSet<String> usernames = new LinkedHashSet<String>();
+					for (int i = 0; i < usernameArray.length(); i++) {
+						usernames.add(usernameArray.getString(i));
+					}
+					for (String reqUsername : usernames) {
+						reqIds.add(new SMString(reqUsername));
+					}
+				}
+			} catch (JSONException e) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "invalid request body");
+				return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+			}
+		}
+		if (reqIds.size() == 0) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "usernames parameter not found");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		} else if (reqIds.size() > MAX_USERS) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// only allow the admins
+			if (!AppConfig.getInstance().getList(dataService, ADMIN_USERNAMES_SETTING).contains(username)) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "user is not an admin");
+				return new ResponseToProcess(HttpURLConnection.HTTP_FORBIDDEN, errParams); // http 403 - forbidden
+			}
+
+			// save an initialize job, it's run by the worker & its chunk results are returned by polling get_import_job
+			SMObject jobObject = ImportJobs.getInstance().start(dataService, username, ImportJobs.KIND_INITIALIZE, reqIds);
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("job_id", (SMString)jobObject.getValue().get("import_job_id"));
+			returnMap.put("chunk_count", (SMInt)jobObject.getValue().get("chunk_count"));
+			returnMap.put("status", (SMString)jobObject.getValue().get("status"));
+			return new ResponseToProcess(HttpURLConnection.HTTP_ACCEPTED, returnMap); // http 202 - accepted
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// initialize a chunk's users not initialized yet on the pool, return the chunk's result (initialized, skipped & errors by username)
+	static JSONObject initializeChunk(final DataService dataService, List<SMString> chunkIds) throws InvalidSchemaException, DatastoreException, InterruptedException, JSONException {
+		// 1. fetch the chunk's user objects
+		// - build query
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMIn("username", chunkIds));
+		// - build result filter
+		List<String> userFields = new ArrayList<String>();
+		userFields.add("username");
+		userFields.add("groups");
+		userFields.add("group_order");
+		ResultFilters userFilter = new ResultFilters(0, -1, null, userFields);
+		// - execute query
+		List<SMObject> users = dataService.readObjects("user", userQuery, 0, userFilter);
+		// (the chunk is tried again)
+		if (users == null) {
+			throw new IllegalStateException("invalid user fetch: null fetch result");
+		}
+
+		// 2. initialize the users not initialized yet in the background
+		JSONArray skipped = new JSONArray();
+		JSONObject errors = new JSONObject();
+		Map<String, SMObject> userObjects = new HashMap<String, SMObject>();
+		for (int i = 0; i < users.size(); i++) {
+			userObjects.put(((SMString)users.get(i).getValue().get("username")).getValue(), users.get(i));
+		}
+		List<String> pendingUsernames = new ArrayList<String>();
+		List<Future<Map<String, Object>>> pending = new ArrayList<Future<Map<String, Object>>>();
+		for (int i = 0; i < chunkIds.size(); i++) {
+			final String chunkUsername = chunkIds.get(i).getValue();
+			SMObject userObject = userObjects.get(chunkUsername);
+			if (userObject == null) {
+				errors.put(chunkUsername, "user not found");
+				continue;
+			}
+			if (InitializeUser.isInitialized(userObject)) {
+				skipped.put(chunkUsername);
+				continue;
+			}
+			// (a user partly initialized by an earlier run is initialized again with its groups)
+			final List<SMString> linkedGroupIds = InitializeUser.getGroupIds(userObject);
+			pendingUsernames.add(chunkUsername);
+			pending.add(EXECUTOR.submit(new Callable<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> call() throws Exception {
+					return InitializeUser.initialize(dataService, chunkUsername, linkedGroupIds);
+				}
+			}));
+		}
+
+		// 3. wait for the initializations
+		JSONArray initialized = new JSONArray();
+		for (int i = 0; i < pending.size(); i++) {
+			String pendingUsername = pendingUsernames.get(i);
+			try {
+				if (pending.get(i).get() == null) {
+					errors.put(pendingUsername, "invalid relationship or group fetch");
+				} else {
+					initialized.put(pendingUsername);
+				}
+			} catch (ExecutionException e) {
+				errors.put(pendingUsername, e.getCause().toString());
+			}
+		}
+
+		JSONObject chunkJson = new JSONObject();
+		chunkJson.put("initialized", initialized);
+		chunkJson.put("skipped", skipped);
+		chunkJson.put("errors", errors);
+		return chunkJson;
+	}
+}
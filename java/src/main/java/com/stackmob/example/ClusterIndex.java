@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.System;
+
+// clusters of users who are together, from "joining:<relId>" actions and joins ("joined:<relId>")
+// each user has at most one link (to the friend of the current joining/joined action), it ends when the user's action changes
+// new links are unioned right away, ended links only split clusters when the union-find is rebuilt from the remaining links
+// links are saved in the user's cluster_link (the friend's username, "" for none), a known link is read again after REFRESH_INTERVAL_MILLIS
+public class ClusterIndex {
+
+	// minimum time between rebuilds after links ended
+	public static final long REBUILD_INTERVAL_MILLIS = 10000L;
+	// known links are read again after this long
+	public static final long REFRESH_INTERVAL_MILLIS = 60L * 1000L;
+
+	// (the current social graph index's)
+	public static ClusterIndex getInstance() {
+		return SocialGraphIndex.getInstance().getClusterIndex();
+	}
+
+	private final SocialGraphIndex graph;
+
+	// user -> linked friend (user ints of the social graph index)
+	private final Map<Integer, Integer> links = new HashMap<Integer, Integer>();
+	// user -> when the link was changed in this process or read
+	private final Map<Integer, Long> linkDates = new HashMap<Integer, Long>();
+	// union-find over user ints
+	private int[] parents = new int[0];
+	private int[] ranks = new int[0];
+	private boolean stale = false;
+	private long rebuildDate = 0L;
+
+	ClusterIndex(SocialGraphIndex graph) {
+		this.graph = graph;
+	}
+
+	// set the user's link to the friend (or end it if friend is null)
+	public void setLink(String username, String friend) {
+		int user = graph.addUser(username);
+		int other = friend == null ? -1 : graph.addUser(friend);
+		synchronized (this) {
+			putLink(user, other, System.currentTimeMillis());
+		}
+	}
+
+	// set a link read from the datastore by a read started at readDate (a change recorded since is newer)
+	public void load(String username, String friend, long readDate) {
+		int user = graph.addUser(username);
+		int other = friend == null ? -1 : graph.addUser(friend);
+		synchronized (this) {
+			Long linkDate = linkDates.get(Integer.valueOf(user));
+			if (linkDate == null || linkDate.longValue() < readDate) {
+				putLink(user, other, readDate);
+			}
+		}
+	}
+
+	// true if the user's link was changed or read less than REFRESH_INTERVAL_MILLIS ago
+	public synchronized boolean isKnown(int user, long now) {
+		Long linkDate = linkDates.get(Integer.valueOf(user));
+		return linkDate != null && now - linkDate.longValue() < REFRESH_INTERVAL_MILLIS;
+	}
+
+	// cluster root of each user (users alone are their own root)
+	public synchronized int[] getRoots(int[] users) {
+		if (stale && System.currentTimeMillis() - rebuildDate >= REBUILD_INTERVAL_MILLIS) {
+			rebuild();
+		}
+		int[] roots = new int[users.length];
+		for (int i = 0; i < users.length; i++) {
+			roots[i] = users[i] < parents.length ? find(users[i]) : users[i];
+		}
+		return roots;
+	}
+
+	private void putLink(int user, int other, long linkDate) {
+		linkDates.put(Integer.valueOf(user), Long.valueOf(linkDate));
+		Integer oldOther = other < 0 ? links.remove(Integer.valueOf(user)) : links.put(Integer.valueOf(user), Integer.valueOf(other));
+		if (oldOther != null && oldOther.intValue() != other) {
+			stale = true;
+		}
+		if (other >= 0) {
+			union(user, other);
+		}
+	}
+
+	private void rebuild() {
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+			ranks[i] = 0;
+		}
+		for (Map.Entry<Integer, Integer> link : links.entrySet()) {
+			union(link.getKey().intValue(), link.getValue().intValue());
+		}
+		stale = false;
+		rebuildDate = System.currentTimeMillis();
+	}
+
+	private int find(int user) {
+		int root = user;
+		while (parents[root] != root) {
+			root = parents[root];
+		}
+		// path compression
+		while (parents[user] != root) {
+			int next = parents[user];
+			parents[user] = root;
+			user = next;
+		}
+		return root;
+	}
+
+	private void union(int a, int b) {
+		grow(Math.max(a, b) + 1);
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA == rootB) {
+			return;
+		}
+		if (ranks[rootA] < ranks[rootB]) {
+			parents[rootA] = rootB;
+		} else if (ranks[rootA] > ranks[rootB]) {
+			parents[rootB] = rootA;
+		} else {
+			parents[rootB] = rootA;
+			ranks[rootA]++;
+		}
+	}
+
+	private void grow(int size) {
+		if (size <= parents.length) {
+			return;
+		}
+		int oldSize = parents.length;
+		int newSize = Math.max(size, oldSize * 2);
+		parents = Arrays.copyOf(parents, newSize);
+		ranks = Arrays.copyOf(ranks, newSize);
+		for (int i = oldSize; i < newSize; i++) {
+			parents[i] = i;
+		}
+	}
+}
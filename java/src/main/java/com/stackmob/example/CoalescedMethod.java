@@ -0,0 +1,149 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.LoggerService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.lang.String;
+
+// wraps a read-only method so that concurrent identical requests (same user and parameters)
+// share one execution and its response
+public class CoalescedMethod implements CustomCodeMethod {
+
+	// how long a request waits for an identical in-flight request before running on its own
+	public static final long WAIT_TIMEOUT_MILLIS = 10L * 1000L;
+
+	private final CustomCodeMethod method;
+	private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+	// metrics
+	private final AtomicLong executedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	public CoalescedMethod(CustomCodeMethod method) {
+		this.method = method;
+	}
+
+	@Override
+	public String getMethodName() {
+		return method.getMethodName();
+	}
+
+	@Override
+	public List<String> getParams() {
+		return method.getParams();
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			return method.execute(request, serviceProvider);
+		}
+		String key = getKey(username, request);
+
+		Call call = new Call();
+		Call inFlight = calls.putIfAbsent(key, call);
+		// share the response of the identical in-flight request
+		if (inFlight != null) {
+			ResponseToProcess response = null;
+			try {
+				response = inFlight.await(WAIT_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (response != null) {
+				long coalesced = coalescedCount.incrementAndGet();
+				LoggerService logger = serviceProvider.getLoggerService(CoalescedMethod.class);
+				logger.debug(getMethodName() + ": coalesced request (" + coalesced + " coalesced, " + executedCount.get() + " executed)");
+				return response;
+			}
+			// the in-flight request is too slow (or failed), run this one on its own
+			timeoutCount.incrementAndGet();
+			executedCount.incrementAndGet();
+			return method.execute(request, serviceProvider);
+		}
+
+		ResponseToProcess response = null;
+		try {
+			executedCount.incrementAndGet();
+			response = method.execute(request, serviceProvider);
+			return response;
+		} finally {
+			// stop accepting followers before handing out the response
+			calls.remove(key, call);
+			call.complete(response);
+		}
+	}
+
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	// identical requests have the same user, verb and parameters
+	private static String getKey(String username, ProcessedAPIRequest request) {
+		StringBuilder key = new StringBuilder();
+		key.append(username).append('/').append(request.getVerb().toString());
+		if (request.getParams() != null) {
+			// sort parameters so that their order does not matter
+			List<String> names = new ArrayList<String>(request.getParams().keySet());
+			Collections.sort(names);
+			for (int i = 0; i < names.size(); i++) {
+				String name = names.get(i);
+				key.append('/').append(name).append('=').append(request.getParams().get(name));
+			}
+		}
+		return key.toString();
+	}
+
+	// one in-flight execution
+	private static class Call {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile ResponseToProcess response = null;
+
+		void complete(ResponseToProcess response) {
+			this.response = response;
+			done.countDown();
+		}
+
+		ResponseToProcess await(long timeoutMillis) throws InterruptedException {
+			if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return null;
+			}
+			return response;
+		}
+	}
+}
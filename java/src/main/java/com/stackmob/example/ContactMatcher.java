@@ -0,0 +1,291 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.lang.String;
+import java.lang.System;
+
+// matches contacts (usernames/emails) against the existing usernames before they are read from the datastore
+// the usernames are kept as a sorted array of 64-bit hashes with the username filter (a bloom filter) in front of it:
+// contacts that miss the filter or the sorted-merge join with the index are not users as far as the index knows
+// the index & filter are rebuilt as background work (a page per slice, paged by username) every REBUILD_INTERVAL_MILLIS,
+// users created since are read before each match; as users saved late may still be missing, the misses are read again
+// (usernames only, see findMissed) before they become invites
+public class ContactMatcher extends BackgroundWork.Task {
+
+	public static final long REBUILD_INTERVAL_MILLIS = 60L * 60L * 1000L;
+	// users are read this many at a time when the index is rebuilt
+	public static final int LOAD_PAGE_SIZE = 1000;
+	// users created this long before the watermark are read again by each match (in case of clock differences & late writes)
+	public static final long WATERMARK_SLACK_MILLIS = 60L * 1000L;
+
+	private static final ContactMatcher INSTANCE = new ContactMatcher(UsernameFilter.getInstance());
+
+	public static ContactMatcher getInstance() {
+		return INSTANCE;
+	}
+
+	private final UsernameFilter usernameFilter;
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	// hashes of the users at the last rebuild (sorted) & of the users created since (sorted, merged at the next rebuild)
+	private long[] hashes = null;
+	private long[] recentHashes = new long[0];
+	// users created at or after this date (less WATERMARK_SLACK_MILLIS) are not in the index yet
+	private long watermark = 0L;
+	// rebuild in progress (only used by the running slice): hashes read so far, last username read (null before the first page)
+	private long[] rebuildHashes = null;
+	private int rebuildCount = 0;
+	private String rebuildAfter = null;
+	private long rebuildDate = 0L;
+	private volatile long nextRebuildDate = 0L;
+
+	ContactMatcher(UsernameFilter usernameFilter) {
+		this.usernameFilter = usernameFilter;
+	}
+
+	// the contacts that may be users (in order), or all of them if the index is not built yet
+	public List<SMString> match(DataService dataService, List<SMString> contacts) throws InvalidSchemaException, DatastoreException {
+		start();
+		synchronized (this) {
+			if (hashes == null) {
+				return new ArrayList<SMString>(contacts);
+			}
+		}
+		if (!readRecent(dataService)) {
+			return new ArrayList<SMString>(contacts);
+		}
+		return match(contacts);
+	}
+
+	// the contacts missed by a match that are users after all (in order), null if they can't be read
+	// the users found are added to the index, so the next matches don't miss them
+	public List<SMString> findMissed(DataService dataService, List<SMString> contacts, List<SMString> matches) throws InvalidSchemaException, DatastoreException {
+		List<SMString> missedIds = new ArrayList<SMString>(contacts);
+		missedIds.removeAll(matches);
+		if (missedIds.size() == 0) {
+			return missedIds;
+		}
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMIn("username", missedIds));
+		List<String> fields = new ArrayList<String>();
+		fields.add("username");
+		List<SMObject> users = dataService.readObjects("user", userQuery, 0, new ResultFilters(0, -1, null, fields));
+		if (users == null) {
+			return null;
+		}
+		List<String> usernames = new ArrayList<String>();
+		for (int i = 0; i < users.size(); i++) {
+			usernames.add(((SMString)users.get(i).getValue().get("username")).getValue());
+		}
+		addUsers(usernames);
+		usernameFilter.addMissedUsers(usernames.size());
+		List<SMString> found = new ArrayList<SMString>();
+		for (int i = 0; i < missedIds.size(); i++) {
+			if (usernames.contains(missedIds.get(i).getValue())) {
+				found.add(missedIds.get(i));
+			}
+		}
+		return found;
+	}
+
+	// the contacts in the index (in order), or all of them if it is not built yet
+	List<SMString> match(List<SMString> contacts) {
+		synchronized (this) {
+			if (hashes == null) {
+				return new ArrayList<SMString>(contacts);
+			}
+		}
+
+		// 1. bloom filter pre-check
+		long[] contactHashes = new long[contacts.size()];
+		long[] candidates = new long[contacts.size()];
+		int candidateCount = 0;
+		for (int i = 0; i < contacts.size(); i++) {
+			contactHashes[i] = UsernameFilter.hash(contacts.get(i).getValue());
+			if (usernameFilter.mightContain(contactHashes[i])) {
+				candidates[candidateCount++] = contactHashes[i];
+			}
+		}
+
+		// 2. sorted-merge join of the candidates with the index
+		Arrays.sort(candidates, 0, candidateCount);
+		long[] matched = new long[candidateCount];
+		int matchedCount = 0;
+		synchronized (this) {
+			int j = 0;
+			for (int i = 0; i < candidateCount; i++) {
+				long candidate = candidates[i];
+				while (j < hashes.length && hashes[j] < candidate) {
+					j++;
+				}
+				if ((j < hashes.length && hashes[j] == candidate) || Arrays.binarySearch(recentHashes, candidate) >= 0) {
+					matched[matchedCount++] = candidate;
+				}
+			}
+		}
+
+		// (the index has the users the filter has, the candidates it doesn't have are the filter's false positives)
+		usernameFilter.addFalsePositives(candidateCount - matchedCount);
+
+		List<SMString> matches = new ArrayList<SMString>();
+		for (int i = 0; i < contacts.size(); i++) {
+			if (Arrays.binarySearch(matched, 0, matchedCount, contactHashes[i]) >= 0) {
+				matches.add(contacts.get(i));
+			}
+		}
+		return matches;
+	}
+
+	// build the index as background work, now and then every REBUILD_INTERVAL_MILLIS
+	private void start() {
+		if (started.compareAndSet(false, true)) {
+			BackgroundWork.getInstance().register(this);
+		}
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextRebuildDate;
+	}
+
+	// read the next page of usernames into the new index, and replace the index after the last page
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws InvalidSchemaException, DatastoreException {
+		if (rebuildHashes == null) {
+			rebuildDate = System.currentTimeMillis();
+			rebuildHashes = new long[LOAD_PAGE_SIZE];
+			rebuildCount = 0;
+			rebuildAfter = null;
+		}
+		// (paged by username rather than offset, so users created or deleted meanwhile don't shift the pages)
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		if (rebuildAfter != null) {
+			userQuery.add(new SMGreater("username", new SMString(rebuildAfter)));
+		}
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("username", OrderingDirection.ASCENDING));
+		List<String> fields = new ArrayList<String>();
+		fields.add("username");
+		ResultFilters filter = new ResultFilters(0, LOAD_PAGE_SIZE - 1, orderings, fields);
+		List<SMObject> users = serviceProvider.getDataService().readObjects("user", userQuery, 0, filter);
+		// keep the old index (or none) and read the page again later
+		if (users == null) {
+			LoggerService logger = serviceProvider.getLoggerService(ContactMatcher.class);
+			logger.warn("contact matcher: users after " + (rebuildAfter == null ? "the start" : rebuildAfter) + " can't be read, retrying");
+			nextRebuildDate = System.currentTimeMillis() + BackgroundWork.FAILURE_BACKOFF_MILLIS;
+			return;
+		}
+		for (int i = 0; i < users.size(); i++) {
+			if (rebuildCount == rebuildHashes.length) {
+				rebuildHashes = Arrays.copyOf(rebuildHashes, rebuildCount * 2);
+			}
+			rebuildAfter = ((SMString)users.get(i).getValue().get("username")).getValue();
+			rebuildHashes[rebuildCount++] = UsernameFilter.hash(rebuildAfter);
+		}
+		if (users.size() < LOAD_PAGE_SIZE) {
+			long[] newHashes = Arrays.copyOf(rebuildHashes, rebuildCount);
+			Arrays.sort(newHashes);
+			replace(newHashes, rebuildDate);
+			rebuildHashes = null;
+			nextRebuildDate = rebuildDate + REBUILD_INTERVAL_MILLIS;
+		}
+	}
+
+	// replace the index with the username hashes (sorted) of a rebuild started at buildDate
+	synchronized void replace(long[] newHashes, long buildDate) {
+		// users created during the rebuild are read again by the next match, the ones read already are kept meanwhile
+		long[] newRecent = new long[recentHashes.length];
+		int recentCount = 0;
+		for (int i = 0; i < recentHashes.length; i++) {
+			if (Arrays.binarySearch(newHashes, recentHashes[i]) < 0) {
+				newRecent[recentCount++] = recentHashes[i];
+			}
+		}
+		hashes = newHashes;
+		recentHashes = Arrays.copyOf(newRecent, recentCount);
+		long[] filterHashes = Arrays.copyOf(newHashes, newHashes.length + recentCount);
+		System.arraycopy(newRecent, 0, filterHashes, newHashes.length, recentCount);
+		usernameFilter.rebuild(filterHashes);
+		watermark = buildDate;
+	}
+
+	// add the users created since the watermark, less WATERMARK_SLACK_MILLIS (false if they can't be read)
+	// (the watermark only moves to the latest date read, the slack keeps users saved late with an earlier date from being skipped)
+	private boolean readRecent(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		long since;
+		synchronized (this) {
+			since = watermark;
+		}
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMGreaterOrEqual("createddate", new SMInt(since - WATERMARK_SLACK_MILLIS)));
+		List<String> fields = new ArrayList<String>();
+		fields.add("username");
+		fields.add("createddate");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> users = dataService.readObjects("user", userQuery, 0, filter);
+		if (users == null) {
+			return false;
+		}
+		List<String> usernames = new ArrayList<String>();
+		long newWatermark = since;
+		for (int i = 0; i < users.size(); i++) {
+			SMObject userObject = users.get(i);
+			usernames.add(((SMString)userObject.getValue().get("username")).getValue());
+			newWatermark = Math.max(newWatermark, ((SMInt)userObject.getValue().get("createddate")).getValue().longValue());
+		}
+		addUsers(usernames);
+		synchronized (this) {
+			watermark = Math.max(watermark, newWatermark);
+		}
+		return true;
+	}
+
+	// add users that are not in the index yet (until the next rebuild has them)
+	synchronized void addUsers(List<String> usernames) {
+		if (hashes == null) {
+			return;
+		}
+		long[] newRecent = Arrays.copyOf(recentHashes, recentHashes.length + usernames.size());
+		int count = recentHashes.length;
+		for (int i = 0; i < usernames.size(); i++) {
+			long userHash = UsernameFilter.hash(usernames.get(i));
+			if (Arrays.binarySearch(hashes, userHash) < 0 && Arrays.binarySearch(recentHashes, userHash) < 0) {
+				newRecent[count++] = userHash;
+				usernameFilter.add(userHash);
+			}
+		}
+		// sort & drop the users added twice
+		Arrays.sort(newRecent, 0, count);
+		int uniqueCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (uniqueCount == 0 || newRecent[uniqueCount - 1] != newRecent[i]) {
+				newRecent[uniqueCount++] = newRecent[i];
+			}
+		}
+		recentHashes = Arrays.copyOf(newRecent, uniqueCount);
+	}
+}
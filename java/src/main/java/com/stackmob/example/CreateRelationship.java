@@ -101,6 +101,14 @@ public class CreateRelationship implements CustomCodeMethod {
 		// create a response
 		try {
 			// check if friend's username exists
+			// (skip the fetch if the contact matcher knows it's not a user, it reads the users created since its last build first,
+			// and a miss is read again with the username only, so that no user is invited)
+			List<SMString> contactList = new ArrayList<SMString>();
+			contactList.add(friendId);
+			ContactMatcher contactMatcher = ContactMatcher.getInstance();
+			List<SMString> matches = contactMatcher.match(dataService, contactList);
+			List<SMString> missedIds = contactMatcher.findMissed(dataService, contactList, matches);
+			boolean mightBeUser = matches.size() > 0 || (missedIds != null && missedIds.size() > 0);
 			// fetch friend object
 			// - build query
 			List<SMCondition> friendQuery = new ArrayList<SMCondition>();
@@ -119,7 +127,12 @@ public class CreateRelationship implements CustomCodeMethod {
 			fields.add("relationships_by_others.owner.username");
 			ResultFilters filter = new ResultFilters(0, -1, null, fields);
 			// - execute query
-			List<SMObject> friends = dataService.readObjects("user", friendQuery, 2, filter);
+			List<SMObject> friends = null;
+			if (mightBeUser) {
+				friends = dataService.readObjects("user", friendQuery, 2, filter);
+			} else if (missedIds != null) {
+				friends = new ArrayList<SMObject>();
+			}
 			if (friends != null && friends.size() == 1) {
 				SMObject friendObject = friends.get(0);
 				Map<String, Object> returnMap = new HashMap<String, Object>();
@@ -72,6 +72,7 @@ public class CreateRelationships implements CustomCodeMethod {
 		// get requested friends' usernames and group to be added (if any) 
 		List<SMString> reqIds = new ArrayList<SMString>();
 		String groupIdString = "";
+		boolean importJob = false;
 		if (!request.getBody().isEmpty()) {
 			try {
 				JSONObject jsonObj = new JSONObject(request.getBody());
@@ -91,6 +92,9 @@ public class CreateRelationships implements CustomCodeMethod {
 				if (!jsonObj.isNull("group_id")) {
 					groupIdString = jsonObj.getString("group_id");
 				}
+				if (!jsonObj.isNull("import")) {
+					importJob = jsonObj.getBoolean("import");
+				}
 			} catch (JSONException e) {
 				HashMap<String, String> errParams = new HashMap<String, String>();
 				errParams.put("error", "invalid request body");
@@ -102,6 +106,12 @@ public class CreateRelationships implements CustomCodeMethod {
 			errParams.put("error", "usernames parameter not found");
 			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
 		}
+		// imports are added in chunks by the worker (without a group)
+		if (importJob && (!groupIdString.isEmpty() || reqIds.size() > ImportJobs.MAX_USERNAMES)) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid import request");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
 		SMString groupId = new SMString(groupIdString);
 		
 		// get the datastore service
@@ -109,290 +119,34 @@ public class CreateRelationships implements CustomCodeMethod {
 		
 		// create a response
 		try {
-			// fetch user object
-			// - build query
-			List<SMCondition> userQuery = new ArrayList<SMCondition>();
-			userQuery.add(new SMEquals("username", userId));
-			// - build result filter
-			List<String> userFields = new ArrayList<String>();
-			userFields.add("relationships_by_user");
-			userFields.add("relationships_by_user.relationship_id");
-			userFields.add("relationships_by_user.type_by_owner");
-			userFields.add("relationships_by_user.type_by_receiver");
-			userFields.add("relationships_by_user.invite_email");
-			userFields.add("relationships_by_user.receiver");
-			userFields.add("relationships_by_user.receiver.username");
-			userFields.add("relationships_by_user.receiver.name");
-			userFields.add("relationships_by_user.receiver.profile_image_url");
-			userFields.add("relationships_by_user.receiver.action");
-			userFields.add("relationships_by_user.receiver.place");
-			userFields.add("relationships_by_user.receiver.status_mod_date");
-			userFields.add("relationships_by_others");
-			userFields.add("relationships_by_others.relationship_id");
-			userFields.add("relationships_by_others.type_by_owner");
-			userFields.add("relationships_by_others.type_by_receiver");
-			userFields.add("relationships_by_others.owner");
-			userFields.add("relationships_by_others.owner.username");
-			userFields.add("relationships_by_others.owner.name");
-			userFields.add("relationships_by_others.owner.profile_image_url");
-			userFields.add("relationships_by_others.owner.action");
-			userFields.add("relationships_by_others.owner.place");
-			userFields.add("relationships_by_others.owner.status_mod_date");
-			ResultFilters userFilter = new ResultFilters(0, -1, null, userFields);
-			// - execute query
-			List<SMObject> users = dataService.readObjects("user", userQuery, 2, userFilter);
-			// report error if query failed
-			if (users == null || users.size() != 1) {
+			// save an import job, it's run by the worker & its chunk results are returned by polling get_import_job
+			if (importJob) {
+				SMObject jobObject = ImportJobs.getInstance().start(dataService, username, ImportJobs.KIND_CONTACTS, reqIds);
+				Map<String, Object> returnMap = new HashMap<String, Object>();
+				returnMap.put("job_id", (SMString)jobObject.getValue().get("import_job_id"));
+				returnMap.put("chunk_count", (SMInt)jobObject.getValue().get("chunk_count"));
+				returnMap.put("status", (SMString)jobObject.getValue().get("status"));
+				return new ResponseToProcess(HttpURLConnection.HTTP_ACCEPTED, returnMap); // http 202 - accepted
+			}
+			
+			// create or reactivate the relationships
+			Result result = addFriends(dataService, username, reqIds);
+			// report error if user query failed
+			if (result.userFetchError != null) {
 				HashMap<String, String> errMap = new HashMap<String, String>();
 				errMap.put("error", "invalid user fetch");
-				errMap.put("detail", (users == null ? "null fetch result" : ("fetch result count = " + users.size())));
+				errMap.put("detail", result.userFetchError);
 				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
 			}
-			
 			Map<String, Object> returnMap = new HashMap<String, Object>();
-			SMObject userObject = users.get(0);
-			List<Map<String, Object>> addedFriends = new ArrayList<Map<String, Object>>();
-			List<SMString> userRelIds = new ArrayList<SMString>();
-			List<SMString> othersRelIds = new ArrayList<SMString>();
-			// check if the requested relationships already exist
-			// - relationships by user
-			List<SMObject> relUserList = new ArrayList<SMObject>();
-			if (userObject.getValue().containsKey("relationships_by_user")) {
-				SMList<SMObject> relUserValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_user");
-				relUserList = relUserValue.getValue();
-			}
-			for (int i = 0; i < relUserList.size(); i++) {
-				SMObject relObject = relUserList.get(i);
-				SMString friendId = (SMString)relObject.getValue().get("invite_email");
-				// if not an invite, get username instead 
-				if (friendId.getValue().isEmpty()) {
-					SMObject friendObject = (SMObject)relObject.getValue().get("receiver");
-					friendId = (SMString)friendObject.getValue().get("username");
-					// if it's in the requested usernames, change to friend only if it's deleted by user
-					if (reqIds.remove(friendId)) {
-						SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_owner");
-						Long typeUser = typeUserValue.getValue();
-						if (typeUser.longValue() == 4L) {
-							SMString relId = (SMString)relObject.getValue().get("relationship_id");
-							List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
-							relUpdates.add(new SMSet("type_by_owner", new SMInt(2L)));
-							dataService.updateObject("relationship", relId, relUpdates);
-							
-							// return the friend's data according to relationship types
-							Map<String, Object> friendMap = new HashMap<String, Object>();
-							friendMap.put("relationship_id", relId);
-							friendMap.put("username", friendId);
-							SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_receiver");
-							Long typeFriend = typeFriendValue.getValue();
-							if (typeFriend.longValue() > 2L) {
-								friendMap.put("type_by_friend", new Long(2L));
-							} else {
-								friendMap.put("type_by_friend", typeFriend);
-							}
-							friendMap.put("name", (SMString)friendObject.getValue().get("name"));
-							friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
-							if (typeFriend.longValue() == 2L) {
-								friendMap.put("action", (SMString)friendObject.getValue().get("action"));
-								friendMap.put("place", (SMString)friendObject.getValue().get("place"));
-								friendMap.put("status_mod_date", (SMInt)friendObject.getValue().get("status_mod_date"));
-							}
-							addedFriends.add(friendMap);
-							
-							userRelIds.add(relId);
-						}
-					}
-				// otherwise, do the same thing but return friend data of an invite instead
-				} else if (reqIds.remove(friendId)) {
-					SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_owner");
-					Long typeUser = typeUserValue.getValue();
-					if (typeUser.longValue() == 4L) {
-						SMString relId = (SMString)relObject.getValue().get("relationship_id");
-						List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
-						relUpdates.add(new SMSet("type_by_owner", new SMInt(2L)));
-						dataService.updateObject("relationship", relId, relUpdates);
-						
-						// return the friend's data according to relationship types
-						Map<String, Object> friendMap = new HashMap<String, Object>();
-						friendMap.put("relationship_id", relId);
-						friendMap.put("invite_email", friendId);
-						SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_receiver");
-						Long typeFriend = typeFriendValue.getValue();
-						if (typeFriend.longValue() > 2L) {
-							friendMap.put("type_by_friend", new Long(2L));
-						} else {
-							friendMap.put("type_by_friend", typeFriend);
-						}
-						addedFriends.add(friendMap);
-						
-						userRelIds.add(relId);
-					}
-				}
-			}
-			// - relationships by others
-			List<SMObject> relOthersList = new ArrayList<SMObject>();
-			if (userObject.getValue().containsKey("relationships_by_others")) {
-				SMList<SMObject> relOthersValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_others");
-				relOthersList = relOthersValue.getValue();
-			}
-			for (int i = 0; i < relOthersList.size(); i++) {
-				SMObject relObject = relOthersList.get(i);
-				SMObject friendObject = (SMObject)relObject.getValue().get("owner");
-				SMString friendId = (SMString)friendObject.getValue().get("username");
-				// if it's in the requested usernames, change to friend only if it's deleted by user
-				if (reqIds.remove(friendId)) {
-					SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_receiver");
-					Long typeUser = typeUserValue.getValue();
-					if (typeUser.longValue() == 4L) {
-						SMString relId = (SMString)relObject.getValue().get("relationship_id");
-						List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
-						relUpdates.add(new SMSet("type_by_receiver", new SMInt(2L)));
-						dataService.updateObject("relationship", relId, relUpdates);
-						
-						// return the friend's data according to relationship types
-						Map<String, Object> friendMap = new HashMap<String, Object>();
-						friendMap.put("relationship_id", relId);
-						friendMap.put("username", friendId);
-						SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_owner");
-						Long typeFriend = typeFriendValue.getValue();
-						if (typeFriend.longValue() > 2L) {
-							friendMap.put("type_by_friend", new Long(2L));
-						} else {
-							friendMap.put("type_by_friend", typeFriend);
-						}
-						friendMap.put("name", (SMString)friendObject.getValue().get("name"));
-						friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
-						if (typeFriend.longValue() == 2L) {
-							friendMap.put("action", (SMString)friendObject.getValue().get("action"));
-							friendMap.put("place", (SMString)friendObject.getValue().get("place"));
-							friendMap.put("status_mod_date", (SMInt)friendObject.getValue().get("status_mod_date"));
-						}
-						addedFriends.add(friendMap);
-						
-						othersRelIds.add(relId);
-					}
-				}
-			}
-			// if the relationships do not exist, create new ones
-			if (reqIds.size() > 0) {
-				// fetch friend objects
-				// - build query
-				List<SMCondition> friendQuery = new ArrayList<SMCondition>();
-				friendQuery.add(new SMIn("username", reqIds));
-				// - build result filter
-				List<String> friendFields = new ArrayList<String>();
-				friendFields.add("username");
-				friendFields.add("name");
-				friendFields.add("profile_image_url");
-				ResultFilters friendFilter = new ResultFilters(0, -1, null, friendFields);
-				// - execute query
-				List<SMObject> friends = dataService.readObjects("user", friendQuery, 0, friendFilter);
-				// report error & return partial result if query failed
-				if (friends == null || friends.size() > reqIds.size()) {
-					returnMap.put("friends", addedFriends);
-					returnMap.put("error", reqIds);
-					return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
-				}
-				
-				List<SMString> allRelIdList = new ArrayList<SMString>();
-				// for each username that exists, create a new relationship
-				for (int i = 0; i < friends.size(); i++) {
-					SMObject friendObject = friends.get(i);
-					SMString friendId = (SMString)friendObject.getValue().get("username");
-					
-					Map<String, SMValue> relMap = new HashMap<String, SMValue>();
-					relMap.put("sm_owner", new SMString("user/" + username));
-					relMap.put("type_by_owner", new SMInt(2L));
-					relMap.put("type_by_receiver", new SMInt(1L));
-					relMap.put("invite_email", new SMString(""));
-					SMObject relObject = dataService.createObject("relationship", new SMObject(relMap));
-					// get the new relationship id
-					SMString relId = (SMString)relObject.getValue().get("relationship_id");
-					// store relationship for adding in user's relationships_by_user later
-					allRelIdList.add(relId);
-					// add user as relationship's owner
-					List<SMString> ownerIdList = new ArrayList<SMString>();
-					ownerIdList.add(userId);
-					dataService.addRelatedObjects("relationship", relId, "owner", ownerIdList);
-					// add relationship in friend's relationships_by_others
-					List<SMString> relIdList = new ArrayList<SMString>();
-					relIdList.add(relId);
-					dataService.addRelatedObjects("user", friendId, "relationships_by_others", relIdList);
-					// add friend as relationship's receiver
-					List<SMString> receiverIdList = new ArrayList<SMString>();
-					receiverIdList.add(friendId);
-					dataService.addRelatedObjects("relationship", relId, "receiver", receiverIdList);
-					
-					// and create a friend request event
-					Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-					eventMap.put("sm_owner", new SMString("user/" + username));
-					eventMap.put("type", new SMInt(1L));
-					SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-					// get the new event id
-					SMString eventId = (SMString)eventObject.getValue().get("event_id");
-					// add event in relationship's events_by_owner
-					List<SMString> eventIdList = new ArrayList<SMString>();
-					eventIdList.add(eventId);
-					dataService.addRelatedObjects("relationship", relId, "events_by_owner", eventIdList);
-					// add relationship as event's relationship_by_owner
-					dataService.addRelatedObjects("event", eventId, "relationship_by_owner", relIdList);
-					
-					// remove from the requested username
-					reqIds.remove(friendId);
-					
-					Map<String, Object> friendMap = new HashMap<String, Object>();
-					friendMap.put("relationship_id", relId);
-					friendMap.put("username", friendId);
-					friendMap.put("type_by_friend", new Long(1L));
-					friendMap.put("name", (SMString)friendObject.getValue().get("name"));
-					friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
-					addedFriends.add(friendMap);
-					
-					userRelIds.add(relId);
-				}
-				// for each username that does not exists, create a new invite
-				for (int i = 0; i < reqIds.size(); i++) {
-					SMString inviteId = reqIds.get(i);
-					
-					Map<String, SMValue> relMap = new HashMap<String, SMValue>();
-					relMap.put("sm_owner", new SMString("user/" + username));
-					relMap.put("type_by_owner", new SMInt(2L));
-					relMap.put("type_by_receiver", new SMInt(1L));
-					relMap.put("invite_email", inviteId);
-					SMObject relObject = dataService.createObject("relationship", new SMObject(relMap));
-					// get the new relationship id
-					SMString relId = (SMString)relObject.getValue().get("relationship_id");
-					// store relationship for adding in user's relationships_by_user later
-					allRelIdList.add(relId);
-					// add user as relationship's owner
-					List<SMString> ownerIdList = new ArrayList<SMString>();
-					ownerIdList.add(userId);
-					dataService.addRelatedObjects("relationship", relId, "owner", ownerIdList);
-					
-					// and create a friend request event
-					Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-					eventMap.put("sm_owner", new SMString("user/" + username));
-					eventMap.put("type", new SMInt(1L));
-					SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-					// get the new event id
-					SMString eventId = (SMString)eventObject.getValue().get("event_id");
-					// add event in relationship's events_by_owner
-					List<SMString> eventIdList = new ArrayList<SMString>();
-					eventIdList.add(eventId);
-					dataService.addRelatedObjects("relationship", relId, "events_by_owner", eventIdList);
-					// add relationship as event's relationship_by_owner
-					List<SMString> relIdList = new ArrayList<SMString>();
-					relIdList.add(relId);
-					dataService.addRelatedObjects("event", eventId, "relationship_by_owner", relIdList);
-					
-					Map<String, Object> friendMap = new HashMap<String, Object>();
-					friendMap.put("relationship_id", relId);
-					friendMap.put("invite_email", inviteId);
-					addedFriends.add(friendMap);
-					
-					userRelIds.add(relId);
-				}
-				// add all new relationships in user's relationships_by_user
-				dataService.addRelatedObjects("user", userId, "relationships_by_user", allRelIdList);
+			List<Map<String, Object>> addedFriends = result.friends;
+			List<SMString> userRelIds = result.userRelIds;
+			List<SMString> othersRelIds = result.othersRelIds;
+			// return partial result if friend query failed
+			if (result.errorIds != null) {
+				returnMap.put("friends", addedFriends);
+				returnMap.put("error", result.errorIds);
+				return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
 			}
 			returnMap.put("friends", addedFriends);
 			
@@ -478,4 +232,353 @@ public class CreateRelationships implements CustomCodeMethod {
 			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
 		}
 	}
+	
+	// true if the user has a relationship with any of the requested usernames (or invite emails)
+	private static boolean hasAnyRelationship(DataService dataService, SMString userId, List<SMString> reqIds) throws InvalidSchemaException, DatastoreException {
+		List<List<SMCondition>> relQueries = new ArrayList<List<SMCondition>>();
+		// - relationships by user
+		List<SMCondition> receiverQuery = new ArrayList<SMCondition>();
+		receiverQuery.add(new SMEquals("owner", userId));
+		receiverQuery.add(new SMIn("receiver", reqIds));
+		relQueries.add(receiverQuery);
+		List<SMCondition> inviteQuery = new ArrayList<SMCondition>();
+		inviteQuery.add(new SMEquals("owner", userId));
+		inviteQuery.add(new SMIn("invite_email", reqIds));
+		relQueries.add(inviteQuery);
+		// - relationships by others
+		List<SMCondition> ownerQuery = new ArrayList<SMCondition>();
+		ownerQuery.add(new SMIn("owner", reqIds));
+		ownerQuery.add(new SMEquals("receiver", userId));
+		relQueries.add(ownerQuery);
+		List<String> relFields = new ArrayList<String>();
+		relFields.add("relationship_id");
+		ResultFilters relFilter = new ResultFilters(0, 0, null, relFields);
+		for (int i = 0; i < relQueries.size(); i++) {
+			List<SMObject> rels = dataService.readObjects("relationship", relQueries.get(i), 0, relFilter);
+			// (a failed read counts as related, so the user object is read)
+			if (rels == null || rels.size() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// create the user's relationships with the requested usernames (invites for those who are not users),
+	// reactivating the ones deleted by user, and the other existing ones are left as they are
+	// the requested usernames are consumed
+	static Result addFriends(DataService dataService, String username, List<SMString> reqIds) throws InvalidSchemaException, DatastoreException {
+		SMString userId = new SMString(username);
+		Result result = new Result();
+		// fetch user object (unless none of the requested users are related to the user)
+		// the graph index may miss relationships created in other processes, so its "none" is checked with a small read
+		SocialGraphIndex graph = SocialGraphIndex.getInstance();
+		SMObject userObject = new SMObject(new HashMap<String, SMValue>());
+		if (!graph.isLoaded(username) || graph.hasAnyRelationship(username, reqIds) || hasAnyRelationship(dataService, userId, reqIds)) {
+			// - build query
+			List<SMCondition> userQuery = new ArrayList<SMCondition>();
+			userQuery.add(new SMEquals("username", userId));
+			// - build result filter
+			List<String> userFields = new ArrayList<String>();
+			userFields.add("relationships_by_user");
+			userFields.add("relationships_by_user.relationship_id");
+			userFields.add("relationships_by_user.type_by_owner");
+			userFields.add("relationships_by_user.type_by_receiver");
+			userFields.add("relationships_by_user.invite_email");
+			userFields.add("relationships_by_user.receiver");
+			userFields.add("relationships_by_user.receiver.username");
+			userFields.add("relationships_by_user.receiver.name");
+			userFields.add("relationships_by_user.receiver.profile_image_url");
+			userFields.add("relationships_by_user.receiver.action");
+			userFields.add("relationships_by_user.receiver.place");
+			userFields.add("relationships_by_user.receiver.status_mod_date");
+			userFields.add("relationships_by_others");
+			userFields.add("relationships_by_others.relationship_id");
+			userFields.add("relationships_by_others.type_by_owner");
+			userFields.add("relationships_by_others.type_by_receiver");
+			userFields.add("relationships_by_others.owner");
+			userFields.add("relationships_by_others.owner.username");
+			userFields.add("relationships_by_others.owner.name");
+			userFields.add("relationships_by_others.owner.profile_image_url");
+			userFields.add("relationships_by_others.owner.action");
+			userFields.add("relationships_by_others.owner.place");
+			userFields.add("relationships_by_others.owner.status_mod_date");
+			ResultFilters userFilter = new ResultFilters(0, -1, null, userFields);
+			// - execute query
+			List<SMObject> users = dataService.readObjects("user", userQuery, 2, userFilter);
+			// report error if query failed
+			if (users == null || users.size() != 1) {
+				result.userFetchError = (users == null ? "null fetch result" : ("fetch result count = " + users.size()));
+				return result;
+			}
+			userObject = users.get(0);
+			graph.loadUser(username, userObject);
+		}
+		
+		List<Map<String, Object>> addedFriends = result.friends;
+		List<SMString> userRelIds = result.userRelIds;
+		List<SMString> othersRelIds = result.othersRelIds;
+		// check if the requested relationships already exist
+		// - relationships by user
+		List<SMObject> relUserList = new ArrayList<SMObject>();
+		if (userObject.getValue().containsKey("relationships_by_user")) {
+			SMList<SMObject> relUserValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_user");
+			relUserList = relUserValue.getValue();
+		}
+		for (int i = 0; i < relUserList.size(); i++) {
+			SMObject relObject = relUserList.get(i);
+			SMString friendId = (SMString)relObject.getValue().get("invite_email");
+			// if not an invite, get username instead 
+			if (friendId.getValue().isEmpty()) {
+				SMObject friendObject = (SMObject)relObject.getValue().get("receiver");
+				friendId = (SMString)friendObject.getValue().get("username");
+				// if it's in the requested usernames, change to friend only if it's deleted by user
+				if (reqIds.remove(friendId)) {
+					SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_owner");
+					Long typeUser = typeUserValue.getValue();
+					if (typeUser.longValue() == 4L) {
+						SMString relId = (SMString)relObject.getValue().get("relationship_id");
+						List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
+						relUpdates.add(new SMSet("type_by_owner", new SMInt(2L)));
+						dataService.updateObject("relationship", relId, relUpdates);
+						graph.setType(relId.getValue(), "owner", 2L);
+						
+						// return the friend's data according to relationship types
+						Map<String, Object> friendMap = new HashMap<String, Object>();
+						friendMap.put("relationship_id", relId);
+						friendMap.put("username", friendId);
+						SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_receiver");
+						Long typeFriend = typeFriendValue.getValue();
+						if (typeFriend.longValue() > 2L) {
+							friendMap.put("type_by_friend", new Long(2L));
+						} else {
+							friendMap.put("type_by_friend", typeFriend);
+						}
+						friendMap.put("name", (SMString)friendObject.getValue().get("name"));
+						friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
+						if (typeFriend.longValue() == 2L) {
+							friendMap.put("action", (SMString)friendObject.getValue().get("action"));
+							friendMap.put("place", (SMString)friendObject.getValue().get("place"));
+							friendMap.put("status_mod_date", (SMInt)friendObject.getValue().get("status_mod_date"));
+						}
+						addedFriends.add(friendMap);
+						
+						userRelIds.add(relId);
+					}
+				}
+			// otherwise, do the same thing but return friend data of an invite instead
+			} else if (reqIds.remove(friendId)) {
+				SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_owner");
+				Long typeUser = typeUserValue.getValue();
+				if (typeUser.longValue() == 4L) {
+					SMString relId = (SMString)relObject.getValue().get("relationship_id");
+					List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
+					relUpdates.add(new SMSet("type_by_owner", new SMInt(2L)));
+					dataService.updateObject("relationship", relId, relUpdates);
+					graph.setType(relId.getValue(), "owner", 2L);
+					
+					// return the friend's data according to relationship types
+					Map<String, Object> friendMap = new HashMap<String, Object>();
+					friendMap.put("relationship_id", relId);
+					friendMap.put("invite_email", friendId);
+					SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_receiver");
+					Long typeFriend = typeFriendValue.getValue();
+					if (typeFriend.longValue() > 2L) {
+						friendMap.put("type_by_friend", new Long(2L));
+					} else {
+						friendMap.put("type_by_friend", typeFriend);
+					}
+					addedFriends.add(friendMap);
+					
+					userRelIds.add(relId);
+				}
+			}
+		}
+		// - relationships by others
+		List<SMObject> relOthersList = new ArrayList<SMObject>();
+		if (userObject.getValue().containsKey("relationships_by_others")) {
+			SMList<SMObject> relOthersValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_others");
+			relOthersList = relOthersValue.getValue();
+		}
+		for (int i = 0; i < relOthersList.size(); i++) {
+			SMObject relObject = relOthersList.get(i);
+			SMObject friendObject = (SMObject)relObject.getValue().get("owner");
+			SMString friendId = (SMString)friendObject.getValue().get("username");
+			// if it's in the requested usernames, change to friend only if it's deleted by user
+			if (reqIds.remove(friendId)) {
+				SMInt typeUserValue = (SMInt)relObject.getValue().get("type_by_receiver");
+				Long typeUser = typeUserValue.getValue();
+				if (typeUser.longValue() == 4L) {
+					SMString relId = (SMString)relObject.getValue().get("relationship_id");
+					List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
+					relUpdates.add(new SMSet("type_by_receiver", new SMInt(2L)));
+					dataService.updateObject("relationship", relId, relUpdates);
+					graph.setType(relId.getValue(), "receiver", 2L);
+					
+					// return the friend's data according to relationship types
+					Map<String, Object> friendMap = new HashMap<String, Object>();
+					friendMap.put("relationship_id", relId);
+					friendMap.put("username", friendId);
+					SMInt typeFriendValue = (SMInt)relObject.getValue().get("type_by_owner");
+					Long typeFriend = typeFriendValue.getValue();
+					if (typeFriend.longValue() > 2L) {
+						friendMap.put("type_by_friend", new Long(2L));
+					} else {
+						friendMap.put("type_by_friend", typeFriend);
+					}
+					friendMap.put("name", (SMString)friendObject.getValue().get("name"));
+					friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
+					if (typeFriend.longValue() == 2L) {
+						friendMap.put("action", (SMString)friendObject.getValue().get("action"));
+						friendMap.put("place", (SMString)friendObject.getValue().get("place"));
+						friendMap.put("status_mod_date", (SMInt)friendObject.getValue().get("status_mod_date"));
+					}
+					addedFriends.add(friendMap);
+					
+					othersRelIds.add(relId);
+				}
+			}
+		}
+		// if the relationships do not exist, create new ones
+		if (reqIds.size() > 0) {
+			// fetch friend objects (only of the usernames the contact matcher can't rule out)
+			// the misses are read again first (usernames only, in one query), so that no user is invited
+			List<SMObject> friends = new ArrayList<SMObject>();
+			ContactMatcher contactMatcher = ContactMatcher.getInstance();
+			List<SMString> candidateIds = contactMatcher.match(dataService, reqIds);
+			List<SMString> missedIds = contactMatcher.findMissed(dataService, reqIds, candidateIds);
+			if (missedIds != null) {
+				candidateIds.addAll(missedIds);
+			}
+			if (missedIds == null) {
+				friends = null;
+			} else if (candidateIds.size() > 0) {
+				// - build query
+				List<SMCondition> friendQuery = new ArrayList<SMCondition>();
+				friendQuery.add(new SMIn("username", candidateIds));
+				// - build result filter
+				List<String> friendFields = new ArrayList<String>();
+				friendFields.add("username");
+				friendFields.add("name");
+				friendFields.add("profile_image_url");
+				ResultFilters friendFilter = new ResultFilters(0, -1, null, friendFields);
+				// - execute query
+				friends = dataService.readObjects("user", friendQuery, 0, friendFilter);
+			}
+			// report error & return partial result if query failed
+			if (friends == null || friends.size() > candidateIds.size()) {
+				result.errorIds = reqIds;
+				return result;
+			}
+			
+			List<SMString> allRelIdList = new ArrayList<SMString>();
+			// for each username that exists, create a new relationship
+			for (int i = 0; i < friends.size(); i++) {
+				SMObject friendObject = friends.get(i);
+				SMString friendId = (SMString)friendObject.getValue().get("username");
+				
+				Map<String, SMValue> relMap = new HashMap<String, SMValue>();
+				relMap.put("sm_owner", new SMString("user/" + username));
+				relMap.put("type_by_owner", new SMInt(2L));
+				relMap.put("type_by_receiver", new SMInt(1L));
+				relMap.put("invite_email", new SMString(""));
+				SMObject relObject = dataService.createObject("relationship", new SMObject(relMap));
+				// get the new relationship id
+				SMString relId = (SMString)relObject.getValue().get("relationship_id");
+				// store relationship for adding in user's relationships_by_user later
+				allRelIdList.add(relId);
+				// add user as relationship's owner
+				List<SMString> ownerIdList = new ArrayList<SMString>();
+				ownerIdList.add(userId);
+				dataService.addRelatedObjects("relationship", relId, "owner", ownerIdList);
+				// add relationship in friend's relationships_by_others
+				List<SMString> relIdList = new ArrayList<SMString>();
+				relIdList.add(relId);
+				dataService.addRelatedObjects("user", friendId, "relationships_by_others", relIdList);
+				// add friend as relationship's receiver
+				List<SMString> receiverIdList = new ArrayList<SMString>();
+				receiverIdList.add(friendId);
+				dataService.addRelatedObjects("relationship", relId, "receiver", receiverIdList);
+				graph.putRelationship(relId.getValue(), username, friendId.getValue(), 2L, 1L);
+				
+				// and create a friend request event
+				SMObject eventObject = EventStore.createEvent(dataService, relId, "events_by_owner", username, 1L, new ArrayList<SMString>());
+				BadgeCounts.add(dataService, friendId.getValue(), 1L, 1L);
+				NotificationInbox.getInstance().add(friendId.getValue(), eventObject, relId, username);
+				
+				// remove from the requested username
+				reqIds.remove(friendId);
+				
+				Map<String, Object> friendMap = new HashMap<String, Object>();
+				friendMap.put("relationship_id", relId);
+				friendMap.put("username", friendId);
+				friendMap.put("type_by_friend", new Long(1L));
+				friendMap.put("name", (SMString)friendObject.getValue().get("name"));
+				friendMap.put("profile_image_url", (SMString)friendObject.getValue().get("profile_image_url"));
+				addedFriends.add(friendMap);
+				
+				userRelIds.add(relId);
+			}
+			// for each username that does not exists, create a new invite
+			for (int i = 0; i < reqIds.size(); i++) {
+				SMString inviteId = reqIds.get(i);
+				
+				Map<String, SMValue> relMap = new HashMap<String, SMValue>();
+				relMap.put("sm_owner", new SMString("user/" + username));
+				relMap.put("type_by_owner", new SMInt(2L));
+				relMap.put("type_by_receiver", new SMInt(1L));
+				relMap.put("invite_email", inviteId);
+				SMObject relObject = dataService.createObject("relationship", new SMObject(relMap));
+				// get the new relationship id
+				SMString relId = (SMString)relObject.getValue().get("relationship_id");
+				// store relationship for adding in user's relationships_by_user later
+				allRelIdList.add(relId);
+				// add user as relationship's owner
+				List<SMString> ownerIdList = new ArrayList<SMString>();
+				ownerIdList.add(userId);
+				dataService.addRelatedObjects("relationship", relId, "owner", ownerIdList);
+				graph.putRelationship(relId.getValue(), username, inviteId.getValue(), 2L, 1L);
+				InviteIndex.getInstance().add(inviteId.getValue(), relId.getValue());
+				
+				// and create a friend request event
+				EventStore.createEvent(dataService, relId, "events_by_owner", username, 1L, new ArrayList<SMString>());
+				
+				Map<String, Object> friendMap = new HashMap<String, Object>();
+				friendMap.put("relationship_id", relId);
+				friendMap.put("invite_email", inviteId);
+				addedFriends.add(friendMap);
+				
+				userRelIds.add(relId);
+			}
+			// add all new relationships in user's relationships_by_user
+			dataService.addRelatedObjects("user", userId, "relationships_by_user", allRelIdList);
+		}
+		// add mutual friend counts (from the graph index, left out where they can't be counted exactly)
+		// (the friends' relationships may be up to SocialGraphIndex.RELOAD_INTERVAL_MILLIS old, so a count may be off by changes made since in other processes)
+		List<String> friendNames = new ArrayList<String>();
+		List<Map<String, Object>> namedFriends = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < addedFriends.size(); i++) {
+			Map<String, Object> friendMap = addedFriends.get(i);
+			if (friendMap.containsKey("username")) {
+				friendNames.add(((SMString)friendMap.get("username")).getValue());
+				namedFriends.add(friendMap);
+			}
+		}
+		int[] mutualCounts = graph.countMutualFriends(dataService, username, friendNames);
+		for (int i = 0; i < namedFriends.size(); i++) {
+			if (mutualCounts[i] >= 0) {
+				namedFriends.get(i).put("mutual_count", new Long(mutualCounts[i]));
+			}
+		}
+		return result;
+	}
+	
+	// added friends and the new or reactivated relationships by user & by others
+	// (userFetchError is the detail of a failed user fetch, errorIds the usernames left when the friend fetch failed)
+	static class Result {
+		final List<Map<String, Object>> friends = new ArrayList<Map<String, Object>>();
+		final List<SMString> userRelIds = new ArrayList<SMString>();
+		final List<SMString> othersRelIds = new ArrayList<SMString>();
+		String userFetchError = null;
+		List<SMString> errorIds = null;
+	}
 }
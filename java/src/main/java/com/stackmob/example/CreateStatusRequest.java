@@ -96,21 +96,39 @@ public class CreateStatusRequest implements CustomCodeMethod {
 		
 		// create a response
 		try {
+			// check user's role in the graph index first (owner & receiver never change, the types are checked on the read below)
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			String indexedRole = graph.getRole(relIdString, username);
+			if (indexedRole != null && indexedRole.isEmpty()) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "requested relationship is inaccessible by this user");
+				return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+			}
+			
 			// fetch relationship objects
 			// - build query
 			List<SMCondition> relQuery = new ArrayList<SMCondition>();
 			relQuery.add(new SMEquals("relationship_id", relId));
 			// - build result filter
+			// (events are read unless the index read this relationship's pending requests within StatusRequestIndex.READ_TTL_MILLIS
+			// and found none by the user: a pending request may have been removed in another process meanwhile)
+			StatusRequestIndex statusRequests = StatusRequestIndex.getInstance();
+			boolean requestsIndexed = indexedRole != null && statusRequests.isKnown(relIdString, "events_by_owner") && statusRequests.isKnown(relIdString, "events_by_receiver")
+					&& "".equals(statusRequests.getPending(relIdString, "events_by_" + indexedRole));
 			List<String> fields = new ArrayList<String>();
 			fields.add("relationship_id");
 			fields.add("type_by_owner");
 			fields.add("type_by_receiver");
 			fields.add("owner");
 			fields.add("receiver");
-			fields.add("events_by_owner");
-			fields.add("events_by_owner.type");
-			fields.add("events_by_receiver");
-			fields.add("events_by_receiver.type");
+			if (!requestsIndexed) {
+				EventStore.addEventFields(fields, "", "events_by_owner");
+				EventStore.addEventFields(fields, "", "events_by_receiver");
+			} else {
+				// inline events are plain fields, they are needed to add one more
+				fields.add(EventStore.inlineKey("events_by_owner"));
+				fields.add(EventStore.inlineKey("events_by_receiver"));
+			}
 			ResultFilters filter = new ResultFilters(0, -1, null, fields);
 			// - execute query
 			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 1, filter);
@@ -126,6 +144,10 @@ public class CreateStatusRequest implements CustomCodeMethod {
 			// find user's role in this relationship
 			SMString ownerId = (SMString)relObject.getValue().get("owner");
 			SMString receiverId = (SMString)relObject.getValue().get("receiver");
+			if (receiverId != null) {
+				graph.putRelationship(relIdString, ownerId.getValue(), receiverId.getValue(),
+						((SMInt)relObject.getValue().get("type_by_owner")).getValue().longValue(), ((SMInt)relObject.getValue().get("type_by_receiver")).getValue().longValue());
+			}
 			String userRole = "";
 			if (ownerId.equals(userId)) {
 				userRole = "owner";
@@ -144,34 +166,23 @@ public class CreateStatusRequest implements CustomCodeMethod {
 			SMInt typeOwner = (SMInt)relObject.getValue().get("type_by_owner");
 			SMInt typeReceiver = (SMInt)relObject.getValue().get("type_by_receiver");
 			if (typeOwner.getValue().longValue() == 2L && typeReceiver.getValue().longValue() == 2L) {
-				// check if this relationship already have a request event
-				SMList<SMObject> eventsValue = (SMList<SMObject>)relObject.getValue().get("events_by_" + userRole);
-				List<SMObject> events = eventsValue.getValue();
-				boolean found = false;
-				for (int i = 0; i < events.size(); i++) {
-					SMObject eventObject = events.get(i);
-					SMInt eventType = (SMInt)eventObject.getValue().get("type");
-					if (eventType.getValue().longValue() == 3L) {
-						found = true;
-						break;
-					}
+				// keep the pending requests of both sides in the index
+				String targetId = userRole.equals("owner") ? receiverId.getValue() : ownerId.getValue();
+				if (!requestsIndexed) {
+					statusRequests.putRead(relIdString, "events_by_owner", findStatusRequest(relObject, "events_by_owner"));
+					statusRequests.putRead(relIdString, "events_by_receiver", findStatusRequest(relObject, "events_by_receiver"));
 				}
+				// check if this relationship already have a request event
+				String pendingId = statusRequests.getPending(relIdString, "events_by_" + userRole);
+				boolean found = pendingId != null && !pendingId.isEmpty();
 				
 				if (!found) {
-					Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-					eventMap.put("sm_owner", new SMString("user/" + username));
-					eventMap.put("type", new SMInt(3L));
-					SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-					// get the new event id
+					String eventKey = "events_by_" + userRole;
+					SMObject eventObject = EventStore.createEvent(dataService, relId, eventKey, username, 3L, new ArrayList<SMString>());
 					SMString eventId = (SMString)eventObject.getValue().get("event_id");
-					// add event in relationship's events by user
-					List<SMString> eventIdList = new ArrayList<SMString>();
-					eventIdList.add(eventId);
-					dataService.addRelatedObjects("relationship", relId, "events_by_" + userRole, eventIdList);
-					// add relationship as event's relationship
-					List<SMString> relIdList = new ArrayList<SMString>();
-					relIdList.add(relId);
-					dataService.addRelatedObjects("event", eventId, "relationship_by_" + userRole, relIdList);
+					BadgeCounts.add(dataService, targetId, 3L, 1L);
+					NotificationInbox.getInstance().add(targetId, eventObject, relId, username);
+					statusRequests.put(relIdString, "events_by_" + userRole, eventId.getValue());
 					
 					returnMap.put("event_id", eventId); 
 				}
@@ -195,4 +206,17 @@ public class CreateStatusRequest implements CustomCodeMethod {
 			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
 		}
 	}
+	
+	// id of the status request event in the relationship's events_by_<role>, "" if there is none
+	private static String findStatusRequest(SMObject relObject, String eventKey) {
+		List<SMObject> events = EventStore.getEvents(relObject, eventKey);
+		for (int i = 0; i < events.size(); i++) {
+			SMObject eventObject = events.get(i);
+			SMInt eventType = (SMInt)eventObject.getValue().get("type");
+			if (eventType.getValue().longValue() == 3L) {
+				return ((SMString)eventObject.getValue().get("event_id")).getValue();
+			}
+		}
+		return "";
+	}
 }
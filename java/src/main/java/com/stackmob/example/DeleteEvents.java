@@ -28,6 +28,7 @@ import com.stackmob.core.DatastoreException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
@@ -99,13 +100,30 @@ public class DeleteEvents implements CustomCodeMethod {
 		
 		// create a response
 		try {
+			// inline events are not event objects, their relationship side is part of their id
+			List<SMString> linkedIds = new ArrayList<SMString>();
+			List<SMString> inlineIds = new ArrayList<SMString>();
+			List<SMString> inlineRelIds = new ArrayList<SMString>();
+			for (int i = 0; i < eventIds.size(); i++) {
+				SMString eventId = eventIds.get(i);
+				if (EventStore.isInline(eventId.getValue())) {
+					inlineIds.add(eventId);
+					SMString relId = new SMString(EventStore.getInlineRelId(eventId.getValue()));
+					if (!inlineRelIds.contains(relId)) {
+						inlineRelIds.add(relId);
+					}
+				} else {
+					linkedIds.add(eventId);
+				}
+			}
 			// fetch event object
 			// - build query
 			List<SMCondition> eventQuery = new ArrayList<SMCondition>();
-			eventQuery.add(new SMIn("event_id", eventIds));
+			eventQuery.add(new SMIn("event_id", linkedIds));
 			// - build result filter
 			List<String> fields = new ArrayList<String>();
 			fields.add("event_id");
+			fields.add("type");
 			fields.add("relationship_by_owner");
 			fields.add("relationship_by_owner.relationship_id");
 			fields.add("relationship_by_owner.receiver");
@@ -114,9 +132,12 @@ public class DeleteEvents implements CustomCodeMethod {
 			fields.add("relationship_by_receiver.owner");
 			ResultFilters filter = new ResultFilters(0, -1, null, fields);
 			// - execute query
-			List<SMObject> events = dataService.readObjects("event", eventQuery, 1, filter);
+			List<SMObject> events = new ArrayList<SMObject>();
+			if (linkedIds.size() > 0) {
+				events = dataService.readObjects("event", eventQuery, 1, filter);
+			}
 			// report error if query failed
-			if (events == null || events.size() != eventIds.size()) {
+			if (events == null || events.size() != linkedIds.size()) {
 				HashMap<String, String> errMap = new HashMap<String, String>();
 				errMap.put("error", "invalid event fetch");
 				errMap.put("detail", (events == null ? "null fetch result" : ("fetch result count = " + events.size())));
@@ -125,6 +146,12 @@ public class DeleteEvents implements CustomCodeMethod {
 			
 			Map<String, Object> returnMap = new HashMap<String, Object>();
 			List<SMString> removedEvents = new ArrayList<SMString>();
+			// removed events with their types, for the badge counts
+			List<SMObject> removedObjects = new ArrayList<SMObject>();
+			// "relationship id/events_by_<role>" -> event ids to remove from that side
+			Map<String, List<SMString>> groupedEvents = new LinkedHashMap<String, List<SMString>>();
+			Map<String, SMString> groupRelIds = new HashMap<String, SMString>();
+			Map<String, String> groupEventKeys = new HashMap<String, String>();
 			for (int i = 0; i < events.size(); i++) {
 				SMObject eventObject = events.get(i);
 				SMString eventId = (SMString)eventObject.getValue().get("event_id");
@@ -144,13 +171,83 @@ public class DeleteEvents implements CustomCodeMethod {
 					continue;
 				}
 				
-				// remove & delete the event from the relationship
-				List<SMString> eventIdList = new ArrayList<SMString>();
+				// group the event by its relationship side
+				String groupKey = relId.getValue() + "/events_by_" + creatorRole;
+				List<SMString> eventIdList = groupedEvents.get(groupKey);
+				if (eventIdList == null) {
+					eventIdList = new ArrayList<SMString>();
+					groupedEvents.put(groupKey, eventIdList);
+					groupRelIds.put(groupKey, relId);
+					groupEventKeys.put(groupKey, "events_by_" + creatorRole);
+				}
 				eventIdList.add(eventId);
-				dataService.removeRelatedObjects("relationship", relId, "events_by_" + creatorRole, eventIdList, true);
 				
 				removedEvents.add(eventId);
+				removedObjects.add(eventObject);
+			}
+			// inline events: check that this user is the receiver in each event's relationship
+			if (inlineIds.size() > 0) {
+				List<SMCondition> relQuery = new ArrayList<SMCondition>();
+				relQuery.add(new SMIn("relationship_id", inlineRelIds));
+				List<String> relFields = new ArrayList<String>();
+				relFields.add("relationship_id");
+				relFields.add("owner");
+				relFields.add("receiver");
+				relFields.add(EventStore.inlineKey("events_by_owner"));
+				relFields.add(EventStore.inlineKey("events_by_receiver"));
+				List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, new ResultFilters(0, -1, null, relFields));
+				Map<String, SMObject> relMap = new HashMap<String, SMObject>();
+				Map<String, SMObject> inlineEvents = new HashMap<String, SMObject>();
+				for (int i = 0; rels != null && i < rels.size(); i++) {
+					SMString relId = (SMString)rels.get(i).getValue().get("relationship_id");
+					relMap.put(relId.getValue(), rels.get(i));
+					List<SMObject> relEvents = EventStore.getEvents(rels.get(i), "events_by_owner");
+					relEvents.addAll(EventStore.getEvents(rels.get(i), "events_by_receiver"));
+					for (int j = 0; j < relEvents.size(); j++) {
+						inlineEvents.put(((SMString)relEvents.get(j).getValue().get("event_id")).getValue(), relEvents.get(j));
+					}
+				}
+				for (int i = 0; i < inlineIds.size(); i++) {
+					SMString eventId = inlineIds.get(i);
+					String relIdString = EventStore.getInlineRelId(eventId.getValue());
+					String eventKey = EventStore.getInlineEventKey(eventId.getValue());
+					String userRole = eventKey.equals("events_by_owner") ? "receiver" : "owner";
+					SMObject relObject = relMap.get(relIdString);
+					if (relObject == null || !userId.equals(relObject.getValue().get(userRole)) || !inlineEvents.containsKey(eventId.getValue())) {
+						continue;
+					}
+					String groupKey = relIdString + "/" + eventKey;
+					List<SMString> eventIdList = groupedEvents.get(groupKey);
+					if (eventIdList == null) {
+						eventIdList = new ArrayList<SMString>();
+						groupedEvents.put(groupKey, eventIdList);
+						groupRelIds.put(groupKey, new SMString(relIdString));
+						groupEventKeys.put(groupKey, eventKey);
+					}
+					eventIdList.add(eventId);
+					
+					removedEvents.add(eventId);
+					removedObjects.add(inlineEvents.get(eventId.getValue()));
+				}
+			}
+			// remove & delete the events from each relationship side (one call per side, sides in parallel)
+			List<ParallelWrites.Write> removals = new ArrayList<ParallelWrites.Write>();
+			for (String groupKey : groupedEvents.keySet()) {
+				final DataService groupDataService = dataService;
+				final SMString relId = groupRelIds.get(groupKey);
+				final String eventKey = groupEventKeys.get(groupKey);
+				final List<SMString> eventIdList = groupedEvents.get(groupKey);
+				removals.add(new ParallelWrites.Write() {
+					@Override
+					public void run() throws InvalidSchemaException, DatastoreException {
+						EventStore.removeEvents(groupDataService, relId, eventKey, eventIdList);
+					}
+				});
 			}
+			ParallelWrites.runAll(removals);
+			StatusRequestIndex.getInstance().removeEvents(removedEvents);
+			NotificationInbox.getInstance().removeEvents(removedEvents);
+			BadgeCounts.subtract(dataService, username, removedObjects);
 			returnMap.put("event_ids", removedEvents);
 			
 			// return updated data for local database
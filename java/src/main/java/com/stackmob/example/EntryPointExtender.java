@@ -27,16 +27,28 @@ public class EntryPointExtender extends JarEntryObject {
   @Override
   public List<CustomCodeMethod> methods() {
     List<CustomCodeMethod> list = new ArrayList<CustomCodeMethod>();
-	list.add(new InitializeUser());
-	list.add(new GetDatabase());
-	list.add(new UpdateUser());
-	list.add(new CreateRelationships());
-	list.add(new UpdateRelationships());
-	list.add(new CreateNewGroup());
-	list.add(new UpdateGroup());
-	list.add(new DeleteGroup());
-	list.add(new CreateStatusRequest());
-	list.add(new DeleteEvents());
+	list.add(new IdempotentMethod(new InitializeUser()));
+	list.add(new CoalescedMethod(new GetDatabase()));
+	list.add(new IdempotentMethod(new UpdateUser()));
+	list.add(new IdempotentMethod(new CreateRelationships()));
+	list.add(new IdempotentMethod(new UpdateRelationships()));
+	list.add(new IdempotentMethod(new CreateNewGroup()));
+	list.add(new IdempotentMethod(new UpdateGroup()));
+	list.add(new IdempotentMethod(new DeleteGroup()));
+	list.add(new IdempotentMethod(new CreateStatusRequest()));
+	list.add(new IdempotentMethod(new DeleteEvents()));
+	list.add(new GetStatusUpdates());
+	list.add(new GetBadgeCounts());
+	list.add(new GetInbox());
+	list.add(new SuggestFriends());
+	list.add(new SearchFriends());
+	list.add(new FriendsAtPlaces());
+	list.add(new GetClusters());
+	list.add(new GetStatusHistory());
+	list.add(new GetImportJob());
+	list.add(new ResumeImportJob());
+	list.add(new BulkInitializeUsers());
+	list.add(new RunBackgroundWork());
     return list;
   }
 
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.System;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// queue of event removals, so that requests do not wait for cascade deletes
+// the removals are "event_removal" items of the work queue (so they survive a crash), run as background work by the worker;
+// removals of the same relationship side are merged into one removeRelatedObjects call, failed ones are retried by the work queue
+public class EventCleanupQueue extends BackgroundWork.Task {
+
+	public static final String KIND = "event_removal";
+	// maximum number of queued removals handled in one batch
+	public static final int MAX_BATCH = 100;
+	// the queue is read again this long after it was found empty (removals queued by this process are due right away)
+	public static final long POLL_INTERVAL_MILLIS = 10L * 1000L;
+
+	private static final EventCleanupQueue INSTANCE = new EventCleanupQueue();
+
+	public static EventCleanupQueue getInstance() {
+		return INSTANCE;
+	}
+
+	private volatile long nextPollDate = 0L;
+
+	private EventCleanupQueue() {
+		BackgroundWork.getInstance().register(this);
+	}
+
+	// remove & delete the events from the relationship's events_by_<role> later
+	public void removeLater(DataService dataService, SMString relId, String eventKey, List<SMString> eventIds) throws InvalidSchemaException, DatastoreException {
+		JSONObject payload = new JSONObject();
+		try {
+			payload.put("relationship_id", relId.getValue());
+			payload.put("event_key", eventKey);
+			JSONArray idArray = new JSONArray();
+			for (int i = 0; i < eventIds.size(); i++) {
+				idArray.put(eventIds.get(i).getValue());
+			}
+			payload.put("event_ids", idArray);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException(e);
+		}
+		WorkQueue.add(dataService, KIND, payload);
+		nextPollDate = 0L;
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextPollDate;
+	}
+
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws Exception {
+		DataService dataService = serviceProvider.getDataService();
+		LoggerService logger = serviceProvider.getLoggerService(EventCleanupQueue.class);
+		List<WorkQueue.Item> batch = WorkQueue.claimDue(dataService, KIND, MAX_BATCH);
+		if (batch == null || batch.size() == 0) {
+			nextPollDate = System.currentTimeMillis() + POLL_INTERVAL_MILLIS;
+			return;
+		}
+		// merge removals by relationship side
+		Map<String, List<WorkQueue.Item>> merged = new LinkedHashMap<String, List<WorkQueue.Item>>();
+		for (int i = 0; i < batch.size(); i++) {
+			WorkQueue.Item item = batch.get(i);
+			String key = item.payload.getString("relationship_id") + "/" + item.payload.getString("event_key");
+			List<WorkQueue.Item> sideItems = merged.get(key);
+			if (sideItems == null) {
+				sideItems = new ArrayList<WorkQueue.Item>();
+				merged.put(key, sideItems);
+			}
+			sideItems.add(item);
+		}
+		for (List<WorkQueue.Item> sideItems : merged.values()) {
+			SMString relId = new SMString(sideItems.get(0).payload.getString("relationship_id"));
+			String eventKey = sideItems.get(0).payload.getString("event_key");
+			List<SMString> eventIds = new ArrayList<SMString>();
+			for (int i = 0; i < sideItems.size(); i++) {
+				JSONArray idArray = sideItems.get(i).payload.getJSONArray("event_ids");
+				for (int j = 0; j < idArray.length(); j++) {
+					eventIds.add(new SMString(idArray.getString(j)));
+				}
+			}
+			try {
+				EventStore.removeEvents(dataService, relId, eventKey, eventIds);
+			} catch (Exception e) {
+				for (int i = 0; i < sideItems.size(); i++) {
+					if (WorkQueue.failed(dataService, sideItems.get(i))) {
+						logger.warn("failed to remove events " + eventIds + " from relationship " + relId.getValue() + ", retrying (attempt " + (sideItems.get(i).attempts + 1) + ")", e);
+					} else {
+						logger.error("failed to remove events " + eventIds + " from relationship " + relId.getValue() + " after " + WorkQueue.MAX_ATTEMPTS + " attempts", e);
+					}
+				}
+				continue;
+			}
+			for (int i = 0; i < sideItems.size(); i++) {
+				WorkQueue.done(dataService, sideItems.get(i));
+			}
+		}
+	}
+}
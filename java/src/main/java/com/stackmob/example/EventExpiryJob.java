@@ -0,0 +1,347 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// periodically removes events older than their type's time-to-live, both event objects and inline events (see EventStore)
+// events are swept one batch per background work slice with a pause in between, so that the job does not compete with requests
+// the job is registered by the worker (run_background_work) and holds a lease (see Lease) during a run, so only one process sweeps at a time
+// (a second sweep of the same events would archive them twice and subtract them twice from the badge counts);
+// the date of the next run is saved on the lease, so a new process doesn't sweep again before it's due
+public class EventExpiryJob extends BackgroundWork.Task {
+
+	private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+	// time-to-live by event type (1. friend request, 2. accept, 3. status request, 4. joining, 5. cancel)
+	public static final long[] TTL_MILLIS = {0L, 90L * DAY_MILLIS, 30L * DAY_MILLIS, 7L * DAY_MILLIS, DAY_MILLIS, DAY_MILLIS};
+	// inline events are swept after the event objects, one relationship side after the other
+	public static final String[] INLINE_EVENT_KEYS = {"events_by_owner", "events_by_receiver"};
+	public static final long RUN_INTERVAL_MILLIS = 60L * 60L * 1000L;
+	// rate limit: events (or relationships with inline events) per batch, pause between batches, batches per type in one run
+	// (each type has its own budget, so a backlog of one type does not keep the others from expiring)
+	public static final int BATCH_SIZE = 100;
+	public static final long BATCH_PAUSE_MILLIS = 1000L;
+	public static final int MAX_BATCHES_PER_TYPE = 10;
+	// a run's lease not renewed for this long (no batch done) can be claimed by another process
+	public static final long LEASE_TIMEOUT_MILLIS = 5L * 60L * 1000L;
+	// AppConfig setting: directory of gzipped NDJSON archives of expired events (not set or "" to not archive)
+	public static final String ARCHIVE_DIRECTORY_SETTING = "event_archive_directory";
+
+	private static final EventExpiryJob INSTANCE = new EventExpiryJob();
+
+	public static EventExpiryJob getInstance() {
+		return INSTANCE;
+	}
+
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private final Lease lease = new Lease("event_expiry", LEASE_TIMEOUT_MILLIS);
+	// state of the current run (only used by the running slice): types 1 to 5, then the inline sides
+	private long runDate = 0L;
+	private int runType = 0;
+	private int batchCount = 0;
+	private int expiredCount = 0;
+	// last relationship id of the inline side being swept (null before its first batch)
+	private String inlineAfter = null;
+	private volatile long nextSliceDate = 0L;
+
+	// schedule the job in this process (called by the worker), the first run is due right away unless another process did it
+	public void start() {
+		if (started.compareAndSet(false, true)) {
+			BackgroundWork.getInstance().register(this);
+		}
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextSliceDate;
+	}
+
+	// sweep one batch of expired events, the run moves to the next type when a type has no more expired events or used its budget
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws InvalidSchemaException, DatastoreException, IOException, JSONException {
+		long currentTime = System.currentTimeMillis();
+		DataService dataService = serviceProvider.getDataService();
+		if (runType == 0) {
+			// start a run if it's due and no other process is running one
+			if (!lease.claim(dataService)) {
+				nextSliceDate = currentTime + LEASE_TIMEOUT_MILLIS;
+				return;
+			}
+			SMObject leaseObject = lease.read(dataService);
+			SMValue nextRunValue = leaseObject == null ? null : leaseObject.getValue().get("next_run_date");
+			if (nextRunValue != null && currentTime < ((SMInt)nextRunValue).getValue().longValue()) {
+				lease.release(dataService);
+				nextSliceDate = ((SMInt)nextRunValue).getValue().longValue();
+				return;
+			}
+			runDate = currentTime;
+			runType = 1;
+			batchCount = 0;
+			expiredCount = 0;
+			inlineAfter = null;
+		} else if (!lease.update(dataService, new ArrayList<SMUpdate>())) {
+			// another process claimed the expired lease, it runs the sweep from the start
+			LoggerService logger = serviceProvider.getLoggerService(EventExpiryJob.class);
+			logger.warn("event expiry: lost the lease, the run is left to the other process");
+			runType = 0;
+			nextSliceDate = currentTime + RUN_INTERVAL_MILLIS;
+			return;
+		}
+		String archiveDirectory = AppConfig.getInstance().getString(dataService, ARCHIVE_DIRECTORY_SETTING, "");
+		int removedCount;
+		boolean typeDone;
+		if (runType < TTL_MILLIS.length) {
+			removedCount = removeBatch(dataService, runType, runDate - TTL_MILLIS[runType], archiveDirectory);
+			batchCount++;
+			typeDone = removedCount < BATCH_SIZE || batchCount == MAX_BATCHES_PER_TYPE;
+		} else {
+			removedCount = removeInlineBatch(dataService, INLINE_EVENT_KEYS[runType - TTL_MILLIS.length], archiveDirectory);
+			typeDone = inlineAfter == null;
+		}
+		expiredCount += removedCount;
+		if (typeDone) {
+			runType++;
+			batchCount = 0;
+			inlineAfter = null;
+		}
+		if (runType == TTL_MILLIS.length + INLINE_EVENT_KEYS.length) {
+			LoggerService logger = serviceProvider.getLoggerService(EventExpiryJob.class);
+			logger.info("event expiry: removed " + expiredCount + " events");
+			runType = 0;
+			nextSliceDate = runDate + RUN_INTERVAL_MILLIS;
+			List<SMUpdate> leaseUpdates = new ArrayList<SMUpdate>();
+			leaseUpdates.add(new SMSet("next_run_date", new SMInt(nextSliceDate)));
+			lease.update(dataService, leaseUpdates);
+			lease.release(dataService);
+		} else {
+			nextSliceDate = System.currentTimeMillis() + BATCH_PAUSE_MILLIS;
+		}
+	}
+
+	// remove one batch of expired events of the type, return the number of removed events
+	private int removeBatch(DataService dataService, int type, long cutoff, String archiveDirectory) throws InvalidSchemaException, DatastoreException, IOException, JSONException {
+		// fetch expired events
+		// - build query
+		List<SMCondition> eventQuery = new ArrayList<SMCondition>();
+		eventQuery.add(new SMEquals("type", new SMInt((long)type)));
+		eventQuery.add(new SMLess("createddate", new SMInt(cutoff)));
+		// - build result filter
+		List<String> fields = new ArrayList<String>();
+		fields.add("event_id");
+		fields.add("type");
+		fields.add("createddate");
+		fields.add("relationship_by_owner");
+		fields.add("relationship_by_owner.relationship_id");
+		fields.add("relationship_by_owner.receiver");
+		fields.add("relationship_by_receiver");
+		fields.add("relationship_by_receiver.relationship_id");
+		fields.add("relationship_by_receiver.owner");
+		ResultFilters filter = new ResultFilters(0, BATCH_SIZE - 1, null, fields);
+		// - execute query
+		List<SMObject> events = dataService.readObjects("event", eventQuery, 1, filter);
+		if (events == null || events.size() == 0) {
+			return 0;
+		}
+
+		// group events by relationship side
+		Map<String, List<SMString>> groupedEvents = new LinkedHashMap<String, List<SMString>>();
+		List<SMString> orphanEvents = new ArrayList<SMString>();
+		List<JSONObject> archived = new ArrayList<JSONObject>();
+		// number of grouped events by the user they are for
+		Map<String, Long> badgeTargets = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < events.size(); i++) {
+			SMObject eventObject = events.get(i);
+			SMString eventId = (SMString)eventObject.getValue().get("event_id");
+			String creatorRole = "";
+			if (eventObject.getValue().containsKey("relationship_by_owner")) {
+				creatorRole = "owner";
+			} else if (eventObject.getValue().containsKey("relationship_by_receiver")) {
+				creatorRole = "receiver";
+			}
+			JSONObject eventJson = new JSONObject();
+			eventJson.put("event_id", eventId.getValue());
+			eventJson.put("type", type);
+			eventJson.put("createddate", ((SMInt)eventObject.getValue().get("createddate")).getValue().longValue());
+			if (creatorRole.isEmpty()) {
+				orphanEvents.add(eventId);
+			} else {
+				SMObject relObject = (SMObject)eventObject.getValue().get("relationship_by_" + creatorRole);
+				SMString relId = (SMString)relObject.getValue().get("relationship_id");
+				String groupKey = relId.getValue() + "/events_by_" + creatorRole;
+				List<SMString> eventIdList = groupedEvents.get(groupKey);
+				if (eventIdList == null) {
+					eventIdList = new ArrayList<SMString>();
+					groupedEvents.put(groupKey, eventIdList);
+				}
+				eventIdList.add(eventId);
+				eventJson.put("relationship_id", relId.getValue());
+				eventJson.put("relationship_side", "events_by_" + creatorRole);
+				// the event is for the other side (no receiver for invites)
+				SMValue targetId = relObject.getValue().get(creatorRole.equals("owner") ? "receiver" : "owner");
+				if (targetId != null) {
+					String target = ((SMString)targetId).getValue();
+					Long targetCount = badgeTargets.get(target);
+					badgeTargets.put(target, new Long(targetCount == null ? 1L : targetCount.longValue() + 1L));
+				}
+			}
+			archived.add(eventJson);
+		}
+		// archive before removing, so that nothing is lost if archiving fails
+		if (!archiveDirectory.isEmpty()) {
+			archive(archiveDirectory, archived);
+		}
+
+		List<SMString> removedEvents = new ArrayList<SMString>();
+		for (String groupKey : groupedEvents.keySet()) {
+			SMString relId = new SMString(groupKey.substring(0, groupKey.indexOf('/')));
+			String eventKey = groupKey.substring(groupKey.indexOf('/') + 1);
+			List<SMString> eventIdList = groupedEvents.get(groupKey);
+			dataService.removeRelatedObjects("relationship", relId, eventKey, eventIdList, true);
+			removedEvents.addAll(eventIdList);
+		}
+		for (int i = 0; i < orphanEvents.size(); i++) {
+			dataService.deleteObject("event", orphanEvents.get(i));
+			removedEvents.add(orphanEvents.get(i));
+		}
+		StatusRequestIndex.getInstance().removeEvents(removedEvents);
+		NotificationInbox.getInstance().removeEvents(removedEvents);
+		for (String target : badgeTargets.keySet()) {
+			BadgeCounts.add(dataService, target, type, -badgeTargets.get(target).longValue());
+		}
+		return removedEvents.size();
+	}
+
+	// remove the expired inline events of one batch of relationships (paged by relationship id) on the side,
+	// return the number of removed events (inlineAfter is null again after the last batch)
+	private int removeInlineBatch(DataService dataService, String eventKey, String archiveDirectory) throws InvalidSchemaException, DatastoreException, IOException, JSONException {
+		// fetch the next relationships with inline events on the side
+		List<SMCondition> relQuery = new ArrayList<SMCondition>();
+		relQuery.add(new SMGreater(EventStore.versionKey(eventKey), new SMInt(0L)));
+		if (inlineAfter != null) {
+			relQuery.add(new SMGreater("relationship_id", new SMString(inlineAfter)));
+		}
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("relationship_id", OrderingDirection.ASCENDING));
+		List<String> fields = new ArrayList<String>();
+		fields.add("relationship_id");
+		fields.add("owner");
+		fields.add("receiver");
+		fields.add(EventStore.inlineKey(eventKey));
+		ResultFilters filter = new ResultFilters(0, BATCH_SIZE - 1, orderings, fields);
+		List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, filter);
+		if (rels == null) {
+			throw new IllegalStateException("relationships with inline events can't be read");
+		}
+		inlineAfter = rels.size() < BATCH_SIZE ? null : ((SMString)rels.get(rels.size() - 1).getValue().get("relationship_id")).getValue();
+
+		// expired events by relationship
+		Map<SMString, List<SMObject>> expiredByRel = new LinkedHashMap<SMString, List<SMObject>>();
+		List<JSONObject> archived = new ArrayList<JSONObject>();
+		for (int i = 0; i < rels.size(); i++) {
+			SMObject relObject = rels.get(i);
+			SMString relId = (SMString)relObject.getValue().get("relationship_id");
+			List<SMObject> eventList = EventStore.getEvents(relObject, eventKey);
+			List<SMObject> expiredList = new ArrayList<SMObject>();
+			for (int j = 0; j < eventList.size(); j++) {
+				SMObject eventObject = eventList.get(j);
+				int type = ((SMInt)eventObject.getValue().get("type")).getValue().intValue();
+				long createdDate = ((SMInt)eventObject.getValue().get("createddate")).getValue().longValue();
+				if (type > 0 && type < TTL_MILLIS.length && createdDate < runDate - TTL_MILLIS[type]) {
+					expiredList.add(eventObject);
+					JSONObject eventJson = new JSONObject();
+					eventJson.put("event_id", ((SMString)eventObject.getValue().get("event_id")).getValue());
+					eventJson.put("type", type);
+					eventJson.put("createddate", createdDate);
+					eventJson.put("relationship_id", relId.getValue());
+					eventJson.put("relationship_side", eventKey);
+					archived.add(eventJson);
+				}
+			}
+			if (expiredList.size() > 0) {
+				expiredByRel.put(relId, expiredList);
+			}
+		}
+		// archive before removing, so that nothing is lost if archiving fails
+		if (!archiveDirectory.isEmpty() && archived.size() > 0) {
+			archive(archiveDirectory, archived);
+		}
+
+		int removedCount = 0;
+		for (int i = 0; i < rels.size(); i++) {
+			SMObject relObject = rels.get(i);
+			SMString relId = (SMString)relObject.getValue().get("relationship_id");
+			List<SMObject> expiredList = expiredByRel.get(relId);
+			if (expiredList == null) {
+				continue;
+			}
+			List<SMString> expiredIds = EventStore.getIds(expiredList);
+			EventStore.removeEvents(dataService, relId, eventKey, expiredIds);
+			StatusRequestIndex.getInstance().removeEvents(expiredIds);
+			NotificationInbox.getInstance().removeEvents(expiredIds);
+			// the events are for the other side (no receiver for invites)
+			SMValue targetId = relObject.getValue().get(eventKey.equals("events_by_owner") ? "receiver" : "owner");
+			if (targetId != null) {
+				BadgeCounts.subtract(dataService, ((SMString)targetId).getValue(), expiredList);
+			}
+			removedCount += expiredIds.size();
+		}
+		return removedCount;
+	}
+
+	// append the events to today's archive (each call adds one gzip member)
+	private static synchronized void archive(String archiveDirectory, List<JSONObject> events) throws IOException {
+		File directory = new File(archiveDirectory);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create archive directory " + archiveDirectory);
+		}
+		String date = new SimpleDateFormat("yyyyMMdd").format(new Date());
+		File file = new File(directory, "events-" + date + ".ndjson.gz");
+		Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file, true)), "UTF-8");
+		try {
+			for (int i = 0; i < events.size(); i++) {
+				writer.write(events.get(i).toString());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+// events of a relationship side, stored either as linked event objects (events_by_<role>)
+// or inline as a packed string list on the relationship (inline_events_by_<role>, "type|createddate|event id")
+// both forms are always read, so the migration flag only changes where new events are written
+// an inline list is rewritten with a conditional update on its version (inline_events_by_<role>_version),
+// so a write based on an old list is refused and done again from the new one instead of dropping the other write
+// (a side's first inline write has no version to compare, it is conditional on the relationship's lastmoddate instead)
+// adding an inline event takes the flag lookup (cached by AppConfig), a read of the list and one conditional update
+public class EventStore {
+
+	// AppConfig setting (migration flag): write new events inline on the relationship instead of as event objects
+	public static final String INLINE_EVENTS_SETTING = "inline_events";
+	// an inline list is read & rewritten at most this many times when other writes get in between
+	public static final int MAX_WRITE_ATTEMPTS = 5;
+
+	private static final String INLINE_PREFIX = "inline.";
+
+	// name of the inline event list of a side
+	public static String inlineKey(String eventKey) {
+		return "inline_" + eventKey;
+	}
+
+	// name of the version of a side's inline event list
+	public static String versionKey(String eventKey) {
+		return inlineKey(eventKey) + "_version";
+	}
+
+	// check if the event is stored inline (inline event ids are "inline.<relationship id>.<role>.<uuid>")
+	public static boolean isInline(String eventId) {
+		return eventId.startsWith(INLINE_PREFIX);
+	}
+
+	public static String getInlineRelId(String eventId) {
+		return eventId.split("\\.")[1];
+	}
+
+	public static String getInlineEventKey(String eventId) {
+		return "events_by_" + eventId.split("\\.")[2];
+	}
+
+	// add the result fields of a side's events (the relationship is at prefix, e.g. "relationships_by_user.")
+	public static void addEventFields(List<String> fields, String prefix, String eventKey) {
+		fields.add(prefix + eventKey);
+		fields.add(prefix + eventKey + ".event_id");
+		fields.add(prefix + eventKey + ".type");
+		fields.add(prefix + eventKey + ".createddate");
+		fields.add(prefix + inlineKey(eventKey));
+	}
+
+	// events of a side (event_id, type, createddate) from an expanded relationship
+	public static List<SMObject> getEvents(SMObject relObject, String eventKey) {
+		List<SMObject> eventsList = new ArrayList<SMObject>();
+		if (relObject.getValue().containsKey(eventKey)) {
+			SMList<SMObject> eventsValue = (SMList<SMObject>)relObject.getValue().get(eventKey);
+			eventsList.addAll(eventsValue.getValue());
+		}
+		List<String> packedList = getPacked(relObject, eventKey);
+		for (int i = 0; i < packedList.size(); i++) {
+			String[] parts = packedList.get(i).split("\\|", 3);
+			Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
+			eventMap.put("event_id", new SMString(parts[2]));
+			eventMap.put("type", new SMInt(Long.parseLong(parts[0])));
+			eventMap.put("createddate", new SMInt(Long.parseLong(parts[1])));
+			eventsList.add(new SMObject(eventMap));
+		}
+		return eventsList;
+	}
+
+	// ids of events (from getEvents)
+	public static List<SMString> getIds(List<SMObject> events) {
+		List<SMString> eventIds = new ArrayList<SMString>();
+		for (int i = 0; i < events.size(); i++) {
+			eventIds.add((SMString)events.get(i).getValue().get("event_id"));
+		}
+		return eventIds;
+	}
+
+	// create an event on the side and return it (event_id, type, createddate), the replaced events of the side are removed first
+	// (inline events are removed in the same conditional rewrite that adds an inline event, linked ones by a separate removeRelatedObjects)
+	public static SMObject createEvent(DataService dataService, SMString relId, String eventKey, String username, long type, List<SMString> replacedEventIds) throws InvalidSchemaException, DatastoreException {
+		List<SMString> linkedIds = new ArrayList<SMString>();
+		Set<String> inlineIds = new HashSet<String>();
+		splitIds(replacedEventIds, linkedIds, inlineIds);
+		if (linkedIds.size() > 0) {
+			dataService.removeRelatedObjects("relationship", relId, eventKey, linkedIds, true);
+		}
+		if (AppConfig.getInstance().getBoolean(dataService, INLINE_EVENTS_SETTING, false)) {
+			String role = eventKey.substring(10); // length of "events_by_"
+			SMString eventId = new SMString(INLINE_PREFIX + relId.getValue() + "." + role + "." + UUID.randomUUID().toString().replace("-", ""));
+			long createdDate = System.currentTimeMillis();
+			rewriteInline(dataService, relId, eventKey, inlineIds, pack(type, createdDate, eventId.getValue()));
+			return newEvent(eventId, type, createdDate);
+		}
+		if (inlineIds.size() > 0) {
+			rewriteInline(dataService, relId, eventKey, inlineIds, null);
+		}
+		Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
+		eventMap.put("sm_owner", new SMString("user/" + username));
+		eventMap.put("type", new SMInt(type));
+		SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
+		// get the new event id
+		SMString eventId = (SMString)eventObject.getValue().get("event_id");
+		// add event in relationship's events_by_<role>
+		List<SMString> eventIdList = new ArrayList<SMString>();
+		eventIdList.add(eventId);
+		dataService.addRelatedObjects("relationship", relId, eventKey, eventIdList);
+		// add relationship as event's relationship_by_<role>
+		List<SMString> relIdList = new ArrayList<SMString>();
+		relIdList.add(relId);
+		dataService.addRelatedObjects("event", eventId, "relationship_by_" + eventKey.substring(10), relIdList);
+		SMInt createdDate = (SMInt)eventObject.getValue().get("createddate");
+		return newEvent(eventId, type, createdDate == null ? System.currentTimeMillis() : createdDate.getValue().longValue());
+	}
+
+	// remove & delete events of the side, in whichever form they are stored
+	public static void removeEvents(DataService dataService, SMString relId, String eventKey, List<SMString> eventIds) throws InvalidSchemaException, DatastoreException {
+		List<SMString> linkedIds = new ArrayList<SMString>();
+		Set<String> inlineIds = new HashSet<String>();
+		splitIds(eventIds, linkedIds, inlineIds);
+		if (linkedIds.size() > 0) {
+			dataService.removeRelatedObjects("relationship", relId, eventKey, linkedIds, true);
+		}
+		if (inlineIds.size() > 0) {
+			rewriteInline(dataService, relId, eventKey, inlineIds, null);
+		}
+	}
+
+	// rewrite the side's inline list without the removed events and with the added one (if any)
+	// the list is read again and the write is done again if another write changed its version meanwhile
+	private static void rewriteInline(DataService dataService, SMString relId, String eventKey, Set<String> removedIds, String added) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> relQuery = new ArrayList<SMCondition>();
+		relQuery.add(new SMEquals("relationship_id", relId));
+		List<String> relFields = new ArrayList<String>();
+		relFields.add(inlineKey(eventKey));
+		relFields.add(versionKey(eventKey));
+		relFields.add("lastmoddate");
+		ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
+		for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, relFilter);
+			if (rels == null || rels.size() != 1) {
+				return;
+			}
+			SMObject relObject = rels.get(0);
+			List<String> packedList = getPacked(relObject, eventKey);
+			List<SMString> keptList = new ArrayList<SMString>();
+			for (int i = 0; i < packedList.size(); i++) {
+				if (!removedIds.contains(unpackId(packedList.get(i)))) {
+					keptList.add(new SMString(packedList.get(i)));
+				}
+			}
+			if (added != null) {
+				keptList.add(new SMString(added));
+			} else if (keptList.size() == packedList.size()) {
+				return;
+			}
+			List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
+			relUpdates.add(new SMSet(inlineKey(eventKey), new SMList<SMString>(keptList)));
+			SMValue versionValue = relObject.getValue().get(versionKey(eventKey));
+			List<SMCondition> versionConditions = new ArrayList<SMCondition>();
+			if (versionValue == null) {
+				// first inline write of the side: no version to compare yet, so the relationship must not have changed since the read
+				// (e.g. by another first write, which would have set the version)
+				relUpdates.add(new SMSet(versionKey(eventKey), new SMInt(1L)));
+				versionConditions.add(new SMEquals("lastmoddate", (SMInt)relObject.getValue().get("lastmoddate")));
+			} else {
+				long version = ((SMInt)versionValue).getValue().longValue();
+				relUpdates.add(new SMSet(versionKey(eventKey), new SMInt(version + 1L)));
+				versionConditions.add(new SMEquals(versionKey(eventKey), new SMInt(version)));
+			}
+			// (no object is updated if the version or relationship changed since the read)
+			if (dataService.updateObject("relationship", relId, versionConditions, relUpdates) != null) {
+				return;
+			}
+		}
+		throw new ConcurrentModificationException("inline events of relationship " + relId.getValue() + " (" + eventKey + ") kept changing");
+	}
+
+	private static SMObject newEvent(SMString eventId, long type, long createdDate) {
+		Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
+		eventMap.put("event_id", eventId);
+		eventMap.put("type", new SMInt(type));
+		eventMap.put("createddate", new SMInt(createdDate));
+		return new SMObject(eventMap);
+	}
+
+	private static String pack(long type, long createdDate, String eventId) {
+		return type + "|" + createdDate + "|" + eventId;
+	}
+
+	private static String unpackId(String packed) {
+		return packed.substring(packed.indexOf('|', packed.indexOf('|') + 1) + 1);
+	}
+
+	private static void splitIds(List<SMString> eventIds, List<SMString> linkedIds, Set<String> inlineIds) {
+		for (int i = 0; i < eventIds.size(); i++) {
+			if (isInline(eventIds.get(i).getValue())) {
+				inlineIds.add(eventIds.get(i).getValue());
+			} else {
+				linkedIds.add(eventIds.get(i));
+			}
+		}
+	}
+
+	private static List<String> getPacked(SMObject relObject, String eventKey) {
+		List<String> packedList = new ArrayList<String>();
+		if (relObject.getValue().containsKey(inlineKey(eventKey))) {
+			SMList<SMString> packedValue = (SMList<SMString>)relObject.getValue().get(inlineKey(eventKey));
+			List<SMString> values = packedValue.getValue();
+			for (int i = 0; i < values.size(); i++) {
+				packedList.add(values.get(i).getValue());
+			}
+		}
+		return packedList;
+	}
+}
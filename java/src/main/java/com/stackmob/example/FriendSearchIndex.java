@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.lang.String;
+
+// per-user sorted prefix index over the friends' names and usernames
+// keys are "<lowercase word>\0<friend username>" for the username, the whole name and each later word of the name
+// which friends belong to a user comes from the social graph index, this only knows the names
+// a user's index is dropped (and the names read again) once it's older than REFRESH_INTERVAL_MILLIS, for names changed in other processes
+public class FriendSearchIndex {
+
+	// maximum number of indexed users, the least recently used are dropped (and read again when needed)
+	public static final int MAX_USERS = 10000;
+	// users' indexes are built again after this long
+	public static final long REFRESH_INTERVAL_MILLIS = 5L * 60L * 1000L;
+
+	private static final char SEPARATOR = '\0';
+
+	private static final FriendSearchIndex INSTANCE = new FriendSearchIndex();
+
+	public static FriendSearchIndex getInstance() {
+		return INSTANCE;
+	}
+
+	// friend username -> name
+	private final Map<String, String> names = new HashMap<String, String>();
+	// friend username -> users whose index has the friend
+	private final Map<String, Set<String>> indexedBy = new HashMap<String, Set<String>>();
+	private final Map<String, UserIndex> indexes = new LinkedHashMap<String, UserIndex>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UserIndex> eldest) {
+			if (size() > MAX_USERS) {
+				for (String friend : eldest.getValue().friends) {
+					unwatch(friend, eldest.getKey());
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+
+	// friends in the user's index (none if it's older than REFRESH_INTERVAL_MILLIS, it's dropped)
+	public synchronized Set<String> getIndexedFriends(String username, long now) {
+		UserIndex index = indexes.get(username);
+		if (index != null && now - index.buildDate >= REFRESH_INTERVAL_MILLIS) {
+			indexes.remove(username);
+			for (String friend : index.friends) {
+				unwatch(friend, username);
+			}
+			index = null;
+		}
+		return index == null ? new HashSet<String>() : new HashSet<String>(index.friends);
+	}
+
+	// add friends (username -> name, as just read) to the user's index
+	public synchronized void addFriends(String username, Map<String, String> friendNames, long now) {
+		UserIndex index = indexes.get(username);
+		if (index == null) {
+			index = new UserIndex(now);
+			indexes.put(username, index);
+		}
+		for (Map.Entry<String, String> entry : friendNames.entrySet()) {
+			String friend = entry.getKey();
+			// (a name read now is newer than the one other indexes have)
+			if (!names.containsKey(friend)) {
+				names.put(friend, entry.getValue());
+			} else if (!entry.getValue().equals(names.get(friend))) {
+				setName(friend, entry.getValue());
+			}
+			if (index.friends.add(friend)) {
+				addKeys(index, friend, names.get(friend));
+				Set<String> users = indexedBy.get(friend);
+				if (users == null) {
+					users = new HashSet<String>();
+					indexedBy.put(friend, users);
+				}
+				users.add(username);
+			}
+		}
+	}
+
+	// the user's name changed, re-key it in every index that has it
+	public synchronized void setName(String username, String name) {
+		Set<String> users = indexedBy.get(username);
+		if (users == null) {
+			return;
+		}
+		String oldName = names.put(username, name);
+		for (String user : users) {
+			UserIndex index = indexes.get(user);
+			if (index != null) {
+				if (oldName != null) {
+					removeKeys(index, username, oldName);
+				}
+				addKeys(index, username, name);
+			}
+		}
+	}
+
+	// up to limit friends (of the current ones) whose username or a word of the name starts with the prefix, as {username, name}
+	public synchronized List<String[]> search(String username, String prefix, Set<String> currentFriends, int limit) {
+		List<String[]> matches = new ArrayList<String[]>();
+		UserIndex index = indexes.get(username);
+		if (index == null) {
+			return matches;
+		}
+		String lowerPrefix = prefix.toLowerCase();
+		Set<String> found = new LinkedHashSet<String>();
+		for (Map.Entry<String, String> entry : index.keys.tailMap(lowerPrefix).entrySet()) {
+			if (!entry.getKey().startsWith(lowerPrefix) || found.size() >= limit) {
+				break;
+			}
+			if (currentFriends.contains(entry.getValue())) {
+				found.add(entry.getValue());
+			}
+		}
+		for (String friend : found) {
+			matches.add(new String[] {friend, names.get(friend)});
+		}
+		return matches;
+	}
+
+	private void unwatch(String friend, String username) {
+		Set<String> users = indexedBy.get(friend);
+		if (users != null) {
+			users.remove(username);
+			if (users.isEmpty()) {
+				indexedBy.remove(friend);
+				names.remove(friend);
+			}
+		}
+	}
+
+	private static void addKeys(UserIndex index, String friend, String name) {
+		List<String> words = getWords(friend, name);
+		for (int i = 0; i < words.size(); i++) {
+			index.keys.put(words.get(i) + SEPARATOR + friend, friend);
+		}
+	}
+
+	private static void removeKeys(UserIndex index, String friend, String name) {
+		List<String> words = getWords(friend, name);
+		for (int i = 0; i < words.size(); i++) {
+			index.keys.remove(words.get(i) + SEPARATOR + friend);
+		}
+	}
+
+	// the username, the whole name and the rest of the name from each later word
+	private static List<String> getWords(String friend, String name) {
+		List<String> words = new ArrayList<String>();
+		words.add(friend.toLowerCase());
+		if (name != null && !name.isEmpty()) {
+			String lowerName = name.toLowerCase();
+			words.add(lowerName);
+			for (int i = lowerName.indexOf(' '); i >= 0; i = lowerName.indexOf(' ', i + 1)) {
+				if (i + 1 < lowerName.length() && lowerName.charAt(i + 1) != ' ') {
+					words.add(lowerName.substring(i + 1));
+				}
+			}
+		}
+		return words;
+	}
+
+	private static class UserIndex {
+		final TreeMap<String, String> keys = new TreeMap<String, String>();
+		final Set<String> friends = new HashSet<String>();
+		final long buildDate;
+
+		UserIndex(long buildDate) {
+			this.buildDate = buildDate;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.System;
+
+public class FriendsAtPlaces implements CustomCodeMethod {
+
+	public static final int DEFAULT_LIMIT = 10;
+	public static final int MAX_LIMIT = 100;
+	// places of friends not in the place index yet are read this many at a time
+	public static final int READ_BATCH_SIZE = 100;
+
+	@Override
+	public String getMethodName() {
+		return "friends_at_places";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("place", "limit");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameters (place is optional, to also list the friends at it)
+		String place = request.getParams().get("place");
+		int limit = DEFAULT_LIMIT;
+		try {
+			String limitParam = request.getParams().get("limit");
+			if (limitParam != null && !limitParam.isEmpty()) {
+				limit = Integer.parseInt(limitParam);
+			}
+		} catch (NumberFormatException e) {
+			limit = -1;
+		}
+		if (limit < 1 || limit > MAX_LIMIT) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+
+			// 1. user's mutual friends (from the graph index, read if not loaded yet)
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			if (!graph.isLoaded(username)) {
+				List<SMString> userIdList = new ArrayList<SMString>();
+				userIdList.add(userId);
+				graph.loadUsers(dataService, userIdList);
+			}
+			int user = graph.getUserInt(username);
+			BitSet friends = user < 0 ? new BitSet() : graph.getFriendSet(user);
+
+			// 2. read places of friends not in the place index yet (or read more than PlaceIndex.REFRESH_INTERVAL_MILLIS ago)
+			PlaceIndex placeIndex = graph.getPlaceIndex();
+			long currentTime = System.currentTimeMillis();
+			List<SMString> unknownIds = new ArrayList<SMString>();
+			for (int friend = friends.nextSetBit(0); friend >= 0; friend = friends.nextSetBit(friend + 1)) {
+				if (!placeIndex.isKnown(friend, currentTime)) {
+					unknownIds.add(new SMString(graph.getUsername(friend)));
+				}
+			}
+			for (int i = 0; i < unknownIds.size(); i += READ_BATCH_SIZE) {
+				// - build query
+				List<SMCondition> friendQuery = new ArrayList<SMCondition>();
+				friendQuery.add(new SMIn("username", unknownIds.subList(i, Math.min(i + READ_BATCH_SIZE, unknownIds.size()))));
+				// - build result filter
+				List<String> friendFields = new ArrayList<String>();
+				friendFields.add("username");
+				friendFields.add("place");
+				ResultFilters friendFilter = new ResultFilters(0, -1, null, friendFields);
+				// - execute query
+				List<SMObject> friendObjects = dataService.readObjects("user", friendQuery, 0, friendFilter);
+				if (friendObjects != null) {
+					for (int j = 0; j < friendObjects.size(); j++) {
+						SMObject friendObject = friendObjects.get(j);
+						SMString placeValue = (SMString)friendObject.getValue().get("place");
+						placeIndex.load(((SMString)friendObject.getValue().get("username")).getValue(), (placeValue == null ? "" : placeValue.getValue()), currentTime);
+					}
+				}
+			}
+
+			// 3. top places by number of friends at them
+			final Map<String, Integer> counts = placeIndex.countByPlace(friends);
+			List<String> topPlaces = new ArrayList<String>(counts.keySet());
+			Collections.sort(topPlaces, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					int countA = counts.get(a).intValue();
+					int countB = counts.get(b).intValue();
+					if (countA != countB) {
+						return countA > countB ? -1 : 1;
+					}
+					return a.compareTo(b);
+				}
+			});
+			List<Map<String, Object>> places = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < topPlaces.size() && i < limit; i++) {
+				Map<String, Object> placeMap = new HashMap<String, Object>();
+				placeMap.put("place", topPlaces.get(i));
+				placeMap.put("count", new Long(counts.get(topPlaces.get(i)).longValue()));
+				places.add(placeMap);
+			}
+			returnMap.put("places", places);
+
+			// 4. friends at the requested place
+			if (place != null && !place.isEmpty()) {
+				List<String> friendIds = new ArrayList<String>();
+				BitSet atPlace = placeIndex.getUsersAt(place, friends);
+				for (int friend = atPlace.nextSetBit(0); friend >= 0; friend = atPlace.nextSetBit(friend + 1)) {
+					friendIds.add(graph.getUsername(friend));
+				}
+				returnMap.put("friends", friendIds);
+			}
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+}
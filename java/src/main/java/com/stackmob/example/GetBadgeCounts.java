@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+public class GetBadgeCounts implements CustomCodeMethod {
+
+	@Override
+	public String getMethodName() {
+		return "get_badge_counts";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// fetch user object
+			// - build query
+			List<SMCondition> userQuery = new ArrayList<SMCondition>();
+			userQuery.add(new SMEquals("username", userId));
+			// - build result filter
+			List<String> fields = new ArrayList<String>();
+			for (int type = 1; type <= BadgeCounts.MAX_EVENT_TYPE; type++) {
+				fields.add(BadgeCounts.fieldName(type));
+			}
+			ResultFilters filter = new ResultFilters(0, -1, null, fields);
+			// - execute query
+			List<SMObject> users = dataService.readObjects("user", userQuery, 0, filter);
+			// report error if query failed
+			if (users == null || users.size() != 1) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid user fetch");
+				errMap.put("detail", (users == null ? "null fetch result" : ("fetch result count = " + users.size())));
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+
+			SMObject userObject = users.get(0);
+			long[] counts = new long[BadgeCounts.MAX_EVENT_TYPE + 1];
+			boolean complete = true;
+			for (int type = 1; type <= BadgeCounts.MAX_EVENT_TYPE; type++) {
+				SMInt countValue = (SMInt)userObject.getValue().get(BadgeCounts.fieldName(type));
+				if (countValue == null) {
+					complete = false;
+				} else {
+					counts[type] = countValue.getValue().longValue();
+				}
+			}
+			// users from before the counters: count the events once and store the counters
+			// (not if the relationships can't be read, zeros would be stored as the user's counters)
+			if (!complete) {
+				counts = countEvents(dataService, userId);
+				if (counts == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid relationship fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				List<SMUpdate> userUpdates = new ArrayList<SMUpdate>();
+				BadgeCounts.addSets(userUpdates, counts);
+				dataService.updateObject("user", userId, userUpdates);
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			Map<String, Long> countMap = new HashMap<String, Long>();
+			long total = 0;
+			for (int type = 1; type <= BadgeCounts.MAX_EVENT_TYPE; type++) {
+				// (a counter may be off below zero after a lost update)
+				long count = Math.max(counts[type], 0L);
+				countMap.put(String.valueOf(type), new Long(count));
+				total += count;
+			}
+			returnMap.put("badge_counts", countMap);
+			returnMap.put("total", new Long(total));
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// count the events for the user by type from the relationships, only the ones get_database returns
+	// (none of deleted, blocked or invite relationships), null if the relationships can't be read
+	private static long[] countEvents(DataService dataService, SMString userId) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMEquals("username", userId));
+		List<String> fields = new ArrayList<String>();
+		fields.add("relationships_by_user");
+		fields.add("relationships_by_user.type_by_owner");
+		fields.add("relationships_by_user.type_by_receiver");
+		fields.add("relationships_by_user.invite_email");
+		EventStore.addEventFields(fields, "relationships_by_user.", "events_by_receiver");
+		fields.add("relationships_by_others");
+		fields.add("relationships_by_others.type_by_owner");
+		fields.add("relationships_by_others.type_by_receiver");
+		EventStore.addEventFields(fields, "relationships_by_others.", "events_by_owner");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> users = dataService.readObjects("user", userQuery, 2, filter);
+		if (users == null || users.size() != 1) {
+			return null;
+		}
+		List<SMObject> events = new ArrayList<SMObject>();
+		SMObject userObject = users.get(0);
+		String[] relKeys = {"relationships_by_user", "relationships_by_others"};
+		String[] userTypeKeys = {"type_by_owner", "type_by_receiver"};
+		String[] friendTypeKeys = {"type_by_receiver", "type_by_owner"};
+		String[] eventKeys = {"events_by_receiver", "events_by_owner"};
+		for (int k = 0; k < relKeys.length; k++) {
+			if (userObject.getValue().containsKey(relKeys[k])) {
+				List<SMObject> relList = ((SMList<SMObject>)userObject.getValue().get(relKeys[k])).getValue();
+				for (int i = 0; i < relList.size(); i++) {
+					SMObject relObject = relList.get(i);
+					// check if no types are block/delete
+					long typeUser = ((SMInt)relObject.getValue().get(userTypeKeys[k])).getValue().longValue();
+					long typeFriend = ((SMInt)relObject.getValue().get(friendTypeKeys[k])).getValue().longValue();
+					if (typeUser >= 2L || typeFriend >= 2L) {
+						continue;
+					}
+					// check if this relationship is an invite
+					SMString inviteValue = (SMString)relObject.getValue().get("invite_email");
+					if (inviteValue != null && !inviteValue.getValue().isEmpty()) {
+						continue;
+					}
+					events.addAll(EventStore.getEvents(relObject, eventKeys[k]));
+				}
+			}
+		}
+		return BadgeCounts.countTypes(events);
+	}
+}
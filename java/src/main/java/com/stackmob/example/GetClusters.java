@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Integer;
+import java.lang.System;
+
+public class GetClusters implements CustomCodeMethod {
+
+	// actions of friends not in the cluster index yet are read this many at a time
+	public static final int READ_BATCH_SIZE = 100;
+
+	@Override
+	public String getMethodName() {
+		return "get_clusters";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// 1. user's mutual friends (from the graph index, read if not loaded yet)
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			if (!graph.isLoaded(username)) {
+				List<SMString> userIdList = new ArrayList<SMString>();
+				userIdList.add(userId);
+				graph.loadUsers(dataService, userIdList);
+			}
+			int user = graph.addUser(username);
+			BitSet members = graph.getFriendSet(user);
+			members.set(user);
+
+			// 2. read links of the user & friends not in the cluster index yet (or read more than ClusterIndex.REFRESH_INTERVAL_MILLIS ago)
+			ClusterIndex clusterIndex = graph.getClusterIndex();
+			long currentTime = System.currentTimeMillis();
+			List<SMString> unknownIds = new ArrayList<SMString>();
+			for (int member = members.nextSetBit(0); member >= 0; member = members.nextSetBit(member + 1)) {
+				if (!clusterIndex.isKnown(member, currentTime)) {
+					unknownIds.add(new SMString(graph.getUsername(member)));
+				}
+			}
+			for (int i = 0; i < unknownIds.size(); i += READ_BATCH_SIZE) {
+				loadLinks(dataService, graph, unknownIds.subList(i, Math.min(i + READ_BATCH_SIZE, unknownIds.size())), currentTime);
+			}
+
+			// 3. group the user & friends by cluster
+			int[] memberInts = new int[members.cardinality()];
+			int count = 0;
+			for (int member = members.nextSetBit(0); member >= 0; member = members.nextSetBit(member + 1)) {
+				memberInts[count++] = member;
+			}
+			int[] roots = clusterIndex.getRoots(memberInts);
+			Map<Integer, List<String>> clusterMap = new LinkedHashMap<Integer, List<String>>();
+			for (int i = 0; i < memberInts.length; i++) {
+				Integer root = Integer.valueOf(roots[i]);
+				List<String> cluster = clusterMap.get(root);
+				if (cluster == null) {
+					cluster = new ArrayList<String>();
+					clusterMap.put(root, cluster);
+				}
+				cluster.add(graph.getUsername(memberInts[i]));
+			}
+			// only return friends who are together with someone
+			List<List<String>> clusters = new ArrayList<List<String>>();
+			for (List<String> cluster : clusterMap.values()) {
+				if (cluster.size() > 1) {
+					clusters.add(cluster);
+				}
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("clusters", clusters);
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// read the users' links (cluster_link) into the cluster index
+	// (users whose action hasn't changed since links were saved have none, their joining action is read instead, joins can't be)
+	private static void loadLinks(DataService dataService, SocialGraphIndex graph, List<SMString> userIds, long readDate) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMIn("username", userIds));
+		List<String> fields = new ArrayList<String>();
+		fields.add("username");
+		fields.add("action");
+		fields.add("cluster_link");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> users = dataService.readObjects("user", userQuery, 0, filter);
+		if (users == null) {
+			return;
+		}
+		ClusterIndex clusterIndex = graph.getClusterIndex();
+		// relationships of joining actions that are not in the graph index
+		Map<String, String> unknownRels = new HashMap<String, String>();
+		for (int i = 0; i < users.size(); i++) {
+			SMObject userObject = users.get(i);
+			String username = ((SMString)userObject.getValue().get("username")).getValue();
+			SMString linkValue = (SMString)userObject.getValue().get("cluster_link");
+			if (linkValue != null) {
+				clusterIndex.load(username, (linkValue.getValue().isEmpty() ? null : linkValue.getValue()), readDate);
+				continue;
+			}
+			SMString actionValue = (SMString)userObject.getValue().get("action");
+			String action = actionValue == null ? "" : actionValue.getValue();
+			if (!action.startsWith("joining:")) {
+				clusterIndex.load(username, null, readDate);
+				continue;
+			}
+			String relId = action.substring(8); // length of "joining:"
+			String friend = graph.getOtherUser(relId, username);
+			if (friend != null) {
+				clusterIndex.load(username, friend, readDate);
+			} else {
+				unknownRels.put(relId, username);
+			}
+		}
+		if (unknownRels.size() > 0) {
+			List<SMString> relIds = new ArrayList<SMString>();
+			for (String relId : unknownRels.keySet()) {
+				relIds.add(new SMString(relId));
+			}
+			List<SMCondition> relQuery = new ArrayList<SMCondition>();
+			relQuery.add(new SMIn("relationship_id", relIds));
+			List<String> relFields = new ArrayList<String>();
+			relFields.add("relationship_id");
+			relFields.add("type_by_owner");
+			relFields.add("type_by_receiver");
+			relFields.add("owner");
+			relFields.add("receiver");
+			ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
+			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, relFilter);
+			if (rels != null) {
+				for (int i = 0; i < rels.size(); i++) {
+					SMObject relObject = rels.get(i);
+					SMString relId = (SMString)relObject.getValue().get("relationship_id");
+					SMString ownerId = (SMString)relObject.getValue().get("owner");
+					SMString receiverId = (SMString)relObject.getValue().get("receiver");
+					if (ownerId == null || receiverId == null) {
+						continue;
+					}
+					graph.putRelationship(relId.getValue(), ownerId.getValue(), receiverId.getValue(),
+							((SMInt)relObject.getValue().get("type_by_owner")).getValue().longValue(), ((SMInt)relObject.getValue().get("type_by_receiver")).getValue().longValue());
+					String username = unknownRels.get(relId.getValue());
+					clusterIndex.load(username, graph.getOtherUser(relId.getValue(), username), readDate);
+				}
+			}
+		}
+	}
+}
@@ -113,16 +113,9 @@ public class GetDatabase implements CustomCodeMethod {
 			for (int i = 0; i < userStringFields.length; i++) {
 				fields.add("relationships_by_user.receiver." + userStringFields[i]);
 			}
-			for (int i = 0; i < statusStringFields.length; i++) {
-				fields.add("relationships_by_user.receiver." + statusStringFields[i]);
-			}
 			fields.add("relationships_by_user.receiver.user_mod_date");
-			fields.add("relationships_by_user.receiver.status_mod_date");
 			// -- 2.2. relationships by user's events
-			fields.add("relationships_by_user.events_by_receiver");
-			fields.add("relationships_by_user.events_by_receiver.event_id");
-			fields.add("relationships_by_user.events_by_receiver.type");
-			fields.add("relationships_by_user.events_by_receiver.createddate");
+			EventStore.addEventFields(fields, "relationships_by_user.", "events_by_receiver");
 			// -- 3. relationships by others
 			fields.add("relationships_by_others");
 			fields.add("relationships_by_others.relationship_id");
@@ -134,16 +127,9 @@ public class GetDatabase implements CustomCodeMethod {
 			for (int i = 0; i < userStringFields.length; i++) {
 				fields.add("relationships_by_others.owner." + userStringFields[i]);
 			}
-			for (int i = 0; i < statusStringFields.length; i++) {
-				fields.add("relationships_by_others.owner." + statusStringFields[i]);
-			}
 			fields.add("relationships_by_others.owner.user_mod_date");
-			fields.add("relationships_by_others.owner.status_mod_date");
 			// -- 3.2. relationships by others' events
-			fields.add("relationships_by_others.events_by_owner");
-			fields.add("relationships_by_others.events_by_owner.event_id");
-			fields.add("relationships_by_others.events_by_owner.type");
-			fields.add("relationships_by_others.events_by_owner.createddate");
+			EventStore.addEventFields(fields, "relationships_by_others.", "events_by_owner");
 			// -- 4. groups
 			fields.add("groups");
 			for (int i = 0; i < groupStringFields.length; i++) {
@@ -161,6 +147,7 @@ public class GetDatabase implements CustomCodeMethod {
 			}
 			
 			SMObject userObject = users.get(0);
+			SocialGraphIndex.getInstance().loadUser(username, userObject);
 			Map<String, Object> returnMap = new HashMap<String, Object>();
  			// 1. username
 			returnMap.put("username", username);
@@ -193,6 +180,8 @@ public class GetDatabase implements CustomCodeMethod {
 			}
 			// 4. friends
 			List<Map<String, Object>> friends = new ArrayList<Map<String, Object>>();
+			// mutual friends by username
+			Map<String, Map<String, Object>> mutualFriends = new HashMap<String, Map<String, Object>>();
 			// relationships by user
 			List<SMObject> relUserList = new ArrayList<SMObject>();
 			if (userObject.getValue().containsKey("relationships_by_user")) {
@@ -240,26 +229,13 @@ public class GetDatabase implements CustomCodeMethod {
 					}
 					// check if type is mutual friend
 					if (typeUser.longValue() == 2L && typeFriend.longValue() == 2L) {
-						// 4.6. action, place, status mod date (check status mod date)
-						SMInt fStatusModValue = (SMInt)friendObject.getValue().get("status_mod_date");
-						long fStatusModDate = fStatusModValue.getValue().longValue();
-						if (lastSyncDate < fStatusModDate) {
-							for (int j = 0; j < statusStringFields.length; j++) {
-								SMString fieldValue = (SMString)friendObject.getValue().get(statusStringFields[j]);
-								friendMap.put(statusStringFields[j], fieldValue.getValue());
-							}
-							friendMap.put("status_mod_date", fStatusModValue.getValue());
-						}
+						// 4.6. action, place, status mod date (read below, only if changed since last sync)
+						mutualFriends.put(friendIdValue.getValue(), friendMap);
 					}
 					// check if no types are block/delete
 					if (typeUser.longValue() < 2L && typeFriend.longValue() < 2L) {
 						// 4.7. events
-						List<SMObject> eventsList = new ArrayList<SMObject>();
-						if (relObject.getValue().containsKey("events_by_receiver")) {
-							SMList<SMObject> eventsValue = (SMList<SMObject>)relObject.getValue().get("events_by_receiver");
-							eventsList = eventsValue.getValue();
-						}
-						friendMap.put("events", eventsList);
+						friendMap.put("events", EventStore.getEvents(relObject, "events_by_receiver"));
 					}
 				} else {
 					friendMap.put("invite_email", inviteValue.getValue());
@@ -311,29 +287,68 @@ public class GetDatabase implements CustomCodeMethod {
 				}
 				// check if type is mutual friend
 				if (typeUser.longValue() == 2L && typeFriend.longValue() == 2L) {
-					// 4.6. action, place, status mod date (check status mod date)
-					SMInt fStatusModValue = (SMInt)friendObject.getValue().get("status_mod_date");
-					long fStatusModDate = fStatusModValue.getValue().longValue();
-					if (lastSyncDate < fStatusModDate) {
-						for (int j = 0; j < statusStringFields.length; j++) {
-							SMString fieldValue = (SMString)friendObject.getValue().get(statusStringFields[j]);
-							friendMap.put(statusStringFields[j], fieldValue.getValue());
-						}
-						friendMap.put("status_mod_date", fStatusModValue.getValue());
-					}
+					// 4.6. action, place, status mod date (read below, only if changed since last sync)
+					mutualFriends.put(friendIdValue.getValue(), friendMap);
 				}
 				// check if no types are block/delete
 				if (typeUser.longValue() < 2L && typeFriend.longValue() < 2L) {
 					// 4.7. events
-					List<SMObject> eventsList = new ArrayList<SMObject>();
-					if (relObject.getValue().containsKey("events_by_owner")) {
-						SMList<SMObject> eventsValue = (SMList<SMObject>)relObject.getValue().get("events_by_owner");
-						eventsList = eventsValue.getValue();
-					}
-					friendMap.put("events", eventsList);
+					friendMap.put("events", EventStore.getEvents(relObject, "events_by_owner"));
 				}
 				friends.add(friendMap);
 			}
+			// 4.8. statuses of the mutual friends changed since last sync, from the status inbox (O(changes))
+			// or, if last sync predates the inboxes, read through the status_mod_date index (O(friends))
+			if (mutualFriends.size() > 0) {
+				List<SMObject> changes;
+				if (StatusInbox.isComplete(dataService, lastSyncDate)) {
+					changes = StatusInbox.readSince(dataService, username, lastSyncDate);
+				} else {
+					List<SMString> mutualIds = new ArrayList<SMString>();
+					for (String friendId : mutualFriends.keySet()) {
+						mutualIds.add(new SMString(friendId));
+					}
+					changes = GetStatusUpdates.readChangedStatuses(dataService, mutualIds, lastSyncDate);
+				}
+				if (changes == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid friend fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				for (int i = 0; i < changes.size(); i++) {
+					SMObject changeObject = changes.get(i);
+					// (inbox changes name the friend, user objects the username)
+					SMValue friendIdValue = changeObject.getValue().containsKey("friend") ? changeObject.getValue().get("friend") : changeObject.getValue().get("username");
+					Map<String, Object> friendMap = mutualFriends.get(((SMString)friendIdValue).getValue());
+					// (changes of relationships that are no longer mutual are skipped)
+					if (friendMap == null) {
+						continue;
+					}
+					for (int j = 0; j < statusStringFields.length; j++) {
+						SMString fieldValue = (SMString)changeObject.getValue().get(statusStringFields[j]);
+						friendMap.put(statusStringFields[j], fieldValue.getValue());
+					}
+					friendMap.put("status_mod_date", ((SMInt)changeObject.getValue().get("status_mod_date")).getValue());
+				}
+			}
+			// 4.9. mutual friend counts (from the graph index, left out where they can't be counted exactly)
+			// (the friends' relationships may be up to SocialGraphIndex.RELOAD_INTERVAL_MILLIS old, so a count may be off by changes made since in other processes)
+			List<String> friendNames = new ArrayList<String>();
+			List<Map<String, Object>> namedFriends = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < friends.size(); i++) {
+				Map<String, Object> friendMap = friends.get(i);
+				if (friendMap.containsKey("username")) {
+					friendNames.add((String)friendMap.get("username"));
+					namedFriends.add(friendMap);
+				}
+			}
+			int[] mutualCounts = SocialGraphIndex.getInstance().countMutualFriends(dataService, username, friendNames);
+			for (int i = 0; i < namedFriends.size(); i++) {
+				if (mutualCounts[i] >= 0) {
+					namedFriends.get(i).put("mutual_count", new Long(mutualCounts[i]));
+				}
+			}
 			returnMap.put("friends", friends);
 			
 			// 5. groups (check groups mod date)
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.Double;
+import java.lang.System;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class GetImportJob implements CustomCodeMethod {
+
+	// maximum number of chunk results returned by one poll
+	public static final int MAX_CHUNKS = 10;
+
+	@Override
+	public String getMethodName() {
+		return "get_import_job";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("job_id", "from_chunk");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+
+		// get the parameters (results are returned from from_chunk on, MAX_CHUNKS at a time)
+		String jobIdString = request.getParams().get("job_id");
+		if (jobIdString == null || jobIdString.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "job_id parameter not found");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+		SMString jobId = new SMString(jobIdString);
+		int fromChunk = 0;
+		try {
+			String fromParam = request.getParams().get("from_chunk");
+			if (fromParam != null && !fromParam.isEmpty()) {
+				fromChunk = Integer.parseInt(fromParam);
+			}
+		} catch (NumberFormatException e) {
+			fromChunk = -1;
+		}
+		if (fromChunk < 0) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// fetch job object
+			List<SMCondition> jobQuery = new ArrayList<SMCondition>();
+			jobQuery.add(new SMEquals("import_job_id", jobId));
+			List<SMObject> jobs = dataService.readObjects("import_job", jobQuery);
+			// report error if query failed
+			if (jobs == null || jobs.size() != 1) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid import job fetch");
+				errMap.put("detail", (jobs == null ? "null fetch result" : ("fetch result count = " + jobs.size())));
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+			SMObject jobObject = jobs.get(0);
+			if (!((SMString)jobObject.getValue().get("username")).getValue().equals(username)) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "requested import job is inaccessible by this user");
+				return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+			}
+			String status = ((SMString)jobObject.getValue().get("status")).getValue();
+
+			// fetch the results of the done chunks from from_chunk on
+			// - build query
+			List<SMCondition> chunkQuery = new ArrayList<SMCondition>();
+			chunkQuery.add(new SMEquals("import_job_id", jobId));
+			chunkQuery.add(new SMGreaterOrEqual("chunk", new SMInt((long)fromChunk)));
+			chunkQuery.add(new SMLess("chunk", new SMInt((long)(fromChunk + MAX_CHUNKS))));
+			// - build result filter
+			List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+			orderings.add(new SMOrdering("chunk", OrderingDirection.ASCENDING));
+			List<String> fields = new ArrayList<String>();
+			fields.add("chunk");
+			fields.add("result");
+			ResultFilters filter = new ResultFilters(0, -1, orderings, fields);
+			// - execute query
+			List<SMObject> chunkObjects = dataService.readObjects("import_chunk", chunkQuery, 0, filter);
+			// report error if query failed
+			if (chunkObjects == null) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid import chunk fetch");
+				errMap.put("detail", "null fetch result");
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+			List<Map<String, Object>> chunkMaps = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < chunkObjects.size(); i++) {
+				SMObject chunkObject = chunkObjects.get(i);
+				Long chunk = ((SMInt)chunkObject.getValue().get("chunk")).getValue();
+				Map<String, Object> chunkMap = toMap(new JSONObject(((SMString)chunkObject.getValue().get("result")).getValue()));
+				chunkMap.put("chunk", chunk);
+				chunkMaps.add(chunkMap);
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("job_id", jobId);
+			returnMap.put("status", status);
+			returnMap.put("chunk_count", (SMInt)jobObject.getValue().get("chunk_count"));
+			returnMap.put("completed_chunks", (SMInt)jobObject.getValue().get("next_chunk"));
+			// throughput: usernames of the completed chunks per second since the job was saved (until it was done)
+			int usernameCount = ((SMList<SMString>)jobObject.getValue().get("usernames")).getValue().size();
+			long processedCount = Math.min(((SMInt)jobObject.getValue().get("next_chunk")).getValue().longValue() * ImportJobs.CHUNK_SIZE, (long)usernameCount);
+			SMInt doneValue = (SMInt)jobObject.getValue().get("done_date");
+			long endDate = doneValue == null ? System.currentTimeMillis() : doneValue.getValue().longValue();
+			long elapsedMillis = Math.max(1L, endDate - ((SMInt)jobObject.getValue().get("createddate")).getValue().longValue());
+			returnMap.put("processed_count", new Long(processedCount));
+			returnMap.put("elapsed_millis", new Long(elapsedMillis));
+			returnMap.put("usernames_per_second", new Double(processedCount * 1000.0 / elapsedMillis));
+			returnMap.put("chunks", chunkMaps);
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// saved chunk results back to maps & lists for the response
+	private static Map<String, Object> toMap(JSONObject jsonObj) throws JSONException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		Iterator keys = jsonObj.keys();
+		while (keys.hasNext()) {
+			String key = (String)keys.next();
+			map.put(key, toValue(jsonObj.get(key)));
+		}
+		return map;
+	}
+
+	private static Object toValue(Object value) throws JSONException {
+		if (value instanceof JSONObject) {
+			return toMap((JSONObject)value);
+		}
+		if (value instanceof JSONArray) {
+			JSONArray jsonArray = (JSONArray)value;
+			List<Object> list = new ArrayList<Object>();
+			for (int i = 0; i < jsonArray.length(); i++) {
+				list.add(toValue(jsonArray.get(i)));
+			}
+			return list;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Arrays;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+public class GetInbox implements CustomCodeMethod {
+
+	public static final int DEFAULT_LIMIT = 20;
+	public static final int MAX_LIMIT = 100;
+
+	@Override
+	public String getMethodName() {
+		return "get_inbox";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("cursor", "limit");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameters (cursor is "<createddate>:<event id>" of the last event of the previous page)
+		NotificationInbox.Ref cursor = null;
+		int limit = DEFAULT_LIMIT;
+		try {
+			String cursorParam = request.getParams().get("cursor");
+			if (cursorParam != null && !cursorParam.isEmpty()) {
+				int separator = cursorParam.indexOf(':');
+				cursor = new NotificationInbox.Ref(cursorParam.substring(separator + 1), 0L, Long.parseLong(cursorParam.substring(0, separator)), "", "");
+			}
+			String limitParam = request.getParams().get("limit");
+			if (limitParam != null && !limitParam.isEmpty()) {
+				limit = Integer.parseInt(limitParam);
+			}
+		} catch (Exception e) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+		if (limit < 1 || limit > MAX_LIMIT) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// load the user's inbox from the relationships (again if it was loaded more than REFRESH_INTERVAL_MILLIS ago)
+			NotificationInbox inbox = NotificationInbox.getInstance();
+			long currentTime = System.currentTimeMillis();
+			if (!inbox.isLoaded(username, currentTime)) {
+				inbox.beginLoad(username);
+				List<NotificationInbox.Ref> refs = null;
+				try {
+					refs = readEvents(dataService, userId);
+				} finally {
+					if (refs == null) {
+						inbox.cancelLoad(username);
+					}
+				}
+				// report error if query failed (the inbox stays unloaded)
+				if (refs == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid user fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				inbox.finishLoad(username, refs, currentTime);
+			}
+
+			// one more than the limit tells if there is a next page
+			List<NotificationInbox.Ref> page = inbox.getPage(username, cursor, limit + 1);
+			List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < page.size() && i < limit; i++) {
+				NotificationInbox.Ref ref = page.get(i);
+				Map<String, Object> eventMap = new HashMap<String, Object>();
+				eventMap.put("event_id", ref.eventId);
+				eventMap.put("type", new Long(ref.type));
+				eventMap.put("createddate", new Long(ref.createdDate));
+				eventMap.put("relationship_id", ref.relId);
+				eventMap.put("username", ref.from);
+				events.add(eventMap);
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("events", events);
+			if (page.size() > limit) {
+				NotificationInbox.Ref last = page.get(limit - 1);
+				returnMap.put("next_cursor", last.createdDate + ":" + last.eventId);
+			}
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// read the events for the user from the relationships, only the ones get_database returns
+	// (none of deleted, blocked or invite relationships), null if the user can't be read
+	private static List<NotificationInbox.Ref> readEvents(DataService dataService, SMString userId) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMEquals("username", userId));
+		List<String> fields = new ArrayList<String>();
+		String[] relKeys = {"relationships_by_user", "relationships_by_others"};
+		String[] friendKeys = {"receiver", "owner"};
+		String[] userTypeKeys = {"type_by_owner", "type_by_receiver"};
+		String[] friendTypeKeys = {"type_by_receiver", "type_by_owner"};
+		String[] eventKeys = {"events_by_receiver", "events_by_owner"};
+		for (int k = 0; k < relKeys.length; k++) {
+			fields.add(relKeys[k]);
+			fields.add(relKeys[k] + ".relationship_id");
+			fields.add(relKeys[k] + ".type_by_owner");
+			fields.add(relKeys[k] + ".type_by_receiver");
+			fields.add(relKeys[k] + "." + friendKeys[k]);
+			fields.add(relKeys[k] + "." + friendKeys[k] + ".username");
+			EventStore.addEventFields(fields, relKeys[k] + ".", eventKeys[k]);
+		}
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> users = dataService.readObjects("user", userQuery, 2, filter);
+		if (users == null || users.size() != 1) {
+			return null;
+		}
+		List<NotificationInbox.Ref> refs = new ArrayList<NotificationInbox.Ref>();
+		SMObject userObject = users.get(0);
+		for (int k = 0; k < relKeys.length; k++) {
+			if (!userObject.getValue().containsKey(relKeys[k])) {
+				continue;
+			}
+			List<SMObject> relList = ((SMList<SMObject>)userObject.getValue().get(relKeys[k])).getValue();
+			for (int i = 0; i < relList.size(); i++) {
+				SMObject relObject = relList.get(i);
+				// invites have no friend and no events for the user
+				if (!relObject.getValue().containsKey(friendKeys[k])) {
+					continue;
+				}
+				// check if no types are block/delete
+				long typeUser = ((SMInt)relObject.getValue().get(userTypeKeys[k])).getValue().longValue();
+				long typeFriend = ((SMInt)relObject.getValue().get(friendTypeKeys[k])).getValue().longValue();
+				if (typeUser >= 2L || typeFriend >= 2L) {
+					continue;
+				}
+				SMString relId = (SMString)relObject.getValue().get("relationship_id");
+				SMObject friendObject = (SMObject)relObject.getValue().get(friendKeys[k]);
+				SMString friendId = (SMString)friendObject.getValue().get("username");
+				List<SMObject> eventsList = EventStore.getEvents(relObject, eventKeys[k]);
+				for (int j = 0; j < eventsList.size(); j++) {
+					SMObject eventObject = eventsList.get(j);
+					refs.add(new NotificationInbox.Ref(((SMString)eventObject.getValue().get("event_id")).getValue(),
+							((SMInt)eventObject.getValue().get("type")).getValue().longValue(),
+							((SMInt)eventObject.getValue().get("createddate")).getValue().longValue(),
+							relId.getValue(), friendId.getValue()));
+				}
+			}
+		}
+		return refs;
+	}
+}
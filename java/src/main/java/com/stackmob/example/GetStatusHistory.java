@@ -0,0 +1,195 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+public class GetStatusHistory implements CustomCodeMethod {
+
+	@Override
+	public String getMethodName() {
+		return "get_status_history";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("username", "from", "to");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameters (the history of the user or a mutual friend, from & to are inclusive status mod dates)
+		String historyName = request.getParams().get("username");
+		if (historyName == null || historyName.isEmpty()) {
+			historyName = username;
+		}
+		long from = 0L;
+		long to = System.currentTimeMillis();
+		try {
+			String fromParam = request.getParams().get("from");
+			if (fromParam != null && !fromParam.isEmpty()) {
+				from = Long.parseLong(fromParam);
+			}
+			String toParam = request.getParams().get("to");
+			if (toParam != null && !toParam.isEmpty()) {
+				to = Long.parseLong(toParam);
+			}
+		} catch (NumberFormatException e) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+		if (from > to) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// only allow the user's own history or a mutual friend's (checked in the datastore, not the process-local graph index)
+			if (!historyName.equals(username)) {
+				// fetch the mutual relationship between the two users (either may own it)
+				// - build query
+				List<SMString> pairIds = new ArrayList<SMString>();
+				pairIds.add(userId);
+				pairIds.add(new SMString(historyName));
+				List<SMCondition> relQuery = new ArrayList<SMCondition>();
+				relQuery.add(new SMIn("owner", pairIds));
+				relQuery.add(new SMIn("receiver", pairIds));
+				relQuery.add(new SMEquals("type_by_owner", new SMInt(2L)));
+				relQuery.add(new SMEquals("type_by_receiver", new SMInt(2L)));
+				// - build result filter
+				List<String> relFields = new ArrayList<String>();
+				relFields.add("relationship_id");
+				ResultFilters relFilter = new ResultFilters(0, 0, null, relFields);
+				// - execute query
+				List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, relFilter);
+				// report error if query failed
+				if (rels == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid relationship fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				if (rels.size() == 0) {
+					HashMap<String, String> errParams = new HashMap<String, String>();
+					errParams.put("error", "requested history is inaccessible by this user");
+					return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+				}
+			}
+
+			// fetch the blocks overlapping the range
+			// - build query
+			List<SMCondition> blockQuery = new ArrayList<SMCondition>();
+			blockQuery.add(new SMEquals("username", new SMString(historyName)));
+			blockQuery.add(new SMLessOrEqual("start_date", new SMInt(to)));
+			blockQuery.add(new SMGreaterOrEqual("end_date", new SMInt(from)));
+			// - build result filter
+			List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+			orderings.add(new SMOrdering("start_date", OrderingDirection.ASCENDING));
+			List<String> fields = new ArrayList<String>();
+			fields.add("status_history_id");
+			fields.add("dictionary");
+			fields.add("data");
+			ResultFilters filter = new ResultFilters(0, -1, orderings, fields);
+			// - execute query
+			List<SMObject> blocks = dataService.readObjects("status_history", blockQuery, 0, filter);
+			// report error if query failed
+			if (blocks == null) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid status history fetch");
+				errMap.put("detail", "null fetch result");
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+
+			// decode only the blocks in the range, oldest first
+			List<Map<String, Object>> statuses = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < blocks.size(); i++) {
+				StatusHistory.Block block = StatusHistory.Block.fromObject(blocks.get(i));
+				for (int j = 0; j < block.getSize(); j++) {
+					long date = block.getDate(j);
+					if (date < from || date > to) {
+						continue;
+					}
+					Map<String, Object> statusMap = new HashMap<String, Object>();
+					statusMap.put("action", block.getAction(j));
+					statusMap.put("place", block.getPlace(j));
+					statusMap.put("status_mod_date", new Long(date));
+					statuses.add(statusMap);
+				}
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("username", historyName);
+			returnMap.put("statuses", statuses);
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Arrays;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+public class GetStatusUpdates implements CustomCodeMethod {
+
+	@Override
+	public String getMethodName() {
+		return "get_status_updates";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("since");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameter
+		long since = 0;
+		try {
+			since = Long.parseLong(request.getParams().get("since"));
+		} catch (Exception e) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			long currentTime = System.currentTimeMillis();
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			List<Map<String, Object>> friends = new ArrayList<Map<String, Object>>();
+
+			// 1. read the friends' status changes from the user's status inbox (O(changes))
+			if (StatusInbox.isComplete(dataService, since)) {
+				List<SMObject> changes = StatusInbox.readSince(dataService, username, since);
+				if (changes != null) {
+					changes = StatusInbox.keepMutual(dataService, changes);
+				}
+				if (changes == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid status change fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				for (int i = 0; i < changes.size(); i++) {
+					SMObject changeObject = changes.get(i);
+					Map<String, Object> friendMap = new HashMap<String, Object>();
+					friendMap.put("relationship_id", ((SMString)changeObject.getValue().get("relationship_id")).getValue());
+					friendMap.put("username", ((SMString)changeObject.getValue().get("friend")).getValue());
+					friendMap.put("action", ((SMString)changeObject.getValue().get("action")).getValue());
+					friendMap.put("place", ((SMString)changeObject.getValue().get("place")).getValue());
+					friendMap.put("status_mod_date", ((SMInt)changeObject.getValue().get("status_mod_date")).getValue());
+					friends.add(friendMap);
+				}
+				returnMap.put("friends", friends);
+				returnMap.put("last_sync_date", new Long(currentTime));
+				return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+			}
+
+			// 2. (since predates the inboxes) find the mutual friends (relationship ids only, friends are not expanded)
+			List<String> relFields = new ArrayList<String>();
+			relFields.add("relationship_id");
+			relFields.add("type_by_owner");
+			relFields.add("type_by_receiver");
+			relFields.add("owner");
+			relFields.add("receiver");
+			ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
+			// - relationships by user
+			List<SMCondition> relQuery = new ArrayList<SMCondition>();
+			relQuery.add(new SMEquals("owner", userId));
+			List<SMObject> relsByUser = dataService.readObjects("relationship", relQuery, 0, relFilter);
+			// - relationships by others
+			relQuery = new ArrayList<SMCondition>();
+			relQuery.add(new SMEquals("receiver", userId));
+			List<SMObject> relsByOthers = dataService.readObjects("relationship", relQuery, 0, relFilter);
+			if (relsByUser == null || relsByOthers == null) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid relationship fetch");
+				errMap.put("detail", "null fetch result");
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+			Map<String, String> relIdsByFriend = new HashMap<String, String>();
+			addMutualFriends(relsByUser, "receiver", relIdsByFriend);
+			addMutualFriends(relsByOthers, "owner", relIdsByFriend);
+
+			// 3. read only the friends whose status changed after since
+			if (relIdsByFriend.size() > 0) {
+				List<SMString> friendIds = new ArrayList<SMString>();
+				for (String friendId : relIdsByFriend.keySet()) {
+					friendIds.add(new SMString(friendId));
+				}
+				List<SMObject> changedFriends = readChangedStatuses(dataService, friendIds, since);
+				if (changedFriends == null) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid user fetch");
+					errMap.put("detail", "null fetch result");
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
+				for (int i = 0; i < changedFriends.size(); i++) {
+					SMObject friendObject = changedFriends.get(i);
+					String friendId = ((SMString)friendObject.getValue().get("username")).getValue();
+					Map<String, Object> friendMap = new HashMap<String, Object>();
+					friendMap.put("relationship_id", relIdsByFriend.get(friendId));
+					friendMap.put("username", friendId);
+					friendMap.put("action", ((SMString)friendObject.getValue().get("action")).getValue());
+					friendMap.put("place", ((SMString)friendObject.getValue().get("place")).getValue());
+					friendMap.put("status_mod_date", ((SMInt)friendObject.getValue().get("status_mod_date")).getValue());
+					friends.add(friendMap);
+				}
+			}
+			returnMap.put("friends", friends);
+
+			// return the changed statuses
+			returnMap.put("last_sync_date", new Long(currentTime));
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// read the statuses of the friends changed after the given date (through the status_mod_date index),
+	// StatusInbox.READ_BATCH_SIZE friends per query, null if they can't be read
+	static List<SMObject> readChangedStatuses(DataService dataService, List<SMString> friendIds, long since) throws InvalidSchemaException, DatastoreException {
+		List<String> friendFields = new ArrayList<String>();
+		friendFields.add("username");
+		friendFields.add("action");
+		friendFields.add("place");
+		friendFields.add("status_mod_date");
+		ResultFilters friendFilter = new ResultFilters(0, -1, null, friendFields);
+		List<SMObject> changedFriends = new ArrayList<SMObject>();
+		for (int start = 0; start < friendIds.size(); start += StatusInbox.READ_BATCH_SIZE) {
+			List<SMCondition> friendQuery = new ArrayList<SMCondition>();
+			friendQuery.add(new SMIn("username", new ArrayList<SMString>(friendIds.subList(start, Math.min(start + StatusInbox.READ_BATCH_SIZE, friendIds.size())))));
+			friendQuery.add(new SMGreater("status_mod_date", new SMInt(since)));
+			List<SMObject> friendObjects = dataService.readObjects("user", friendQuery, 0, friendFilter);
+			if (friendObjects == null) {
+				return null;
+			}
+			changedFriends.addAll(friendObjects);
+		}
+		return changedFriends;
+	}
+
+	// map each mutual friend in the relationships to the relationship id
+	private static void addMutualFriends(List<SMObject> rels, String friendRole, Map<String, String> relIdsByFriend) {
+		for (int i = 0; i < rels.size(); i++) {
+			SMObject relObject = rels.get(i);
+			SMInt typeOwner = (SMInt)relObject.getValue().get("type_by_owner");
+			SMInt typeReceiver = (SMInt)relObject.getValue().get("type_by_receiver");
+			if (typeOwner.getValue().longValue() != 2L || typeReceiver.getValue().longValue() != 2L) {
+				continue;
+			}
+			SMString friendId = (SMString)relObject.getValue().get(friendRole);
+			relIdsByFriend.put(friendId.getValue(), ((SMString)relObject.getValue().get("relationship_id")).getValue());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.rest.ResponseToProcess;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.lang.String;
+import java.lang.System;
+
+// bounded store of recent idempotency keys and their responses (process-local)
+public class IdempotencyStore {
+
+	// maximum number of keys kept in memory (oldest keys are dropped first)
+	public static final int MAX_ENTRIES = 10000;
+	// how long a response is replayed for the same key
+	public static final long TTL_MILLIS = 60L * 60L * 1000L;
+
+	private static final IdempotencyStore INSTANCE = new IdempotencyStore();
+
+	public static IdempotencyStore getInstance() {
+		return INSTANCE;
+	}
+
+	// keys in insertion order, so the eldest entry is also the first one to expire
+	private final LinkedHashMap<String, Slot> entries = new LinkedHashMap<String, Slot>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	// store the given entry if the key is not in use and return null,
+	// otherwise return the live entry of the key
+	public synchronized Slot putIfAbsent(String key, Slot slot) {
+		long currentTime = System.currentTimeMillis();
+		expire(currentTime);
+		Slot oldSlot = entries.get(key);
+		if (oldSlot != null) {
+			return oldSlot;
+		}
+		slot.createdDate = currentTime;
+		entries.put(key, slot);
+		return null;
+	}
+
+	// forget the key (only if it still belongs to the given entry)
+	public synchronized void remove(String key, Slot slot) {
+		if (entries.get(key) == slot) {
+			entries.remove(key);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void expire(long currentTime) {
+		Iterator<Slot> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Slot slot = it.next();
+			if (currentTime - slot.createdDate < TTL_MILLIS) {
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	// response of one idempotency key, available once the first request is done
+	public static class Slot {
+		private final CountDownLatch done = new CountDownLatch(1);
+		// hash of the first request with the key
+		private final String fingerprint;
+		private volatile ResponseToProcess response = null;
+		private long createdDate = 0;
+
+		public Slot(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		public void complete(ResponseToProcess response) {
+			this.response = response;
+			done.countDown();
+		}
+
+		// wait for the first request to finish, return null if it takes too long
+		public ResponseToProcess await(long timeoutMillis) throws InterruptedException {
+			if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return null;
+			}
+			return response;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.lang.String;
+import java.lang.StringBuilder;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// wraps a mutating method so that a retried request with the same idempotency_key
+// returns the original response instead of running the method again
+// a key reused with another verb, other parameters or another body is refused (the key must not replay another request's response)
+public class IdempotentMethod implements CustomCodeMethod {
+
+	public static final String KEY_PARAM = "idempotency_key";
+	// how long a retry waits for the original request to finish
+	public static final long PENDING_WAIT_MILLIS = 30L * 1000L;
+	public static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+	private final CustomCodeMethod method;
+
+	public IdempotentMethod(CustomCodeMethod method) {
+		this.method = method;
+	}
+
+	@Override
+	public String getMethodName() {
+		return method.getMethodName();
+	}
+
+	@Override
+	public List<String> getParams() {
+		List<String> params = new ArrayList<String>(method.getParams());
+		params.add(KEY_PARAM);
+		return params;
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// requests without a key or a logged-in user are not tracked
+		String username = request.getLoggedInUser();
+		String idempotencyKey = getKey(request);
+		if (username == null || username.isEmpty() || idempotencyKey.isEmpty()) {
+			return method.execute(request, serviceProvider);
+		}
+		// keys are only unique per method and user
+		String key = getMethodName() + "/" + username + "/" + idempotencyKey;
+
+		IdempotencyStore store = IdempotencyStore.getInstance();
+		IdempotencyStore.Slot slot = new IdempotencyStore.Slot(getFingerprint(request));
+		IdempotencyStore.Slot oldSlot = store.putIfAbsent(key, slot);
+		// replay the response of the first request with this key (if it was the same request)
+		if (oldSlot != null) {
+			if (!oldSlot.getFingerprint().equals(slot.getFingerprint())) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "idempotency key was used for a different request");
+				return new ResponseToProcess(HTTP_UNPROCESSABLE_ENTITY, errParams); // http 422 - unprocessable entity
+			}
+			ResponseToProcess response = null;
+			try {
+				response = oldSlot.await(PENDING_WAIT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (response == null) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "request with this idempotency key is in progress");
+				return new ResponseToProcess(HttpURLConnection.HTTP_CONFLICT, errParams); // http 409 - conflict
+			}
+			return response;
+		}
+
+		ResponseToProcess response = null;
+		try {
+			response = method.execute(request, serviceProvider);
+			return response;
+		} finally {
+			// do not keep server errors, so that the client can retry them
+			if (response == null || response.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				store.remove(key, slot);
+			}
+			slot.complete(response);
+		}
+	}
+
+	// hash of the request's verb, parameters (except the key) and body
+	static String getFingerprint(ProcessedAPIRequest request) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(request.getVerb() == null ? "" : request.getVerb().toString()).append('\n');
+		if (request.getParams() != null) {
+			// (sorted, so the parameters' order doesn't matter)
+			for (Map.Entry<String, String> param : new TreeMap<String, String>(request.getParams()).entrySet()) {
+				if (!param.getKey().equals(KEY_PARAM)) {
+					builder.append(param.getKey()).append('=').append(param.getValue()).append('\n');
+				}
+			}
+		}
+		builder.append('\n');
+		if (request.getBody() != null) {
+			builder.append(request.getBody());
+		}
+		return DigestUtils.sha256Hex(builder.toString());
+	}
+
+	// the key is accepted either as a request parameter or in the request body
+	private static String getKey(ProcessedAPIRequest request) {
+		if (request.getParams() != null) {
+			String key = request.getParams().get(KEY_PARAM);
+			if (key != null && !key.isEmpty()) {
+				return key;
+			}
+		}
+		String body = request.getBody();
+		if (body != null && !body.isEmpty()) {
+			try {
+				JSONObject jsonObj = new JSONObject(body);
+				if (!jsonObj.isNull(KEY_PARAM)) {
+					return jsonObj.getString(KEY_PARAM);
+				}
+			} catch (JSONException e) {
+				// invalid body is reported by the wrapped method
+			}
+		}
+		return "";
+	}
+}
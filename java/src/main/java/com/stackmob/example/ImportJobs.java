@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.lang.String;
+import java.lang.System;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// jobs over many usernames, run CHUNK_SIZE usernames at a time: contact imports of create_relationships ("contacts" jobs)
+// and bulk_initialize_users ("initialize" jobs)
+// the chunks are run by the worker (run_background_work): a slice takes the oldest running job whose lease is free,
+// and runs its chunks for up to RUN_BUDGET_MILLIS; get_import_job only reads the job's progress & chunk results
+// a slice first claims the job's lease (worker & heartbeat_date in "import_job") with a conditional update,
+// so only one slice of any process runs the job, and a lease not renewed for LEASE_TIMEOUT_MILLIS can be claimed by another slice
+// after each chunk its result is saved in "import_chunk" (one object per job & chunk) and the job's next_chunk is moved on
+// (only by the lease's worker), so the next slice continues from the last checkpoint
+// a chunk failing MAX_ATTEMPTS times fails the job, which continues from its checkpoint when resumed (resume_import_job)
+public class ImportJobs extends BackgroundWork.Task {
+
+	public static final String KIND_CONTACTS = "contacts";
+	public static final String KIND_INITIALIZE = "initialize";
+
+	public static final int CHUNK_SIZE = 100;
+	// maximum number of usernames in one import
+	public static final int MAX_USERNAMES = 10000;
+	// time a slice spends running a job's chunks (at least one chunk is run)
+	public static final long RUN_BUDGET_MILLIS = 2000L;
+	// a lease whose heartbeat is older than this can be claimed by another slice (longer than a slice's chunks take)
+	public static final long LEASE_TIMEOUT_MILLIS = 60L * 1000L;
+	// a chunk is tried this many times (by the following slices) before the job fails
+	public static final int MAX_ATTEMPTS = 3;
+	// jobs are looked for again after this long when there were none to run
+	public static final long POLL_INTERVAL_MILLIS = 10L * 1000L;
+
+	private static final ImportJobs INSTANCE = new ImportJobs();
+
+	public static ImportJobs getInstance() {
+		return INSTANCE;
+	}
+
+	private volatile long nextPollDate = 0L;
+
+	private ImportJobs() {
+		BackgroundWork.getInstance().register(this);
+	}
+
+	// save a new job of the kind for the user's usernames (without duplicates), return the job object
+	public SMObject start(DataService dataService, String username, String kind, List<SMString> usernames) throws InvalidSchemaException, DatastoreException {
+		List<SMString> jobIds = new ArrayList<SMString>(new LinkedHashSet<SMString>(usernames));
+		Map<String, SMValue> jobMap = new HashMap<String, SMValue>();
+		jobMap.put("sm_owner", new SMString("user/" + username));
+		jobMap.put("username", new SMString(username));
+		jobMap.put("kind", new SMString(kind));
+		jobMap.put("usernames", new SMList<SMString>(jobIds));
+		jobMap.put("chunk_count", new SMInt((long)((jobIds.size() + CHUNK_SIZE - 1) / CHUNK_SIZE)));
+		jobMap.put("next_chunk", new SMInt(0L));
+		jobMap.put("attempts", new SMInt(0L));
+		jobMap.put("status", new SMString("running"));
+		jobMap.put("worker", new SMString(""));
+		jobMap.put("heartbeat_date", new SMInt(0L));
+		SMObject jobObject = dataService.createObject("import_job", new SMObject(jobMap));
+		nextPollDate = 0L;
+		return jobObject;
+	}
+
+	// set a failed job running again from its checkpoint, return false if it's not failed anymore
+	public boolean resume(DataService dataService, SMString jobId) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> jobConditions = new ArrayList<SMCondition>();
+		jobConditions.add(new SMEquals("status", new SMString("failed")));
+		List<SMUpdate> jobUpdates = new ArrayList<SMUpdate>();
+		jobUpdates.add(new SMSet("status", new SMString("running")));
+		jobUpdates.add(new SMSet("attempts", new SMInt(0L)));
+		if (dataService.updateObject("import_job", jobId, jobConditions, jobUpdates) == null) {
+			return false;
+		}
+		nextPollDate = 0L;
+		return true;
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextPollDate;
+	}
+
+	// run the next chunks of the oldest running job that no other slice holds
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws InvalidSchemaException, DatastoreException {
+		DataService dataService = serviceProvider.getDataService();
+		long now = System.currentTimeMillis();
+		List<SMCondition> jobQuery = new ArrayList<SMCondition>();
+		jobQuery.add(new SMEquals("status", new SMString("running")));
+		jobQuery.add(new SMLessOrEqual("heartbeat_date", new SMInt(now - LEASE_TIMEOUT_MILLIS)));
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("createddate", OrderingDirection.ASCENDING));
+		List<SMObject> jobObjects = dataService.readObjects("import_job", jobQuery, 0, new ResultFilters(0, 0, orderings, null));
+		if (jobObjects == null || jobObjects.size() == 0) {
+			nextPollDate = now + POLL_INTERVAL_MILLIS;
+			return;
+		}
+		Job job = new Job(jobObjects.get(0));
+		// (another slice claimed it since the read, the next slice looks for another job)
+		if (!job.claim(dataService)) {
+			return;
+		}
+		try {
+			job.run(serviceProvider);
+		} finally {
+			job.release(serviceProvider);
+		}
+	}
+
+	private class Job {
+		final SMString id;
+		final String username;
+		final String kind;
+		final List<SMString> usernames;
+		final int chunkCount;
+		// heartbeat of the lease as read
+		final SMInt heartbeatDate;
+		int nextChunk;
+		int attempts;
+		String status = "running";
+		// this slice's worker id, once the lease is claimed
+		SMString worker;
+
+		Job(SMObject jobObject) {
+			this.id = (SMString)jobObject.getValue().get("import_job_id");
+			this.username = ((SMString)jobObject.getValue().get("username")).getValue();
+			this.kind = ((SMString)jobObject.getValue().get("kind")).getValue();
+			this.usernames = ((SMList<SMString>)jobObject.getValue().get("usernames")).getValue();
+			this.chunkCount = ((SMInt)jobObject.getValue().get("chunk_count")).getValue().intValue();
+			this.nextChunk = ((SMInt)jobObject.getValue().get("next_chunk")).getValue().intValue();
+			this.attempts = ((SMInt)jobObject.getValue().get("attempts")).getValue().intValue();
+			this.heartbeatDate = (SMInt)jobObject.getValue().get("heartbeat_date");
+		}
+
+		// claim the lease (false if another slice claimed or renewed it since the read)
+		boolean claim(DataService dataService) throws InvalidSchemaException, DatastoreException {
+			SMString newWorker = new SMString(UUID.randomUUID().toString());
+			List<SMUpdate> jobUpdates = new ArrayList<SMUpdate>();
+			jobUpdates.add(new SMSet("worker", newWorker));
+			jobUpdates.add(new SMSet("heartbeat_date", new SMInt(System.currentTimeMillis())));
+			List<SMCondition> jobConditions = new ArrayList<SMCondition>();
+			jobConditions.add(new SMEquals("heartbeat_date", heartbeatDate));
+			if (dataService.updateObject("import_job", id, jobConditions, jobUpdates) == null) {
+				return false;
+			}
+			worker = newWorker;
+			return true;
+		}
+
+		// update the job if this slice still holds the lease, renewing it (false if the lease was lost)
+		boolean update(DataService dataService, List<SMUpdate> jobUpdates) throws InvalidSchemaException, DatastoreException {
+			List<SMUpdate> leaseUpdates = new ArrayList<SMUpdate>(jobUpdates);
+			leaseUpdates.add(new SMSet("heartbeat_date", new SMInt(System.currentTimeMillis())));
+			List<SMCondition> jobConditions = new ArrayList<SMCondition>();
+			jobConditions.add(new SMEquals("worker", worker));
+			return dataService.updateObject("import_job", id, jobConditions, leaseUpdates) != null;
+		}
+
+		// free the lease so the next slice doesn't wait for it to expire
+		void release(SDKServiceProvider serviceProvider) {
+			try {
+				List<SMUpdate> jobUpdates = new ArrayList<SMUpdate>();
+				jobUpdates.add(new SMSet("heartbeat_date", new SMInt(0L)));
+				List<SMCondition> jobConditions = new ArrayList<SMCondition>();
+				jobConditions.add(new SMEquals("worker", worker));
+				serviceProvider.getDataService().updateObject("import_job", id, jobConditions, jobUpdates);
+			} catch (Exception e) {
+				// (the lease expires after LEASE_TIMEOUT_MILLIS anyway)
+				LoggerService logger = serviceProvider.getLoggerService(ImportJobs.class);
+				logger.warn("failed to release the lease of import job " + id.getValue(), e);
+			}
+		}
+
+		void run(SDKServiceProvider serviceProvider) {
+			DataService dataService = serviceProvider.getDataService();
+			LoggerService logger = serviceProvider.getLoggerService(ImportJobs.class);
+			long deadline = System.currentTimeMillis() + RUN_BUDGET_MILLIS;
+			do {
+				try {
+					if (nextChunk < chunkCount) {
+						runChunk(dataService);
+					}
+					// checkpoint: the chunk is done, move on to the next one (or end the job)
+					List<SMUpdate> jobUpdates = new ArrayList<SMUpdate>();
+					jobUpdates.add(new SMSet("next_chunk", new SMInt((long)(nextChunk + 1))));
+					jobUpdates.add(new SMSet("attempts", new SMInt(0L)));
+					long now = System.currentTimeMillis();
+					if (nextChunk + 1 >= chunkCount) {
+						jobUpdates.add(new SMSet("status", new SMString("done")));
+						jobUpdates.add(new SMSet("done_date", new SMInt(now)));
+					}
+					if (!update(dataService, jobUpdates)) {
+						// another slice claimed the expired lease, it runs the chunk again
+						logger.warn("import job " + id.getValue() + " lost its lease at chunk " + nextChunk);
+						return;
+					}
+					nextChunk++;
+					attempts = 0;
+					if (nextChunk >= chunkCount) {
+						status = "done";
+					}
+				} catch (Exception e) {
+					logger.error("import job " + id.getValue() + " failed at chunk " + nextChunk, e);
+					try {
+						List<SMUpdate> jobUpdates = new ArrayList<SMUpdate>();
+						jobUpdates.add(new SMSet("attempts", new SMInt((long)(attempts + 1))));
+						if (attempts + 1 >= MAX_ATTEMPTS) {
+							jobUpdates.add(new SMSet("status", new SMString("failed")));
+						}
+						if (update(dataService, jobUpdates)) {
+							attempts++;
+							if (attempts >= MAX_ATTEMPTS) {
+								status = "failed";
+							}
+						}
+					} catch (Exception updateException) {
+						logger.error("failed to count the failed attempt of import job " + id.getValue(), updateException);
+					}
+					return;
+				}
+			} while (status.equals("running") && System.currentTimeMillis() < deadline);
+		}
+
+		// run the next chunk and save its result
+		// (a chunk run again after a crash only finds the relationships it created or the users it initialized already,
+		// its new result is saved over the old one)
+		private void runChunk(DataService dataService) throws InvalidSchemaException, DatastoreException, InterruptedException, JSONException {
+			int from = nextChunk * CHUNK_SIZE;
+			List<SMString> reqIds = new ArrayList<SMString>(usernames.subList(from, Math.min(from + CHUNK_SIZE, usernames.size())));
+			JSONObject chunkJson = kind.equals(KIND_INITIALIZE) ? BulkInitializeUsers.initializeChunk(dataService, reqIds) : addFriends(dataService, reqIds);
+
+			Map<String, SMValue> chunkMap = new HashMap<String, SMValue>();
+			chunkMap.put("sm_owner", new SMString("user/" + username));
+			chunkMap.put("import_job_id", id);
+			chunkMap.put("chunk", new SMInt((long)nextChunk));
+			chunkMap.put("result", new SMString(chunkJson.toString()));
+			KeyedObjects.put(dataService, "import_chunk", "import_chunk_id", id.getValue() + "-" + nextChunk, new ArrayList<SMCondition>(), chunkMap);
+		}
+
+		// add the friends of a chunk, return the chunk's result
+		private JSONObject addFriends(DataService dataService, List<SMString> reqIds) throws InvalidSchemaException, DatastoreException, JSONException {
+			CreateRelationships.Result result = CreateRelationships.addFriends(dataService, username, reqIds);
+			if (result.userFetchError != null) {
+				throw new IllegalStateException("invalid user fetch: " + result.userFetchError);
+			}
+
+			JSONObject chunkJson = new JSONObject();
+			JSONArray friendsJson = new JSONArray();
+			for (int i = 0; i < result.friends.size(); i++) {
+				JSONObject friendJson = new JSONObject();
+				for (Map.Entry<String, Object> field : result.friends.get(i).entrySet()) {
+					Object value = field.getValue();
+					friendJson.put(field.getKey(), value instanceof SMValue ? ((SMValue)value).getValue() : value);
+				}
+				friendsJson.put(friendJson);
+			}
+			chunkJson.put("friends", friendsJson);
+			if (result.errorIds != null) {
+				JSONArray errorJson = new JSONArray();
+				for (int i = 0; i < result.errorIds.size(); i++) {
+					errorJson.put(result.errorIds.get(i).getValue());
+				}
+				chunkJson.put("error", errorJson);
+			}
+			return chunkJson;
+		}
+	}
+}
@@ -82,6 +82,7 @@ public class InitializeUser implements CustomCodeMethod {
 			// - build result filter
 			List<String> userFields = new ArrayList<String>();
 			userFields.add("groups");
+			userFields.add("group_order");
 			ResultFilters userFilter = new ResultFilters(0, -1, null, userFields);
 			// - execute query
 			List<SMObject> users = dataService.readObjects("user", userQuery, 0, userFilter);
@@ -94,98 +95,23 @@ public class InitializeUser implements CustomCodeMethod {
 			}
 			
 			SMObject userObject = users.get(0);
-			// report error if the user already have groups
-			if (userObject.getValue().containsKey("groups")) {
-				List<SMString> groups = ((SMList<SMString>)userObject.getValue().get("groups")).getValue();
-				if (groups.size() > 0) {
-					HashMap<String, String> errMap = new HashMap<String, String>();
-					errMap.put("error", "user already has groups");
-					return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errMap); // http 400 - bad request
-				}
+			// report error if the user is initialized already
+			// (a user with groups but no group order was partly initialized, its groups are reused)
+			if (isInitialized(userObject)) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "user already has groups");
+				return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errMap); // http 400 - bad request
 			}
 			
-			// fetch relationship object
-			// - build query
-			List<SMCondition> relQuery = new ArrayList<SMCondition>();
-			relQuery.add(new SMEquals("invite_email", userId));
-			// - build result filter
-			List<String> relFields = new ArrayList<String>();
-			relFields.add("relationship_id");
-			ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
-			// - execute query
-			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, relFilter);
-			// report error if query failed
-			if (rels == null) {
+			// set initial fields, create initial groups & connect invited relationships
+			Map<String, Object> returnMap = initialize(dataService, username, getGroupIds(userObject));
+			// report error if invite or group query failed
+			if (returnMap == null) {
 				HashMap<String, String> errMap = new HashMap<String, String>();
-				errMap.put("error", "invalid relationship fetch");
+				errMap.put("error", "invalid relationship or group fetch");
 				errMap.put("detail", "null fetch result");
 				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
 			}
-			
-			Map<String, Object> returnMap = new HashMap<String, Object>();
-			
-			// 1. set initial user's fields
-			List<SMUpdate> userUpdates = new ArrayList<SMUpdate>();
-			userUpdates.add(new SMSet("name", userId));
-			userUpdates.add(new SMSet("action", new SMString("")));
-			userUpdates.add(new SMSet("place", new SMString("")));
-			long currentTime = System.currentTimeMillis();
-			userUpdates.add(new SMSet("user_mod_date", new SMInt(currentTime)));
-			userUpdates.add(new SMSet("status_mod_date", new SMInt(currentTime)));
-			userUpdates.add(new SMSet("groups_mod_date", new SMInt(currentTime)));
-			
-			// 2. create initial groups
-			List<String> titles = Arrays.asList("Favorites", "Close friends", "Family");
-			List<SMString> groupIdList = new ArrayList<SMString>();
-			for (int i = 0; i < titles.size(); i++) {
-				String title = titles.get(i);
-				// create a group
-				Map<String, SMValue> groupMap = new HashMap<String, SMValue>();
-				groupMap.put("sm_owner", new SMString("user/" + username));
-				groupMap.put("title", new SMString(title));
-				SMObject groupObject = dataService.createObject("group", new SMObject(groupMap));
-				// get the group id
-				SMString groupId = (SMString)groupObject.getValue().get("group_id");
-				// store group id for adding later
-				groupIdList.add(groupId);
-				// add user as group's owner
-				List<SMString> ownerIdList = new ArrayList<SMString>();
-				ownerIdList.add(userId);
-				dataService.addRelatedObjects("group", groupId, "owner", ownerIdList);
-			}
-			// add all groups in user's groups
-			dataService.addRelatedObjects("user", userId, "groups", groupIdList);
-			
-			// update user's group order
-			userUpdates.add(new SMSet("group_order", new SMList<SMString>(groupIdList)));
-			dataService.updateObject("user", userId, userUpdates);
-			
-			returnMap.put("group_order", groupIdList);
-			
-			// 3. connect invited relationships to user
-			List<SMString> relIds = new ArrayList<SMString>();
-			List<SMString> userIdList = new ArrayList<SMString>();
-			userIdList.add(userId);
-			for (int i = 0; i < rels.size(); i++) {
-				SMObject relObject = rels.get(i);
-				SMString relId = (SMString)relObject.getValue().get("relationship_id");
-				// store relationship for adding later
-				relIds.add(relId);
-				// add user as relationship's receiver
-				dataService.addRelatedObjects("relationship", relId, "receiver", userIdList);
-				// empty invite email
-				List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
-				relUpdates.add(new SMSet("invite_email", new SMString("")));
-				dataService.updateObject("relationship", relId, relUpdates);
-			}
-			// add all relationships in user's relationships_by_others
-			if (relIds.size() > 0) {
-				dataService.addRelatedObjects("user", userId, "relationships_by_others", relIds);
-			}
-			returnMap.put("relationship_ids", relIds);
-			
-			// return updated data for local database
-			returnMap.put("last_sync_date", new Long(currentTime));
 			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
 		} catch (InvalidSchemaException e) {
 			HashMap<String, String> errMap = new HashMap<String, String>();
@@ -204,4 +130,153 @@ public class InitializeUser implements CustomCodeMethod {
 			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
 		}
 	}
+	
+	// true if the user was initialized (its group order is only set when the initialization is done)
+	static boolean isInitialized(SMObject userObject) {
+		return userObject.getValue().containsKey("group_order") && ((SMList<SMString>)userObject.getValue().get("group_order")).getValue().size() > 0;
+	}
+
+	// the user's groups (none for a user not initialized, the ones linked already for a user partly initialized)
+	static List<SMString> getGroupIds(SMObject userObject) {
+		if (!userObject.getValue().containsKey("groups")) {
+			return new ArrayList<SMString>();
+		}
+		return ((SMList<SMString>)userObject.getValue().get("groups")).getValue();
+	}
+
+	// set the initial fields of a user not initialized, create the initial groups & connect the user's invited relationships
+	// the groups are linked to the user as soon as they are created, so that an initialization failing later leaves no orphan groups,
+	// and one run again (with linkedGroupIds, the user's groups) reuses them by title instead of creating them twice
+	// return the data for local database (null if the invites or the linked groups can't be read)
+	static Map<String, Object> initialize(DataService dataService, final String username, List<SMString> linkedGroupIds) throws InvalidSchemaException, DatastoreException {
+		SMString userId = new SMString(username);
+		// fetch relationship object (the user's invites, from the invite index)
+		// - build result filter
+		List<String> relFields = new ArrayList<String>();
+		relFields.add("relationship_id");
+		EventStore.addEventFields(relFields, "", "events_by_owner");
+		// - execute query
+		List<SMObject> rels = InviteIndex.getInstance().readInvites(dataService, username, relFields, 1);
+		// report error if query failed
+		if (rels == null) {
+			return null;
+		}
+		// fetch the titles of the groups linked by an earlier run
+		Map<String, SMString> linkedGroups = new HashMap<String, SMString>();
+		if (linkedGroupIds.size() > 0) {
+			List<SMCondition> groupQuery = new ArrayList<SMCondition>();
+			groupQuery.add(new SMIn("group_id", linkedGroupIds));
+			List<String> groupFields = new ArrayList<String>();
+			groupFields.add("group_id");
+			groupFields.add("title");
+			List<SMObject> groups = dataService.readObjects("group", groupQuery, 0, new ResultFilters(0, -1, null, groupFields));
+			if (groups == null) {
+				return null;
+			}
+			for (int i = 0; i < groups.size(); i++) {
+				SMObject groupObject = groups.get(i);
+				linkedGroups.put(((SMString)groupObject.getValue().get("title")).getValue(), (SMString)groupObject.getValue().get("group_id"));
+			}
+		}
+		
+		Map<String, Object> returnMap = new HashMap<String, Object>();
+		
+		// 1. set initial user's fields
+		List<SMUpdate> userUpdates = new ArrayList<SMUpdate>();
+		userUpdates.add(new SMSet("name", userId));
+		userUpdates.add(new SMSet("action", new SMString("")));
+		userUpdates.add(new SMSet("place", new SMString("")));
+		userUpdates.add(new SMSet("cluster_link", new SMString("")));
+		long currentTime = System.currentTimeMillis();
+		userUpdates.add(new SMSet("user_mod_date", new SMInt(currentTime)));
+		userUpdates.add(new SMSet("status_mod_date", new SMInt(currentTime)));
+		userUpdates.add(new SMSet("groups_mod_date", new SMInt(currentTime)));
+		// badge counts start with the friend requests of the invites
+		List<SMObject> inviteEvents = new ArrayList<SMObject>();
+		for (int i = 0; i < rels.size(); i++) {
+			inviteEvents.addAll(EventStore.getEvents(rels.get(i), "events_by_owner"));
+		}
+		BadgeCounts.addSets(userUpdates, BadgeCounts.countTypes(inviteEvents));
+		
+		// 2. create initial groups & connect invited relationships to user
+		// (the writes are independent, they run in parallel so that the number of invites doesn't add round trips)
+		final DataService writeDataService = dataService;
+		final List<SMString> userIdList = new ArrayList<SMString>();
+		userIdList.add(userId);
+		List<ParallelWrites.Write> writes = new ArrayList<ParallelWrites.Write>();
+		// - groups (the ones not linked by an earlier run)
+		List<String> titles = Arrays.asList("Favorites", "Close friends", "Family");
+		final SMString[] groupIds = new SMString[titles.size()];
+		for (int i = 0; i < titles.size(); i++) {
+			groupIds[i] = linkedGroups.get(titles.get(i));
+			if (groupIds[i] != null) {
+				continue;
+			}
+			final int index = i;
+			final Map<String, SMValue> groupMap = new HashMap<String, SMValue>();
+			groupMap.put("sm_owner", new SMString("user/" + username));
+			groupMap.put("title", new SMString(titles.get(i)));
+			writes.add(new ParallelWrites.Write() {
+				@Override
+				public void run() throws InvalidSchemaException, DatastoreException {
+					// create a group
+					SMObject groupObject = writeDataService.createObject("group", new SMObject(groupMap));
+					// get the group id
+					groupIds[index] = (SMString)groupObject.getValue().get("group_id");
+					// add group in user's groups right away (whatever happens to the other writes)
+					List<SMString> groupIdList = new ArrayList<SMString>();
+					groupIdList.add(groupIds[index]);
+					writeDataService.addRelatedObjects("user", userIdList.get(0), "groups", groupIdList);
+					// add user as group's owner
+					writeDataService.addRelatedObjects("group", groupIds[index], "owner", userIdList);
+				}
+			});
+		}
+		// - invited relationships
+		// (one write each: the SDK relates objects to one parent object per call and updates one object per call,
+		// so neither the receivers nor the invite email updates can be batched over relationships)
+		final List<SMString> relIds = new ArrayList<SMString>();
+		for (int i = 0; i < rels.size(); i++) {
+			final SMString relId = (SMString)rels.get(i).getValue().get("relationship_id");
+			// store relationship for adding later
+			relIds.add(relId);
+			writes.add(new ParallelWrites.Write() {
+				@Override
+				public void run() throws InvalidSchemaException, DatastoreException {
+					// add user as relationship's receiver
+					writeDataService.addRelatedObjects("relationship", relId, "receiver", userIdList);
+					// empty invite email
+					List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
+					relUpdates.add(new SMSet("invite_email", new SMString("")));
+					writeDataService.updateObject("relationship", relId, relUpdates);
+					InviteIndex.getInstance().remove(username, relId.getValue());
+				}
+			});
+		}
+		// add all relationships in user's relationships_by_others (one call, the user is the parent)
+		if (relIds.size() > 0) {
+			writes.add(new ParallelWrites.Write() {
+				@Override
+				public void run() throws InvalidSchemaException, DatastoreException {
+					writeDataService.addRelatedObjects("user", userIdList.get(0), "relationships_by_others", relIds);
+				}
+			});
+		}
+		ParallelWrites.runAll(writes);
+		
+		// 3. update user's fields & group order (last, it marks the user as initialized)
+		List<SMString> groupIdList = new ArrayList<SMString>(Arrays.asList(groupIds));
+		userUpdates.add(new SMSet("group_order", new SMList<SMString>(groupIdList)));
+		dataService.updateObject("user", userId, userUpdates);
+		
+		returnMap.put("group_order", groupIdList);
+		returnMap.put("relationship_ids", relIds);
+		PlaceIndex.getInstance().update(username, "");
+		ClusterIndex.getInstance().setLink(username, null);
+		UsernameFilter.getInstance().add(username);
+		
+		// return updated data for local database
+		returnMap.put("last_sync_date", new Long(currentTime));
+		return returnMap;
+	}
 }
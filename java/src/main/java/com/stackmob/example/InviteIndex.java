@@ -0,0 +1,239 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.lang.String;
+import java.lang.System;
+
+// hash index of pending invites: invite email -> relationship ids
+// it's built as background work (a page per slice, paged by relationship id) from every relationship with an invite email (rebuilt every REBUILD_INTERVAL_MILLIS),
+// kept up to date as invites are created & cleared in this process, and relationships created since the last build are read before each lookup
+// invites are read by relationship id, so a lookup only reads the email's invites instead of searching the relationships by invite_email
+public class InviteIndex extends BackgroundWork.Task {
+
+	public static final long REBUILD_INTERVAL_MILLIS = 60L * 60L * 1000L;
+	// invites are read this many at a time when the index is rebuilt
+	public static final int LOAD_PAGE_SIZE = 1000;
+	// relationships created this long before the watermark are read again by each lookup (in case of clock differences & late writes)
+	public static final long WATERMARK_SLACK_MILLIS = 60L * 1000L;
+
+	private static final InviteIndex INSTANCE = new InviteIndex();
+
+	public static InviteIndex getInstance() {
+		return INSTANCE;
+	}
+
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	// invite email -> relationship ids (null until the first build)
+	private Map<String, Set<String>> relIdsByEmail = null;
+	// relationships created at or after this date (less WATERMARK_SLACK_MILLIS) are not in the index yet
+	private long watermark = 0L;
+	// rebuild in progress (only used by the running slice): invites read so far, last relationship id read (null before the first page)
+	private Map<String, Set<String>> rebuildIndex = null;
+	private String rebuildAfter = null;
+	private long rebuildDate = 0L;
+	private volatile long nextRebuildDate = 0L;
+
+	private InviteIndex() {
+	}
+
+	public synchronized void add(String email, String relId) {
+		if (relIdsByEmail == null) {
+			return;
+		}
+		put(relIdsByEmail, email, relId);
+	}
+
+	public synchronized void remove(String email, String relId) {
+		if (relIdsByEmail == null) {
+			return;
+		}
+		Set<String> relIds = relIdsByEmail.get(email);
+		if (relIds != null) {
+			relIds.remove(relId);
+			if (relIds.isEmpty()) {
+				relIdsByEmail.remove(email);
+			}
+		}
+	}
+
+	// the relationships still invited by the email (with relationship_id & invite_email besides the fields), null if they can't be read
+	// until the index is built, the relationships are searched by invite_email
+	public List<SMObject> readInvites(DataService dataService, String email, List<String> fields, int depth) throws InvalidSchemaException, DatastoreException {
+		start();
+		List<String> relFields = new ArrayList<String>(fields);
+		if (!relFields.contains("relationship_id")) {
+			relFields.add("relationship_id");
+		}
+		if (!relFields.contains("invite_email")) {
+			relFields.add("invite_email");
+		}
+		ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
+
+		List<SMString> relIds = null;
+		if (readRecent(dataService)) {
+			synchronized (this) {
+				if (relIdsByEmail != null) {
+					relIds = new ArrayList<SMString>();
+					Set<String> emailRelIds = relIdsByEmail.get(email);
+					if (emailRelIds != null) {
+						for (String relId : emailRelIds) {
+							relIds.add(new SMString(relId));
+						}
+					}
+				}
+			}
+		}
+		List<SMCondition> relQuery = new ArrayList<SMCondition>();
+		if (relIds == null) {
+			relQuery.add(new SMEquals("invite_email", new SMString(email)));
+		} else if (relIds.size() == 0) {
+			return new ArrayList<SMObject>();
+		} else {
+			relQuery.add(new SMIn("relationship_id", relIds));
+		}
+		List<SMObject> rels = dataService.readObjects("relationship", relQuery, depth, relFilter);
+		if (rels == null || relIds == null) {
+			return rels;
+		}
+		// drop the invites cleared meanwhile (e.g. in another process)
+		List<SMObject> invites = new ArrayList<SMObject>();
+		for (int i = 0; i < rels.size(); i++) {
+			SMObject relObject = rels.get(i);
+			SMString inviteValue = (SMString)relObject.getValue().get("invite_email");
+			if (inviteValue != null && inviteValue.getValue().equals(email)) {
+				invites.add(relObject);
+			} else {
+				remove(email, ((SMString)relObject.getValue().get("relationship_id")).getValue());
+			}
+		}
+		return invites;
+	}
+
+	// build the index as background work, now and then every REBUILD_INTERVAL_MILLIS
+	private void start() {
+		if (started.compareAndSet(false, true)) {
+			BackgroundWork.getInstance().register(this);
+		}
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextRebuildDate;
+	}
+
+	// read the next page of pending invites into the new index, and replace the index after the last page
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws InvalidSchemaException, DatastoreException {
+		if (rebuildIndex == null) {
+			rebuildDate = System.currentTimeMillis();
+			rebuildIndex = new HashMap<String, Set<String>>();
+			rebuildAfter = null;
+		}
+		// (paged by relationship id rather than offset, so invites created or cleared meanwhile don't shift the pages)
+		List<SMCondition> relQuery = new ArrayList<SMCondition>();
+		relQuery.add(new SMNotEqual("invite_email", new SMString("")));
+		if (rebuildAfter != null) {
+			relQuery.add(new SMGreater("relationship_id", new SMString(rebuildAfter)));
+		}
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("relationship_id", OrderingDirection.ASCENDING));
+		List<String> fields = new ArrayList<String>();
+		fields.add("relationship_id");
+		fields.add("invite_email");
+		ResultFilters filter = new ResultFilters(0, LOAD_PAGE_SIZE - 1, orderings, fields);
+		List<SMObject> rels = serviceProvider.getDataService().readObjects("relationship", relQuery, 0, filter);
+		// keep the old index (or none) and read the page again later
+		if (rels == null) {
+			LoggerService logger = serviceProvider.getLoggerService(InviteIndex.class);
+			logger.warn("invite index: invites after " + (rebuildAfter == null ? "the start" : rebuildAfter) + " can't be read, retrying");
+			nextRebuildDate = System.currentTimeMillis() + BackgroundWork.FAILURE_BACKOFF_MILLIS;
+			return;
+		}
+		for (int i = 0; i < rels.size(); i++) {
+			put(rebuildIndex, rels.get(i));
+			rebuildAfter = ((SMString)rels.get(i).getValue().get("relationship_id")).getValue();
+		}
+		if (rels.size() < LOAD_PAGE_SIZE) {
+			synchronized (this) {
+				// invites created during the rebuild are read again by the next lookup, cleared ones are dropped by it
+				relIdsByEmail = rebuildIndex;
+				watermark = rebuildDate;
+			}
+			rebuildIndex = null;
+			nextRebuildDate = rebuildDate + REBUILD_INTERVAL_MILLIS;
+		}
+	}
+
+	// add the invites created since the watermark, less WATERMARK_SLACK_MILLIS (false if they can't be read)
+	// (the watermark only moves to the latest date read, the slack keeps invites saved late with an earlier date from being skipped)
+	private boolean readRecent(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		long since;
+		synchronized (this) {
+			if (relIdsByEmail == null) {
+				return true;
+			}
+			since = watermark;
+		}
+		List<SMCondition> relQuery = new ArrayList<SMCondition>();
+		relQuery.add(new SMGreaterOrEqual("createddate", new SMInt(since - WATERMARK_SLACK_MILLIS)));
+		relQuery.add(new SMNotEqual("invite_email", new SMString("")));
+		List<String> fields = new ArrayList<String>();
+		fields.add("relationship_id");
+		fields.add("invite_email");
+		fields.add("createddate");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, filter);
+		if (rels == null) {
+			return false;
+		}
+		synchronized (this) {
+			for (int i = 0; i < rels.size(); i++) {
+				SMObject relObject = rels.get(i);
+				put(relIdsByEmail, relObject);
+				watermark = Math.max(watermark, ((SMInt)relObject.getValue().get("createddate")).getValue().longValue());
+			}
+		}
+		return true;
+	}
+
+	private static void put(Map<String, Set<String>> index, SMObject relObject) {
+		put(index, ((SMString)relObject.getValue().get("invite_email")).getValue(), ((SMString)relObject.getValue().get("relationship_id")).getValue());
+	}
+
+	private static void put(Map<String, Set<String>> index, String email, String relId) {
+		Set<String> relIds = index.get(email);
+		if (relIds == null) {
+			relIds = new LinkedHashSet<String>();
+			index.put(email, relIds);
+		}
+		relIds.add(relId);
+	}
+}
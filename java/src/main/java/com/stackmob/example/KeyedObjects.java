@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+
+// objects whose primary key is chosen by the writer (e.g. one object per pair of users), so they can be written without reading them first
+public class KeyedObjects {
+
+	// create the object with the given id, return null if an object with the id already exists
+	public static SMObject createIfAbsent(DataService dataService, String schema, String idField, String id, Map<String, SMValue> fields) throws InvalidSchemaException, DatastoreException {
+		Map<String, SMValue> objectMap = new HashMap<String, SMValue>(fields);
+		objectMap.put(idField, new SMString(id));
+		try {
+			return dataService.createObject(schema, new SMObject(objectMap));
+		} catch (DatastoreException e) {
+			// the create fails if the id is taken, anything else is thrown again
+			List<SMCondition> query = new ArrayList<SMCondition>();
+			query.add(new SMEquals(idField, new SMString(id)));
+			List<String> idFields = new ArrayList<String>();
+			idFields.add(idField);
+			List<SMObject> objects = dataService.readObjects(schema, query, 0, new ResultFilters(0, -1, null, idFields));
+			if (objects != null && objects.size() == 1) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	// set the fields of the object with the given id, creating it if there is none
+	// if there are conditions, an existing object that doesn't match them is left as it is
+	public static void put(DataService dataService, String schema, String idField, String id, List<SMCondition> conditions, Map<String, SMValue> fields) throws InvalidSchemaException, DatastoreException {
+		List<SMUpdate> updates = new ArrayList<SMUpdate>();
+		for (Map.Entry<String, SMValue> field : fields.entrySet()) {
+			updates.add(new SMSet(field.getKey(), field.getValue()));
+		}
+		// most writes update an existing object
+		SMObject updated = null;
+		try {
+			updated = update(dataService, schema, id, conditions, updates);
+		} catch (DatastoreException e) {
+			// (no object with the id yet)
+		}
+		if (updated != null || createIfAbsent(dataService, schema, idField, id, fields) != null) {
+			return;
+		}
+		// it exists (failed the conditions, or was created meanwhile)
+		update(dataService, schema, id, conditions, updates);
+	}
+
+	private static SMObject update(DataService dataService, String schema, String id, List<SMCondition> conditions, List<SMUpdate> updates) throws InvalidSchemaException, DatastoreException {
+		if (conditions.size() == 0) {
+			return dataService.updateObject(schema, new SMString(id), updates);
+		}
+		return dataService.updateObject(schema, new SMString(id), conditions, updates);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.lang.String;
+import java.lang.System;
+
+// lease of a job that must run in one process at a time, one "job_lease" object per job (job_lease_id = name, worker, heartbeat_date)
+// like the import jobs' leases: it's claimed with a conditional update on heartbeat_date (or created if there is none),
+// renewed by each update of its worker, and a lease not renewed for its timeout can be claimed by another process
+public class Lease {
+
+	private static final String SCHEMA = "job_lease";
+
+	private final String name;
+	private final long timeoutMillis;
+	// this process's worker id while it holds the lease
+	private SMString worker = null;
+
+	public Lease(String name, long timeoutMillis) {
+		this.name = name;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	// claim the lease if it's free or expired (true if this process holds it now)
+	public synchronized boolean claim(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		if (worker != null && update(dataService, new ArrayList<SMUpdate>())) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		SMString newWorker = new SMString(UUID.randomUUID().toString());
+		Map<String, SMValue> leaseMap = new HashMap<String, SMValue>();
+		leaseMap.put("worker", newWorker);
+		leaseMap.put("heartbeat_date", new SMInt(now));
+		if (KeyedObjects.createIfAbsent(dataService, SCHEMA, "job_lease_id", name, leaseMap) != null) {
+			worker = newWorker;
+			return true;
+		}
+		SMObject leaseObject = read(dataService);
+		if (leaseObject == null) {
+			return false;
+		}
+		SMInt heartbeatDate = (SMInt)leaseObject.getValue().get("heartbeat_date");
+		if (now < heartbeatDate.getValue().longValue() + timeoutMillis) {
+			return false;
+		}
+		List<SMUpdate> leaseUpdates = new ArrayList<SMUpdate>();
+		leaseUpdates.add(new SMSet("worker", newWorker));
+		leaseUpdates.add(new SMSet("heartbeat_date", new SMInt(now)));
+		List<SMCondition> leaseConditions = new ArrayList<SMCondition>();
+		leaseConditions.add(new SMEquals("heartbeat_date", heartbeatDate));
+		// (no object is updated if another process claimed or renewed the lease since the read)
+		if (dataService.updateObject(SCHEMA, new SMString(name), leaseConditions, leaseUpdates) == null) {
+			return false;
+		}
+		worker = newWorker;
+		return true;
+	}
+
+	// update the lease object if this process holds the lease, renewing it (false if the lease was lost)
+	public synchronized boolean update(DataService dataService, List<SMUpdate> updates) throws InvalidSchemaException, DatastoreException {
+		if (worker == null) {
+			return false;
+		}
+		List<SMUpdate> leaseUpdates = new ArrayList<SMUpdate>(updates);
+		leaseUpdates.add(new SMSet("heartbeat_date", new SMInt(System.currentTimeMillis())));
+		List<SMCondition> leaseConditions = new ArrayList<SMCondition>();
+		leaseConditions.add(new SMEquals("worker", worker));
+		if (dataService.updateObject(SCHEMA, new SMString(name), leaseConditions, leaseUpdates) == null) {
+			worker = null;
+			return false;
+		}
+		return true;
+	}
+
+	// free the lease so other processes don't wait for it to expire
+	public synchronized void release(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		if (worker == null) {
+			return;
+		}
+		List<SMUpdate> leaseUpdates = new ArrayList<SMUpdate>();
+		leaseUpdates.add(new SMSet("heartbeat_date", new SMInt(0L)));
+		List<SMCondition> leaseConditions = new ArrayList<SMCondition>();
+		leaseConditions.add(new SMEquals("worker", worker));
+		worker = null;
+		dataService.updateObject(SCHEMA, new SMString(name), leaseConditions, leaseUpdates);
+	}
+
+	// the lease object (with the fields its worker saved), null if it can't be read
+	public SMObject read(DataService dataService) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> leaseQuery = new ArrayList<SMCondition>();
+		leaseQuery.add(new SMEquals("job_lease_id", new SMString(name)));
+		List<SMObject> leases = dataService.readObjects(SCHEMA, leaseQuery);
+		if (leases == null || leases.size() != 1) {
+			return null;
+		}
+		return leases.get(0);
+	}
+}
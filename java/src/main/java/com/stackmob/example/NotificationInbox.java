@@ -0,0 +1,238 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SMInt;
+import com.stackmob.sdkapi.SMObject;
+import com.stackmob.sdkapi.SMString;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.lang.String;
+
+// per-user events for the user, newest first, written when events are created or removed in this process
+// a user's inbox is loaded from the relationships and loaded again when it's older than REFRESH_INTERVAL_MILLIS,
+// so events created or removed by other processes show up within that time (events written while it loads are kept)
+public class NotificationInbox {
+
+	// maximum number of loaded inboxes, the least recently used are dropped (and loaded again when needed)
+	public static final int MAX_USERS = 10000;
+	// loaded inboxes are read again from the relationships after this long
+	public static final long REFRESH_INTERVAL_MILLIS = 60L * 1000L;
+
+	private static final NotificationInbox INSTANCE = new NotificationInbox();
+
+	public static NotificationInbox getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, Inbox> inboxes = new LinkedHashMap<String, Inbox>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Inbox> eldest) {
+			if (size() > MAX_USERS) {
+				for (String eventId : eldest.getValue().byId.keySet()) {
+					usersByEvent.remove(eventId);
+				}
+				loadingInboxes.remove(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+	// event id -> user whose inbox has it
+	private final Map<String, String> usersByEvent = new HashMap<String, String>();
+	// inboxes being loaded (they may still read removed events)
+	private final Set<Inbox> loadingInboxes = new HashSet<Inbox>();
+
+	// true if the user's inbox was loaded less than REFRESH_INTERVAL_MILLIS ago
+	public synchronized boolean isLoaded(String username, long now) {
+		Inbox inbox = inboxes.get(username);
+		return inbox != null && !inbox.loading && now - inbox.loadDate < REFRESH_INTERVAL_MILLIS;
+	}
+
+	// start loading (or loading again) the user's inbox, events written from now on are kept
+	public synchronized void beginLoad(String username) {
+		Inbox inbox = inboxes.get(username);
+		if (inbox == null) {
+			inbox = new Inbox();
+			inboxes.put(username, inbox);
+		} else if (inbox.loading) {
+			return;
+		}
+		inbox.loading = true;
+		inbox.removedWhileLoading.clear();
+		inbox.addedWhileLoading.clear();
+		loadingInboxes.add(inbox);
+	}
+
+	// finish loading with the events read from the relationships at loadDate, they replace the inbox's events
+	// (but events added while loading are kept, and events removed while loading are left out)
+	public synchronized void finishLoad(String username, List<Ref> refs, long loadDate) {
+		Inbox inbox = inboxes.get(username);
+		// (already loaded by a concurrent request, or dropped meanwhile)
+		if (inbox == null || !inbox.loading) {
+			return;
+		}
+		loadingInboxes.remove(inbox);
+		List<Ref> added = new ArrayList<Ref>();
+		for (String eventId : inbox.addedWhileLoading) {
+			Ref ref = inbox.byId.get(eventId);
+			if (ref != null) {
+				added.add(ref);
+			}
+		}
+		clearRefs(inbox);
+		for (int i = 0; i < refs.size(); i++) {
+			Ref ref = refs.get(i);
+			if (!inbox.removedWhileLoading.contains(ref.eventId)) {
+				addRef(username, inbox, ref);
+			}
+		}
+		for (int i = 0; i < added.size(); i++) {
+			addRef(username, inbox, added.get(i));
+		}
+		inbox.loading = false;
+		inbox.loadDate = loadDate;
+		inbox.removedWhileLoading.clear();
+		inbox.addedWhileLoading.clear();
+	}
+
+	// give up loading the user's inbox (its events can't be read), a previously loaded inbox stays due for a reload
+	public synchronized void cancelLoad(String username) {
+		Inbox inbox = inboxes.get(username);
+		if (inbox == null || !inbox.loading) {
+			return;
+		}
+		loadingInboxes.remove(inbox);
+		inbox.loading = false;
+		inbox.removedWhileLoading.clear();
+		inbox.addedWhileLoading.clear();
+		if (inbox.loadDate == 0L) {
+			clearRefs(inbox);
+			inboxes.remove(username);
+		}
+	}
+
+	// add a new event (as returned by EventStore.createEvent) to the user's inbox (no user for invites)
+	public synchronized void add(String username, SMObject eventObject, SMString relId, String from) {
+		if (username == null) {
+			return;
+		}
+		Inbox inbox = inboxes.get(username);
+		if (inbox != null) {
+			if (inbox.loading) {
+				inbox.addedWhileLoading.add(((SMString)eventObject.getValue().get("event_id")).getValue());
+			}
+			addRef(username, inbox, new Ref(((SMString)eventObject.getValue().get("event_id")).getValue(),
+					((SMInt)eventObject.getValue().get("type")).getValue().longValue(),
+					((SMInt)eventObject.getValue().get("createddate")).getValue().longValue(),
+					relId.getValue(), from));
+		}
+	}
+
+	// forget removed events (of any user)
+	public synchronized void removeEvents(List<SMString> eventIds) {
+		for (int i = 0; i < eventIds.size(); i++) {
+			String eventId = eventIds.get(i).getValue();
+			String username = usersByEvent.remove(eventId);
+			Inbox inbox = username == null ? null : inboxes.get(username);
+			Ref ref = inbox == null ? null : inbox.byId.remove(eventId);
+			if (ref != null) {
+				inbox.refs.remove(ref);
+				inbox.addedWhileLoading.remove(eventId);
+			}
+			// inboxes being loaded may still read the event
+			for (Inbox loadingInbox : loadingInboxes) {
+				loadingInbox.removedWhileLoading.add(eventId);
+			}
+		}
+	}
+
+	// up to limit events older than the cursor (the newest if cursor is null)
+	public synchronized List<Ref> getPage(String username, Ref cursor, int limit) {
+		List<Ref> page = new ArrayList<Ref>();
+		Inbox inbox = inboxes.get(username);
+		if (inbox == null) {
+			return page;
+		}
+		Iterator<Ref> it = (cursor == null ? inbox.refs : inbox.refs.tailSet(cursor, false)).iterator();
+		while (it.hasNext() && page.size() < limit) {
+			page.add(it.next());
+		}
+		return page;
+	}
+
+	private void clearRefs(Inbox inbox) {
+		for (String eventId : inbox.byId.keySet()) {
+			usersByEvent.remove(eventId);
+		}
+		inbox.byId.clear();
+		inbox.refs.clear();
+	}
+
+	private void addRef(String username, Inbox inbox, Ref ref) {
+		if (inbox.byId.containsKey(ref.eventId)) {
+			return;
+		}
+		inbox.byId.put(ref.eventId, ref);
+		inbox.refs.add(ref);
+		usersByEvent.put(ref.eventId, username);
+	}
+
+	// an event for the user, ordered newest first
+	public static class Ref implements Comparable<Ref> {
+		public final String eventId;
+		public final long type;
+		public final long createdDate;
+		public final String relId;
+		// username of the friend who created the event
+		public final String from;
+
+		public Ref(String eventId, long type, long createdDate, String relId, String from) {
+			this.eventId = eventId;
+			this.type = type;
+			this.createdDate = createdDate;
+			this.relId = relId;
+			this.from = from;
+		}
+
+		@Override
+		public int compareTo(Ref other) {
+			if (createdDate != other.createdDate) {
+				return createdDate > other.createdDate ? -1 : 1;
+			}
+			return eventId.compareTo(other.eventId);
+		}
+	}
+
+	private static class Inbox {
+		final TreeSet<Ref> refs = new TreeSet<Ref>();
+		final Map<String, Ref> byId = new HashMap<String, Ref>();
+		final Set<String> removedWhileLoading = new HashSet<String>();
+		final Set<String> addedWhileLoading = new HashSet<String>();
+		boolean loading = false;
+		// when the events were last read from the relationships (0 if never)
+		long loadDate = 0L;
+	}
+}
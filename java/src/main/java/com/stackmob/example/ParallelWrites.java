@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// runs independent datastore writes concurrently on a small shared pool
+// writes must not call runAll themselves (the pool is bounded)
+public class ParallelWrites {
+
+	// maximum number of concurrent writes in this process
+	public static final int POOL_SIZE = 8;
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "parallel-writes");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public interface Write {
+		void run() throws InvalidSchemaException, DatastoreException;
+	}
+
+	// run all writes and wait for them, the first failure is thrown after every write is done
+	public static void runAll(List<Write> writes) throws InvalidSchemaException, DatastoreException {
+		if (writes.size() == 0) {
+			return;
+		}
+		// the first write runs on the calling thread
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 1; i < writes.size(); i++) {
+			final Write write = writes.get(i);
+			futures.add(EXECUTOR.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					write.run();
+					return null;
+				}
+			}));
+		}
+		Throwable failure = null;
+		try {
+			writes.get(0).run();
+		} catch (InvalidSchemaException e) {
+			failure = e;
+		} catch (DatastoreException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure instanceof InvalidSchemaException) {
+			throw (InvalidSchemaException)failure;
+		} else if (failure instanceof DatastoreException) {
+			throw (DatastoreException)failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.System;
+
+// users grouped by their current place, as sets of the social graph index's user ints
+// a user's place is known for REFRESH_INTERVAL_MILLIS after it changes in this process or is read, callers must read the unknown ones first
+// (so changes made in other processes show up within that time, the index is dropped with its social graph index)
+public class PlaceIndex {
+
+	// known places are read again after this long
+	public static final long REFRESH_INTERVAL_MILLIS = 60L * 1000L;
+
+	// (the current social graph index's)
+	public static PlaceIndex getInstance() {
+		return SocialGraphIndex.getInstance().getPlaceIndex();
+	}
+
+	private final SocialGraphIndex graph;
+
+	// place -> users at the place (no entry for the empty place)
+	private final Map<String, BitSet> usersByPlace = new HashMap<String, BitSet>();
+	// user -> place
+	private final Map<Integer, String> places = new HashMap<Integer, String>();
+	// user -> when the place was changed or read
+	private final Map<Integer, Long> placeDates = new HashMap<Integer, Long>();
+
+	PlaceIndex(SocialGraphIndex graph) {
+		this.graph = graph;
+	}
+
+	// record a place change of a user
+	public void update(String username, String place) {
+		int user = graph.addUser(username);
+		synchronized (this) {
+			setPlace(user, place, System.currentTimeMillis());
+		}
+	}
+
+	// record a place read from the datastore by a read started at readDate (a change recorded since is newer)
+	public void load(String username, String place, long readDate) {
+		int user = graph.addUser(username);
+		synchronized (this) {
+			Long placeDate = placeDates.get(Integer.valueOf(user));
+			if (placeDate == null || placeDate.longValue() < readDate) {
+				setPlace(user, place, readDate);
+			}
+		}
+	}
+
+	// true if the user's place was changed or read less than REFRESH_INTERVAL_MILLIS ago
+	public synchronized boolean isKnown(int user, long now) {
+		Long placeDate = placeDates.get(Integer.valueOf(user));
+		return placeDate != null && now - placeDate.longValue() < REFRESH_INTERVAL_MILLIS;
+	}
+
+	// number of the given users at each place they are at (one lookup per user, whatever the number of places)
+	public synchronized Map<String, Integer> countByPlace(BitSet users) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int user = users.nextSetBit(0); user >= 0; user = users.nextSetBit(user + 1)) {
+			String place = places.get(Integer.valueOf(user));
+			if (place == null || place.isEmpty()) {
+				continue;
+			}
+			Integer count = counts.get(place);
+			counts.put(place, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+		}
+		return counts;
+	}
+
+	// the given users at the place
+	public synchronized BitSet getUsersAt(String place, BitSet users) {
+		BitSet common = new BitSet();
+		BitSet placeUsers = usersByPlace.get(place);
+		if (placeUsers != null) {
+			common.or(placeUsers);
+			common.and(users);
+		}
+		return common;
+	}
+
+	private void setPlace(int user, String place, long placeDate) {
+		placeDates.put(Integer.valueOf(user), Long.valueOf(placeDate));
+		String oldPlace = places.put(Integer.valueOf(user), place);
+		if (oldPlace != null && !oldPlace.isEmpty()) {
+			BitSet oldUsers = usersByPlace.get(oldPlace);
+			oldUsers.clear(user);
+			if (oldUsers.isEmpty()) {
+				usersByPlace.remove(oldPlace);
+			}
+		}
+		if (!place.isEmpty()) {
+			BitSet users = usersByPlace.get(place);
+			if (users == null) {
+				users = new BitSet();
+				usersByPlace.put(place, users);
+			}
+			users.set(user);
+		}
+	}
+}
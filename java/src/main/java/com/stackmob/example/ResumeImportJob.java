@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Boolean;
+
+// sets a failed import job running again from its last checkpoint, its chunks are then run by the worker (see ImportJobs)
+public class ResumeImportJob implements CustomCodeMethod {
+
+	@Override
+	public String getMethodName() {
+		return "resume_import_job";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("job_id");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow POST method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("post")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+
+		// get the parameters
+		String jobIdString = request.getParams().get("job_id");
+		if (jobIdString == null || jobIdString.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "job_id parameter not found");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+		SMString jobId = new SMString(jobIdString);
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// fetch job object
+			List<SMCondition> jobQuery = new ArrayList<SMCondition>();
+			jobQuery.add(new SMEquals("import_job_id", jobId));
+			List<String> fields = new ArrayList<String>();
+			fields.add("username");
+			fields.add("status");
+			List<SMObject> jobs = dataService.readObjects("import_job", jobQuery, 0, new ResultFilters(0, -1, null, fields));
+			// report error if query failed
+			if (jobs == null || jobs.size() != 1) {
+				HashMap<String, String> errMap = new HashMap<String, String>();
+				errMap.put("error", "invalid import job fetch");
+				errMap.put("detail", (jobs == null ? "null fetch result" : ("fetch result count = " + jobs.size())));
+				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			}
+			SMObject jobObject = jobs.get(0);
+			if (!((SMString)jobObject.getValue().get("username")).getValue().equals(username)) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "requested import job is inaccessible by this user");
+				return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+			}
+
+			// only a failed job is resumed (a running or done job is left as it is)
+			boolean resumed = ((SMString)jobObject.getValue().get("status")).getValue().equals("failed")
+					&& ImportJobs.getInstance().resume(dataService, jobId);
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("job_id", jobId);
+			returnMap.put("resumed", Boolean.valueOf(resumed));
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+}
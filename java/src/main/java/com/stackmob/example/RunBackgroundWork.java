@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.Long;
+import java.lang.System;
+
+// the background worker: runs the pending background work (see BackgroundWork) for up to BackgroundWork.WORK_BUDGET_MILLIS
+// it is called by a scheduler (e.g. every minute) as one of the admins listed in the BulkInitializeUsers.ADMIN_USERNAMES_SETTING config,
+// and also returns the metrics of the process's username filter (see UsernameFilter.getStats)
+public class RunBackgroundWork implements CustomCodeMethod {
+
+	@Override
+	public String getMethodName() {
+		return "run_background_work";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow POST method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("post")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// only allow the admins
+			if (!AppConfig.getInstance().getList(dataService, BulkInitializeUsers.ADMIN_USERNAMES_SETTING).contains(username)) {
+				HashMap<String, String> errParams = new HashMap<String, String>();
+				errParams.put("error", "user is not an admin");
+				return new ResponseToProcess(HttpURLConnection.HTTP_FORBIDDEN, errParams); // http 403 - forbidden
+			}
+
+			// the durable queues are run even if this process didn't queue anything, and the scheduled jobs are started here only
+			EventCleanupQueue.getInstance();
+			StatusHistory.getInstance();
+			ImportJobs.getInstance();
+			EventExpiryJob.getInstance().start();
+			long startTime = System.currentTimeMillis();
+			int sliceCount = BackgroundWork.getInstance().runDue(serviceProvider);
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("slice_count", new Long(sliceCount));
+			returnMap.put("elapsed_millis", new Long(System.currentTimeMillis() - startTime));
+			// metrics of this process's caches (for the scheduler's logs)
+			returnMap.put("username_filter", UsernameFilter.getInstance().getStats());
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+}
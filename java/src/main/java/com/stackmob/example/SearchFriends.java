@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.lang.String;
+import java.lang.System;
+
+public class SearchFriends implements CustomCodeMethod {
+
+	public static final int DEFAULT_LIMIT = 20;
+	public static final int MAX_LIMIT = 100;
+	// names of friends not in the search index yet are read this many at a time
+	public static final int READ_BATCH_SIZE = 100;
+
+	@Override
+	public String getMethodName() {
+		return "search_friends";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("prefix", "limit");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameters
+		String prefix = request.getParams().get("prefix");
+		int limit = DEFAULT_LIMIT;
+		try {
+			String limitParam = request.getParams().get("limit");
+			if (limitParam != null && !limitParam.isEmpty()) {
+				limit = Integer.parseInt(limitParam);
+			}
+		} catch (NumberFormatException e) {
+			limit = -1;
+		}
+		if (prefix == null || prefix.trim().isEmpty() || limit < 1 || limit > MAX_LIMIT) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			// 1. user's mutual friends (from the graph index, read if not loaded yet)
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			if (!graph.isLoaded(username)) {
+				List<SMString> userIdList = new ArrayList<SMString>();
+				userIdList.add(userId);
+				graph.loadUsers(dataService, userIdList);
+			}
+			Set<String> friendNames = new HashSet<String>();
+			int user = graph.getUserInt(username);
+			if (user >= 0) {
+				int[] friends = graph.getFriends(new int[] {user})[0];
+				for (int i = 0; i < friends.length; i++) {
+					friendNames.add(graph.getUsername(friends[i]));
+				}
+			}
+
+			// 2. add names of new friends to the search index
+			FriendSearchIndex searchIndex = FriendSearchIndex.getInstance();
+			List<SMString> missingIds = new ArrayList<SMString>();
+			long currentTime = System.currentTimeMillis();
+			Set<String> indexedFriends = searchIndex.getIndexedFriends(username, currentTime);
+			for (String friendName : friendNames) {
+				if (!indexedFriends.contains(friendName)) {
+					missingIds.add(new SMString(friendName));
+				}
+			}
+			for (int i = 0; i < missingIds.size(); i += READ_BATCH_SIZE) {
+				// - build query
+				List<SMCondition> friendQuery = new ArrayList<SMCondition>();
+				friendQuery.add(new SMIn("username", missingIds.subList(i, Math.min(i + READ_BATCH_SIZE, missingIds.size()))));
+				// - build result filter
+				List<String> friendFields = new ArrayList<String>();
+				friendFields.add("username");
+				friendFields.add("name");
+				ResultFilters friendFilter = new ResultFilters(0, -1, null, friendFields);
+				// - execute query
+				List<SMObject> friendObjects = dataService.readObjects("user", friendQuery, 0, friendFilter);
+				if (friendObjects != null) {
+					Map<String, String> namesById = new HashMap<String, String>();
+					for (int j = 0; j < friendObjects.size(); j++) {
+						SMObject friendObject = friendObjects.get(j);
+						SMString nameValue = (SMString)friendObject.getValue().get("name");
+						namesById.put(((SMString)friendObject.getValue().get("username")).getValue(), (nameValue == null ? "" : nameValue.getValue()));
+					}
+					searchIndex.addFriends(username, namesById, currentTime);
+				}
+			}
+
+			// 3. search the current friends
+			List<String[]> matches = searchIndex.search(username, prefix.trim(), friendNames, limit);
+			List<Map<String, Object>> foundFriends = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < matches.size(); i++) {
+				Map<String, Object> friendMap = new HashMap<String, Object>();
+				friendMap.put("username", matches.get(i)[0]);
+				friendMap.put("name", matches.get(i)[1]);
+				foundFriends.add(friendMap);
+			}
+
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			returnMap.put("friends", foundFriends);
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+}
@@ -0,0 +1,498 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.System;
+
+// relationships between users, with usernames and relationship ids encoded as ints
+// a relationship's owner, receiver and types are kept in arrays indexed by its int, each user's relationships in an int map
+// an invite's receiver is its invite email, which becomes the username when the invited user signs up
+// a user's relationships are complete as of the last read of all of them (other processes may have changed them since), other users may only be partly known
+// so a relationship (and who is in it) found here may be relied on, but "no relationship" or "no change" has to be checked in the datastore
+// a loaded user is only loaded for RELOAD_INTERVAL_MILLIS, then the relationships are read again (and the ones that are gone dropped)
+// the index is replaced by an empty one once it has more than MAX_USERS users, with its place & cluster indexes (which use its user ints)
+// a request keeps using the index it got, so the user ints it has stay valid
+public class SocialGraphIndex {
+
+	// users are read this many at a time before their mutual friends are counted
+	public static final int READ_BATCH_SIZE = 100;
+	// loaded users are read again after this long
+	public static final long RELOAD_INTERVAL_MILLIS = 5L * 60L * 1000L;
+	// maximum number of encoded users (and invite emails) before the index is replaced
+	public static final int MAX_USERS = 500000;
+
+	private static SocialGraphIndex current = new SocialGraphIndex();
+
+	public static synchronized SocialGraphIndex getInstance() {
+		if (current.getUserCount() > MAX_USERS) {
+			current = new SocialGraphIndex();
+		}
+		return current;
+	}
+
+	// dictionaries
+	private final Map<String, Integer> userInts = new HashMap<String, Integer>();
+	private final List<String> usernames = new ArrayList<String>();
+	private final Map<String, Integer> relInts = new HashMap<String, Integer>();
+	private final List<String> relIds = new ArrayList<String>();
+	// relationship int -> owner & receiver user ints, types
+	private int[] owners = new int[1024];
+	private int[] receivers = new int[1024];
+	private byte[] typesByOwner = new byte[1024];
+	private byte[] typesByReceiver = new byte[1024];
+	// user int -> (other user int -> relationship int)
+	private final List<IntIntMap> adjacency = new ArrayList<IntIntMap>();
+	// user int -> when all of the user's relationships were read (0 if never)
+	private long[] loadDates = new long[1024];
+	// indexes over this index's user ints
+	private final PlaceIndex placeIndex = new PlaceIndex(this);
+	private final ClusterIndex clusterIndex = new ClusterIndex(this);
+
+	private SocialGraphIndex() {
+	}
+
+	public PlaceIndex getPlaceIndex() {
+		return placeIndex;
+	}
+
+	public ClusterIndex getClusterIndex() {
+		return clusterIndex;
+	}
+
+	// add or update a relationship (receiver is the invite email for invites)
+	public synchronized void putRelationship(String relId, String owner, String receiver, long typeOwner, long typeReceiver) {
+		int rel = encodeRelationship(relId);
+		int ownerInt = encodeUser(owner);
+		int receiverInt = encodeUser(receiver);
+		owners[rel] = ownerInt;
+		receivers[rel] = receiverInt;
+		typesByOwner[rel] = (byte)typeOwner;
+		typesByReceiver[rel] = (byte)typeReceiver;
+		adjacency.get(ownerInt).put(receiverInt, rel);
+		adjacency.get(receiverInt).put(ownerInt, rel);
+	}
+
+	// change the type by one side ("owner" or "receiver") of a known relationship
+	public synchronized void setType(String relId, String role, long type) {
+		Integer rel = relInts.get(relId);
+		if (rel == null) {
+			return;
+		}
+		if (role.equals("owner")) {
+			typesByOwner[rel.intValue()] = (byte)type;
+		} else {
+			typesByReceiver[rel.intValue()] = (byte)type;
+		}
+	}
+
+	// true if all of the user's relationships were read less than RELOAD_INTERVAL_MILLIS ago
+	public synchronized boolean isLoaded(String username) {
+		Integer user = userInts.get(username);
+		return user != null && loadDates[user.intValue()] != 0L && System.currentTimeMillis() - loadDates[user.intValue()] < RELOAD_INTERVAL_MILLIS;
+	}
+
+	// load all of the user's relationships from a user object read with
+	// relationships_by_user (relationship_id, types, invite_email, receiver) and relationships_by_others (relationship_id, types, owner)
+	// (the user's relationships that are not in it any more are dropped)
+	public void loadUser(String username, SMObject userObject) {
+		long loadDate = System.currentTimeMillis();
+		List<String[]> rels = new ArrayList<String[]>();
+		List<long[]> types = new ArrayList<long[]>();
+		String[] relKeys = {"relationships_by_user", "relationships_by_others"};
+		String[] friendKeys = {"receiver", "owner"};
+		for (int k = 0; k < relKeys.length; k++) {
+			if (!userObject.getValue().containsKey(relKeys[k])) {
+				continue;
+			}
+			List<SMObject> relList = ((SMList<SMObject>)userObject.getValue().get(relKeys[k])).getValue();
+			for (int i = 0; i < relList.size(); i++) {
+				SMObject relObject = relList.get(i);
+				String friendId = null;
+				if (relObject.getValue().containsKey(friendKeys[k])) {
+					// (the friend is only an id if read without its fields)
+					SMValue friendValue = relObject.getValue().get(friendKeys[k]);
+					if (friendValue instanceof SMString) {
+						friendId = ((SMString)friendValue).getValue();
+					} else {
+						friendId = ((SMString)((SMObject)friendValue).getValue().get("username")).getValue();
+					}
+				} else if (relObject.getValue().containsKey("invite_email")) {
+					friendId = ((SMString)relObject.getValue().get("invite_email")).getValue();
+				}
+				if (friendId == null || friendId.isEmpty()) {
+					continue;
+				}
+				String relId = ((SMString)relObject.getValue().get("relationship_id")).getValue();
+				rels.add(k == 0 ? new String[] {relId, username, friendId} : new String[] {relId, friendId, username});
+				types.add(new long[] {((SMInt)relObject.getValue().get("type_by_owner")).getValue().longValue(),
+						((SMInt)relObject.getValue().get("type_by_receiver")).getValue().longValue()});
+			}
+		}
+		synchronized (this) {
+			int user = encodeUser(username);
+			IntIntMap readRels = new IntIntMap();
+			for (int i = 0; i < rels.size(); i++) {
+				String[] rel = rels.get(i);
+				putRelationship(rel[0], rel[1], rel[2], types.get(i)[0], types.get(i)[1]);
+				readRels.put(relInts.get(rel[0]).intValue(), 0);
+			}
+			IntIntMap related = adjacency.get(user);
+			int[] others = related.keys();
+			for (int i = 0; i < others.length; i++) {
+				if (readRels.get(related.get(others[i])) < 0) {
+					related.remove(others[i]);
+					adjacency.get(others[i]).remove(user);
+				}
+			}
+			loadDates[user] = loadDate;
+		}
+	}
+
+	// read the users' relationships (without the friends' fields) into the graph index
+	public void loadUsers(DataService dataService, List<SMString> userIds) throws InvalidSchemaException, DatastoreException {
+		List<SMCondition> userQuery = new ArrayList<SMCondition>();
+		userQuery.add(new SMIn("username", userIds));
+		List<String> fields = new ArrayList<String>();
+		fields.add("username");
+		fields.add("relationships_by_user");
+		fields.add("relationships_by_user.relationship_id");
+		fields.add("relationships_by_user.type_by_owner");
+		fields.add("relationships_by_user.type_by_receiver");
+		fields.add("relationships_by_user.invite_email");
+		fields.add("relationships_by_user.receiver");
+		fields.add("relationships_by_others");
+		fields.add("relationships_by_others.relationship_id");
+		fields.add("relationships_by_others.type_by_owner");
+		fields.add("relationships_by_others.type_by_receiver");
+		fields.add("relationships_by_others.owner");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		List<SMObject> users = dataService.readObjects("user", userQuery, 1, filter);
+		if (users == null) {
+			return;
+		}
+		for (int i = 0; i < users.size(); i++) {
+			SMObject userObject = users.get(i);
+			loadUser(((SMString)userObject.getValue().get("username")).getValue(), userObject);
+		}
+	}
+
+	// role of the user in the relationship ("owner", "receiver", or "" if not in it), null if the relationship is unknown
+	public synchronized String getRole(String relId, String username) {
+		Integer rel = relInts.get(relId);
+		if (rel == null) {
+			return null;
+		}
+		Integer user = userInts.get(username);
+		if (user == null) {
+			return "";
+		}
+		if (owners[rel.intValue()] == user.intValue()) {
+			return "owner";
+		}
+		if (receivers[rel.intValue()] == user.intValue()) {
+			return "receiver";
+		}
+		return "";
+	}
+
+	// the other user (or invite email) of a known relationship the user is in, null otherwise
+	public synchronized String getOtherUser(String relId, String username) {
+		Integer rel = relInts.get(relId);
+		Integer user = userInts.get(username);
+		if (rel == null || user == null) {
+			return null;
+		}
+		if (owners[rel.intValue()] == user.intValue()) {
+			return usernames.get(receivers[rel.intValue()]);
+		}
+		if (receivers[rel.intValue()] == user.intValue()) {
+			return usernames.get(owners[rel.intValue()]);
+		}
+		return null;
+	}
+
+	// type by one side of a known relationship, -1 if unknown
+	public synchronized long getType(String relId, String role) {
+		Integer rel = relInts.get(relId);
+		if (rel == null) {
+			return -1L;
+		}
+		return role.equals("owner") ? typesByOwner[rel.intValue()] : typesByReceiver[rel.intValue()];
+	}
+
+	// check if the loaded user has a relationship with any of the other users (or invite emails)
+	public synchronized boolean hasAnyRelationship(String username, List<SMString> others) {
+		IntIntMap friends = adjacency.get(userInts.get(username).intValue());
+		for (int i = 0; i < others.size(); i++) {
+			Integer other = userInts.get(others.get(i).getValue());
+			if (other != null && friends.get(other.intValue()) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// int of the user, -1 if unknown
+	public synchronized int getUserInt(String username) {
+		Integer user = userInts.get(username);
+		return user == null ? -1 : user.intValue();
+	}
+
+	// int of the user, encoded if unknown
+	public synchronized int addUser(String username) {
+		return encodeUser(username);
+	}
+
+	public synchronized String getUsername(int user) {
+		return usernames.get(user);
+	}
+
+	// number of encoded users (user ints are below it)
+	public synchronized int getUserCount() {
+		return usernames.size();
+	}
+
+	// sorted ints of the users related to the user in any way
+	public synchronized int[] getRelated(int user) {
+		int[] related = adjacency.get(user).keys();
+		Arrays.sort(related);
+		return related;
+	}
+
+	// sorted ints of the mutual friends (accepted by both) of each user
+	public synchronized int[][] getFriends(int[] users) {
+		int[][] friends = new int[users.length][];
+		for (int i = 0; i < users.length; i++) {
+			IntIntMap related = adjacency.get(users[i]);
+			int[] others = related.keys();
+			int count = 0;
+			for (int j = 0; j < others.length; j++) {
+				int rel = related.get(others[j]);
+				if (isFriendship(rel)) {
+					others[count++] = others[j];
+				}
+			}
+			friends[i] = Arrays.copyOf(others, count);
+			Arrays.sort(friends[i]);
+		}
+		return friends;
+	}
+
+	// mutual friends of the user as a set of user ints
+	public synchronized BitSet getFriendSet(int user) {
+		BitSet friends = new BitSet();
+		IntIntMap related = adjacency.get(user);
+		for (int i = 0; i < related.keys.length; i++) {
+			if (related.keys[i] != -1 && isFriendship(related.values[i])) {
+				friends.set(related.keys[i]);
+			}
+		}
+		return friends;
+	}
+
+	// number of mutual friends the user has with each of the others (-1 where it can't be counted exactly)
+	// the user and the others whose relationships aren't loaded (or were loaded more than RELOAD_INTERVAL_MILLIS ago) are read first, READ_BATCH_SIZE at a time
+	// (so the counts are as of relationships read at most RELOAD_INTERVAL_MILLIS ago, changes made since in other processes may be missing)
+	public int[] countMutualFriends(DataService dataService, String username, List<String> others) throws InvalidSchemaException, DatastoreException {
+		List<SMString> unloadedIds = new ArrayList<SMString>();
+		if (!isLoaded(username)) {
+			unloadedIds.add(new SMString(username));
+		}
+		for (int i = 0; i < others.size(); i++) {
+			if (!isLoaded(others.get(i))) {
+				unloadedIds.add(new SMString(others.get(i)));
+			}
+		}
+		for (int i = 0; i < unloadedIds.size(); i += READ_BATCH_SIZE) {
+			loadUsers(dataService, unloadedIds.subList(i, Math.min(i + READ_BATCH_SIZE, unloadedIds.size())));
+		}
+		return getMutualCounts(username, others);
+	}
+
+	// number of mutual friends the user has with each of the others
+	// (only counted when both are loaded, otherwise -1 since friendships of the unloaded one may be missing)
+	public synchronized int[] getMutualCounts(String username, List<String> others) {
+		int[] counts = new int[others.size()];
+		Arrays.fill(counts, -1);
+		Integer user = userInts.get(username);
+		if (user == null || loadDates[user.intValue()] == 0L) {
+			return counts;
+		}
+		// the user's friends as a bitset over user ints, then each of the other's friends is one bit test
+		long[] userBits = new long[(usernames.size() >> 6) + 1];
+		IntIntMap related = adjacency.get(user.intValue());
+		for (int i = 0; i < related.keys.length; i++) {
+			int friend = related.keys[i];
+			if (friend != -1 && isFriendship(related.values[i])) {
+				userBits[friend >> 6] |= 1L << (friend & 63);
+			}
+		}
+		for (int i = 0; i < others.size(); i++) {
+			Integer other = userInts.get(others.get(i));
+			if (other == null || loadDates[other.intValue()] == 0L) {
+				continue;
+			}
+			IntIntMap otherRelated = adjacency.get(other.intValue());
+			int count = 0;
+			for (int j = 0; j < otherRelated.keys.length; j++) {
+				int friend = otherRelated.keys[j];
+				if (friend != -1 && (userBits[friend >> 6] & (1L << (friend & 63))) != 0 && isFriendship(otherRelated.values[j])) {
+					count++;
+				}
+			}
+			counts[i] = count;
+		}
+		return counts;
+	}
+
+	private boolean isFriendship(int rel) {
+		return typesByOwner[rel] == 2 && typesByReceiver[rel] == 2;
+	}
+
+	private int encodeUser(String username) {
+		Integer user = userInts.get(username);
+		if (user == null) {
+			user = Integer.valueOf(usernames.size());
+			userInts.put(username, user);
+			usernames.add(username);
+			adjacency.add(new IntIntMap());
+			if (user.intValue() == loadDates.length) {
+				loadDates = Arrays.copyOf(loadDates, loadDates.length * 2);
+			}
+		}
+		return user.intValue();
+	}
+
+	private int encodeRelationship(String relId) {
+		Integer rel = relInts.get(relId);
+		if (rel == null) {
+			rel = Integer.valueOf(relIds.size());
+			relInts.put(relId, rel);
+			relIds.add(relId);
+			if (rel.intValue() == owners.length) {
+				int length = owners.length * 2;
+				owners = Arrays.copyOf(owners, length);
+				receivers = Arrays.copyOf(receivers, length);
+				typesByOwner = Arrays.copyOf(typesByOwner, length);
+				typesByReceiver = Arrays.copyOf(typesByReceiver, length);
+			}
+		}
+		return rel.intValue();
+	}
+
+	// open-addressing map of non-negative int keys to non-negative int values (linear probing)
+	private static class IntIntMap {
+		private int[] keys = new int[4];
+		private int[] values = new int[4];
+		private int size = 0;
+
+		IntIntMap() {
+			Arrays.fill(keys, -1);
+		}
+
+		int[] keys() {
+			int[] present = new int[size];
+			int count = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != -1) {
+					present[count++] = keys[i];
+				}
+			}
+			return present;
+		}
+
+		// value of the key, -1 if absent
+		int get(int key) {
+			int mask = keys.length - 1;
+			for (int i = mix(key) & mask; keys[i] != -1; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+			return -1;
+		}
+
+		void put(int key, int value) {
+			if ((size + 1) * 2 > keys.length) {
+				resize();
+			}
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (keys[i] != -1 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (keys[i] == -1) {
+				keys[i] = key;
+				size++;
+			}
+			values[i] = value;
+		}
+
+		void remove(int key) {
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (keys[i] != key) {
+				if (keys[i] == -1) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			// shift the later keys of the probe run back over the hole (unless their slot is after it)
+			for (int j = (i + 1) & mask; keys[j] != -1; j = (j + 1) & mask) {
+				int slot = mix(keys[j]) & mask;
+				if (i <= j ? (slot <= i || slot > j) : (slot <= i && slot > j)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = -1;
+			size--;
+		}
+
+		private void resize() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			values = new int[oldKeys.length * 2];
+			Arrays.fill(keys, -1);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != -1) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
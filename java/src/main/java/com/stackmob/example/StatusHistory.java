@@ -0,0 +1,396 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.lang.String;
+import java.lang.System;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// append-only status history of each user in "status_history" blocks of up to BLOCK_SIZE statuses
+// a block keeps its statuses as columns: dates as delta-of-delta varints, actions & places as indexes into the block's dictionary,
+// deflated and base64 encoded in its data field
+// statuses are "status_history" items of the work queue (so they survive a crash), written as background work by the worker,
+// the user's last block is rewritten until it is full
+// a rewrite only succeeds if the block's count is still the one read (other processes append to the same blocks),
+// otherwise the block is read again, and failed statuses are retried by the work queue
+public class StatusHistory extends BackgroundWork.Task {
+
+	public static final String KIND = "status_history";
+	// maximum number of statuses in one block
+	public static final int BLOCK_SIZE = 128;
+	// maximum number of queued statuses written in one batch
+	public static final int MAX_BATCH = 100;
+	// maximum number of cached last blocks, the least recently used are dropped (and read again when needed)
+	public static final int MAX_USERS = 10000;
+	// maximum number of times the last block is read again after another process rewrote it
+	public static final int MAX_WRITE_ATTEMPTS = 5;
+	// the queue is read again this long after it was found empty (statuses queued by this process are due right away)
+	public static final long POLL_INTERVAL_MILLIS = 10L * 1000L;
+
+	private static final StatusHistory INSTANCE = new StatusHistory();
+
+	public static StatusHistory getInstance() {
+		return INSTANCE;
+	}
+
+	private volatile long nextPollDate = 0L;
+	// username -> last block (only used by the running slice)
+	private final Map<String, Block> lastBlocks = new LinkedHashMap<String, Block>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Block> eldest) {
+			return size() > MAX_USERS;
+		}
+	};
+
+	private StatusHistory() {
+		BackgroundWork.getInstance().register(this);
+	}
+
+	// add a status of the user to the history later
+	public void append(DataService dataService, String username, String action, String place, long modDate) throws InvalidSchemaException, DatastoreException {
+		JSONObject payload = new JSONObject();
+		try {
+			payload.put("username", username);
+			payload.put("action", action);
+			payload.put("place", place);
+			payload.put("status_mod_date", modDate);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException(e);
+		}
+		WorkQueue.add(dataService, KIND, payload);
+		nextPollDate = 0L;
+	}
+
+	@Override
+	protected boolean isDue(long now) {
+		return now >= nextPollDate;
+	}
+
+	// write one batch of queued statuses
+	@Override
+	protected void runSlice(SDKServiceProvider serviceProvider) throws Exception {
+		DataService dataService = serviceProvider.getDataService();
+		List<WorkQueue.Item> batch = WorkQueue.claimDue(dataService, KIND, MAX_BATCH);
+		if (batch == null || batch.size() == 0) {
+			nextPollDate = System.currentTimeMillis() + POLL_INTERVAL_MILLIS;
+			return;
+		}
+		// group statuses by user (in order)
+		Map<String, List<WorkQueue.Item>> byUser = new LinkedHashMap<String, List<WorkQueue.Item>>();
+		for (int i = 0; i < batch.size(); i++) {
+			WorkQueue.Item item = batch.get(i);
+			String username = item.payload.getString("username");
+			List<WorkQueue.Item> items = byUser.get(username);
+			if (items == null) {
+				items = new ArrayList<WorkQueue.Item>();
+				byUser.put(username, items);
+			}
+			items.add(item);
+		}
+		for (Map.Entry<String, List<WorkQueue.Item>> userItems : byUser.entrySet()) {
+			String username = userItems.getKey();
+			List<WorkQueue.Item> items = userItems.getValue();
+			int written = 0;
+			try {
+				int conflicts = 0;
+				while (written < items.size()) {
+					// (the block is put back only once saved, so it's read again after a conflict or a failure)
+					Block block = lastBlocks.remove(username);
+					if (block == null) {
+						block = readLastBlock(dataService, username);
+					}
+					if (block.size == BLOCK_SIZE) {
+						block = new Block();
+					}
+					int savedSize = block.size;
+					int added = Math.min(BLOCK_SIZE - block.size, items.size() - written);
+					for (int i = written; i < written + added; i++) {
+						JSONObject status = items.get(i).payload;
+						// (an item retried after its status was saved is already in the block)
+						if (!block.contains(status.getLong("status_mod_date"), status.getString("action"), status.getString("place"))) {
+							block.add(status.getLong("status_mod_date"), status.getString("action"), status.getString("place"));
+						}
+					}
+					if (!saveBlock(dataService, username, block, savedSize)) {
+						// another process rewrote the block since it was read
+						if (++conflicts == MAX_WRITE_ATTEMPTS) {
+							throw new ConcurrentModificationException("last status history block of " + username + " kept changing");
+						}
+						continue;
+					}
+					for (int i = written; i < written + added; i++) {
+						WorkQueue.done(dataService, items.get(i));
+					}
+					written += added;
+					lastBlocks.put(username, block);
+				}
+			} catch (Exception e) {
+				LoggerService logger = serviceProvider.getLoggerService(StatusHistory.class);
+				int dropped = 0;
+				for (int i = written; i < items.size(); i++) {
+					if (!WorkQueue.failed(dataService, items.get(i))) {
+						dropped++;
+					}
+				}
+				if (dropped > 0) {
+					logger.error("failed to write " + dropped + " statuses to the history of " + username + " after " + WorkQueue.MAX_ATTEMPTS + " attempts", e);
+				}
+				if (dropped < items.size() - written) {
+					logger.warn("failed to write " + (items.size() - written - dropped) + " statuses to the history of " + username + ", retrying", e);
+				}
+			}
+		}
+	}
+
+	// the user's block with the latest statuses, a new block if the user has none
+	private static Block readLastBlock(DataService dataService, String username) throws InvalidSchemaException, DatastoreException, IOException, DataFormatException {
+		List<SMCondition> blockQuery = new ArrayList<SMCondition>();
+		blockQuery.add(new SMEquals("username", new SMString(username)));
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("start_date", OrderingDirection.DESCENDING));
+		ResultFilters filter = new ResultFilters(0, 0, orderings, null);
+		List<SMObject> blocks = dataService.readObjects("status_history", blockQuery, 0, filter);
+		if (blocks == null || blocks.size() == 0) {
+			return new Block();
+		}
+		return Block.fromObject(blocks.get(0));
+	}
+
+	// create the block, or rewrite it if it still has savedSize statuses in the datastore (false if it doesn't)
+	private static boolean saveBlock(DataService dataService, String username, Block block, int savedSize) throws InvalidSchemaException, DatastoreException, IOException {
+		List<SMString> dictionary = new ArrayList<SMString>();
+		for (int i = 0; i < block.dictionary.size(); i++) {
+			dictionary.add(new SMString(block.dictionary.get(i)));
+		}
+		if (block.id == null) {
+			Map<String, SMValue> blockMap = new HashMap<String, SMValue>();
+			blockMap.put("sm_owner", new SMString("user/" + username));
+			blockMap.put("username", new SMString(username));
+			blockMap.put("start_date", new SMInt(block.getStartDate()));
+			blockMap.put("end_date", new SMInt(block.getEndDate()));
+			blockMap.put("count", new SMInt((long)block.size));
+			blockMap.put("dictionary", new SMList<SMString>(dictionary));
+			blockMap.put("data", new SMString(block.encode()));
+			SMObject blockObject = dataService.createObject("status_history", new SMObject(blockMap));
+			block.id = (SMString)blockObject.getValue().get("status_history_id");
+			return true;
+		}
+		List<SMUpdate> blockUpdates = new ArrayList<SMUpdate>();
+		// (retried statuses may be older than the block's others)
+		blockUpdates.add(new SMSet("start_date", new SMInt(block.getStartDate())));
+		blockUpdates.add(new SMSet("end_date", new SMInt(block.getEndDate())));
+		blockUpdates.add(new SMSet("count", new SMInt((long)block.size)));
+		blockUpdates.add(new SMSet("dictionary", new SMList<SMString>(dictionary)));
+		blockUpdates.add(new SMSet("data", new SMString(block.encode())));
+		List<SMCondition> countConditions = new ArrayList<SMCondition>();
+		countConditions.add(new SMEquals("count", new SMInt((long)savedSize)));
+		// (no object is updated if the count changed since the read)
+		return dataService.updateObject("status_history", block.id, countConditions, blockUpdates) != null;
+	}
+
+	// up to BLOCK_SIZE statuses of a user, oldest first
+	public static class Block {
+		SMString id;
+		long[] dates = new long[BLOCK_SIZE];
+		int[] actions = new int[BLOCK_SIZE];
+		int[] places = new int[BLOCK_SIZE];
+		int size = 0;
+		final List<String> dictionary = new ArrayList<String>();
+		private final Map<String, Integer> dictionaryIndexes = new HashMap<String, Integer>();
+
+		void add(long date, String action, String place) {
+			dates[size] = date;
+			actions[size] = indexOf(action);
+			places[size] = indexOf(place);
+			size++;
+		}
+
+		boolean contains(long date, String action, String place) {
+			for (int i = 0; i < size; i++) {
+				if (dates[i] == date && getAction(i).equals(action) && getPlace(i).equals(place)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getDate(int i) {
+			return dates[i];
+		}
+
+		public long getStartDate() {
+			long startDate = dates[0];
+			for (int i = 1; i < size; i++) {
+				startDate = Math.min(startDate, dates[i]);
+			}
+			return startDate;
+		}
+
+		public long getEndDate() {
+			long endDate = dates[0];
+			for (int i = 1; i < size; i++) {
+				endDate = Math.max(endDate, dates[i]);
+			}
+			return endDate;
+		}
+
+		public String getAction(int i) {
+			return dictionary.get(actions[i]);
+		}
+
+		public String getPlace(int i) {
+			return dictionary.get(places[i]);
+		}
+
+		private int indexOf(String value) {
+			Integer index = dictionaryIndexes.get(value);
+			if (index == null) {
+				index = Integer.valueOf(dictionary.size());
+				dictionary.add(value);
+				dictionaryIndexes.put(value, index);
+			}
+			return index.intValue();
+		}
+
+		// count, first date, delta-of-delta of the other dates, then action & place indexes (deflated, base64)
+		String encode() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeVarLong(out, size);
+			if (size > 0) {
+				out.writeLong(dates[0]);
+			}
+			long previousDelta = 0L;
+			for (int i = 1; i < size; i++) {
+				long delta = dates[i] - dates[i - 1];
+				writeVarLong(out, zigZag(delta - previousDelta));
+				previousDelta = delta;
+			}
+			for (int i = 0; i < size; i++) {
+				writeVarLong(out, actions[i]);
+				writeVarLong(out, places[i]);
+			}
+			out.flush();
+
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			deflater.setInput(bytes.toByteArray());
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			deflater.end();
+			return Base64.encodeBase64String(compressed.toByteArray());
+		}
+
+		// decode a block read with its id, dictionary and data
+		public static Block fromObject(SMObject blockObject) throws IOException, DataFormatException {
+			Block block = new Block();
+			block.id = (SMString)blockObject.getValue().get("status_history_id");
+			List<SMString> dictionary = ((SMList<SMString>)blockObject.getValue().get("dictionary")).getValue();
+			for (int i = 0; i < dictionary.size(); i++) {
+				block.indexOf(dictionary.get(i).getValue());
+			}
+
+			Inflater inflater = new Inflater();
+			inflater.setInput(Base64.decodeBase64(((SMString)blockObject.getValue().get("data")).getValue()));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("truncated status history block");
+				}
+				bytes.write(buffer, 0, length);
+			}
+			inflater.end();
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			block.size = (int)readVarLong(in);
+			if (block.size > 0) {
+				block.dates[0] = in.readLong();
+			}
+			long previousDelta = 0L;
+			for (int i = 1; i < block.size; i++) {
+				long delta = previousDelta + unZigZag(readVarLong(in));
+				block.dates[i] = block.dates[i - 1] + delta;
+				previousDelta = delta;
+			}
+			for (int i = 0; i < block.size; i++) {
+				block.actions[i] = (int)readVarLong(in);
+				block.places[i] = (int)readVarLong(in);
+			}
+			return block;
+		}
+
+		private static long zigZag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+
+		private static long unZigZag(long value) {
+			return (value >>> 1) ^ -(value & 1L);
+		}
+
+		private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.writeByte((int)((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int)value);
+		}
+
+		private static long readVarLong(DataInputStream in) throws IOException {
+			long value = 0L;
+			for (int shift = 0; ; shift += 7) {
+				int b = in.readUnsignedByte();
+				value |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+		}
+	}
+}
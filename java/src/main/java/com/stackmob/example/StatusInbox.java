@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.lang.String;
+import java.lang.Long;
+
+// per-user inboxes of mutual friends' status changes, one "status_change" object per user and friend (keyed by status_mod_date)
+// UpdateUser writes a new status to the inbox of each mutual friend, so the changes after a date are one query (O(changes), not O(friends))
+// the objects are kept when a relationship ends, readers check that the relationship is still mutual
+// users with more mutual friends than the degree limit are not fanned out: their friends' objects only mark them to be read (pull = 1),
+// the marks are written once when the user crosses the limit (and for each new friend)
+public class StatusInbox {
+
+	// the inboxes have every status change after this date (millis), until it is set they are not used
+	public static final String START_DATE_SETTING = "status_inbox_start_date";
+	public static final String DEGREE_LIMIT_SETTING = "status_fanout_degree_limit";
+	public static final long DEFAULT_DEGREE_LIMIT = 500L;
+	// maximum number of ids in one SMIn
+	public static final int READ_BATCH_SIZE = 100;
+
+	private static final String SCHEMA = "status_change";
+
+	// check if the inboxes have every status change after the given date
+	public static boolean isComplete(DataService dataService, long since) throws InvalidSchemaException, DatastoreException {
+		return since >= AppConfig.getInstance().getLong(dataService, START_DATE_SETTING, Long.MAX_VALUE);
+	}
+
+	// check if the user's status is read by the friends instead of written to their inboxes (status_pull on the user object)
+	public static boolean isPulled(SMObject userObject) {
+		SMValue pullValue = userObject.getValue().get("status_pull");
+		return pullValue != null && ((SMInt)pullValue).getValue().longValue() == 1L;
+	}
+
+	// write a user's new status to the inboxes of the mutual friends (friend username -> relationship id), return true if the user is pulled instead
+	// (pulled tells if the friends' inboxes already mark the user to be read)
+	public static boolean publish(final DataService dataService, final String username, final String action, final String place, final long modDate, Map<String, String> relIdsByFriend, boolean pulled) throws InvalidSchemaException, DatastoreException {
+		final boolean pull = relIdsByFriend.size() > AppConfig.getInstance().getLong(dataService, DEGREE_LIMIT_SETTING, DEFAULT_DEGREE_LIMIT);
+		if (pull && pulled) {
+			return true;
+		}
+		List<ParallelWrites.Write> writes = new ArrayList<ParallelWrites.Write>();
+		for (Map.Entry<String, String> friend : relIdsByFriend.entrySet()) {
+			final String friendId = friend.getKey();
+			final String relId = friend.getValue();
+			writes.add(new ParallelWrites.Write() {
+				@Override
+				public void run() throws InvalidSchemaException, DatastoreException {
+					deliver(dataService, friendId, username, relId, action, place, modDate, pull);
+				}
+			});
+		}
+		ParallelWrites.runAll(writes);
+		return pull;
+	}
+
+	// write a friend's status (or the mark to read it) to one user's inbox, unless it has a later one
+	public static void deliver(DataService dataService, String username, String friendId, String relId, String action, String place, long modDate, boolean pull) throws InvalidSchemaException, DatastoreException {
+		Map<String, SMValue> fields = new HashMap<String, SMValue>();
+		fields.put("recipient", new SMString(username));
+		fields.put("friend", new SMString(friendId));
+		fields.put("relationship_id", new SMString(relId));
+		fields.put("action", new SMString(action));
+		fields.put("place", new SMString(place));
+		fields.put("status_mod_date", new SMInt(modDate));
+		fields.put("pull", new SMInt(pull ? 1L : 0L));
+		List<SMCondition> conditions = new ArrayList<SMCondition>();
+		conditions.add(new SMLess("status_mod_date", new SMInt(modDate)));
+		KeyedObjects.put(dataService, SCHEMA, "status_change_id", getId(username, friendId), conditions, fields);
+	}
+
+	// friends' statuses changed after the given date (friend, relationship_id, action, place, status_mod_date), null if they can't be read
+	// the written changes are one query, the pulled friends are read READ_BATCH_SIZE at a time
+	// (the relationships are not checked, see keepMutual)
+	public static List<SMObject> readSince(DataService dataService, String username, long since) throws InvalidSchemaException, DatastoreException {
+		List<String> fields = new ArrayList<String>();
+		fields.add("friend");
+		fields.add("relationship_id");
+		fields.add("action");
+		fields.add("place");
+		fields.add("status_mod_date");
+		fields.add("pull");
+		ResultFilters filter = new ResultFilters(0, -1, null, fields);
+		// - written changes
+		List<SMCondition> query = new ArrayList<SMCondition>();
+		query.add(new SMEquals("recipient", new SMString(username)));
+		query.add(new SMGreater("status_mod_date", new SMInt(since)));
+		List<SMObject> written = dataService.readObjects(SCHEMA, query, 0, filter);
+		// - marks of the pulled friends
+		query = new ArrayList<SMCondition>();
+		query.add(new SMEquals("recipient", new SMString(username)));
+		query.add(new SMEquals("pull", new SMInt(1L)));
+		List<SMObject> marks = dataService.readObjects(SCHEMA, query, 0, filter);
+		if (written == null || marks == null) {
+			return null;
+		}
+		List<SMObject> changes = new ArrayList<SMObject>();
+		for (int i = 0; i < written.size(); i++) {
+			if (!isMark(written.get(i))) {
+				changes.add(written.get(i));
+			}
+		}
+		List<String> userFields = new ArrayList<String>();
+		userFields.add("username");
+		userFields.add("action");
+		userFields.add("place");
+		userFields.add("status_mod_date");
+		ResultFilters userFilter = new ResultFilters(0, -1, null, userFields);
+		for (int start = 0; start < marks.size(); start += READ_BATCH_SIZE) {
+			Map<String, SMValue> relIdsByFriend = new HashMap<String, SMValue>();
+			List<SMString> friendIds = new ArrayList<SMString>();
+			for (int i = start; i < Math.min(start + READ_BATCH_SIZE, marks.size()); i++) {
+				SMString friendId = (SMString)marks.get(i).getValue().get("friend");
+				relIdsByFriend.put(friendId.getValue(), marks.get(i).getValue().get("relationship_id"));
+				friendIds.add(friendId);
+			}
+			List<SMCondition> userQuery = new ArrayList<SMCondition>();
+			userQuery.add(new SMIn("username", friendIds));
+			userQuery.add(new SMGreater("status_mod_date", new SMInt(since)));
+			List<SMObject> friendObjects = dataService.readObjects("user", userQuery, 0, userFilter);
+			if (friendObjects == null) {
+				return null;
+			}
+			for (int i = 0; i < friendObjects.size(); i++) {
+				Map<String, SMValue> friendMap = friendObjects.get(i).getValue();
+				SMString friendId = (SMString)friendMap.get("username");
+				Map<String, SMValue> changeMap = new HashMap<String, SMValue>();
+				changeMap.put("friend", friendId);
+				changeMap.put("relationship_id", relIdsByFriend.get(friendId.getValue()));
+				changeMap.put("action", friendMap.get("action"));
+				changeMap.put("place", friendMap.get("place"));
+				changeMap.put("status_mod_date", friendMap.get("status_mod_date"));
+				changes.add(new SMObject(changeMap));
+			}
+		}
+		return changes;
+	}
+
+	// the changes whose relationship is still mutual (both types are friend), null if the relationships can't be read
+	public static List<SMObject> keepMutual(DataService dataService, List<SMObject> changes) throws InvalidSchemaException, DatastoreException {
+		Set<String> mutualRelIds = readMutualRelIds(dataService, changes);
+		if (mutualRelIds == null) {
+			return null;
+		}
+		List<SMObject> mutualChanges = new ArrayList<SMObject>();
+		for (int i = 0; i < changes.size(); i++) {
+			SMObject changeObject = changes.get(i);
+			if (mutualRelIds.contains(((SMString)changeObject.getValue().get("relationship_id")).getValue())) {
+				mutualChanges.add(changeObject);
+			}
+		}
+		return mutualChanges;
+	}
+
+	// marks only tell that the friend is read instead
+	private static boolean isMark(SMObject changeObject) {
+		SMValue pullValue = changeObject.getValue().get("pull");
+		return pullValue != null && ((SMInt)pullValue).getValue().longValue() == 1L;
+	}
+
+	// ids of the changes' relationships that are mutual (both types are friend), read READ_BATCH_SIZE at a time
+	private static Set<String> readMutualRelIds(DataService dataService, List<SMObject> changes) throws InvalidSchemaException, DatastoreException {
+		Set<String> mutualRelIds = new HashSet<String>();
+		List<String> relFields = new ArrayList<String>();
+		relFields.add("relationship_id");
+		relFields.add("type_by_owner");
+		relFields.add("type_by_receiver");
+		ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
+		for (int start = 0; start < changes.size(); start += READ_BATCH_SIZE) {
+			List<SMString> relIds = new ArrayList<SMString>();
+			for (int i = start; i < Math.min(start + READ_BATCH_SIZE, changes.size()); i++) {
+				relIds.add((SMString)changes.get(i).getValue().get("relationship_id"));
+			}
+			List<SMCondition> relQuery = new ArrayList<SMCondition>();
+			relQuery.add(new SMIn("relationship_id", relIds));
+			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, relFilter);
+			if (rels == null) {
+				return null;
+			}
+			for (int i = 0; i < rels.size(); i++) {
+				SMObject relObject = rels.get(i);
+				SMInt typeOwner = (SMInt)relObject.getValue().get("type_by_owner");
+				SMInt typeReceiver = (SMInt)relObject.getValue().get("type_by_receiver");
+				if (typeOwner.getValue().longValue() == 2L && typeReceiver.getValue().longValue() == 2L) {
+					mutualRelIds.add(((SMString)relObject.getValue().get("relationship_id")).getValue());
+				}
+			}
+		}
+		return mutualRelIds;
+	}
+
+	// one object per user and friend
+	private static String getId(String username, String friendId) {
+		return DigestUtils.md5Hex(username + "\n" + friendId);
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.SMString;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.System;
+
+// pending status request (type 3) events by relationship side, a side is known once its events have been read
+// requests may be created & removed in other processes too, so sides are only trusted for READ_TTL_MILLIS after they were read,
+// and only to skip reading before a new request is created (clearing a user's requests always reads them, see UpdateUser)
+// at most MAX_SIDES sides are kept, the least recently used ones are dropped
+public class StatusRequestIndex {
+
+	// how long a side read from the datastore is used instead of reading it again
+	public static final long READ_TTL_MILLIS = 30L * 1000L;
+	public static final int MAX_SIDES = 100000;
+
+	private static final StatusRequestIndex INSTANCE = new StatusRequestIndex();
+
+	public static StatusRequestIndex getInstance() {
+		return INSTANCE;
+	}
+
+	// "relationship id/events_by_<role>" -> side
+	private final Map<String, Side> sides = new LinkedHashMap<String, Side>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Side> eldest) {
+			if (size() > MAX_SIDES) {
+				if (!eldest.getValue().eventId.isEmpty()) {
+					sidesByEvent.remove(eldest.getValue().eventId);
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+	// pending event id -> side
+	private final Map<String, Side> sidesByEvent = new HashMap<String, Side>();
+
+	// check if the side was read within READ_TTL_MILLIS
+	public synchronized boolean isKnown(String relId, String eventKey) {
+		Side side = sides.get(relId + "/" + eventKey);
+		return side != null && System.currentTimeMillis() - side.readDate < READ_TTL_MILLIS;
+	}
+
+	// pending event id of the side, "" if there is none, null if the side is unknown
+	public synchronized String getPending(String relId, String eventKey) {
+		Side side = sides.get(relId + "/" + eventKey);
+		return side == null ? null : side.eventId;
+	}
+
+	// record the pending event of a side ("" if there is none)
+	public synchronized void put(String relId, String eventKey, String eventId) {
+		setPending(getSide(relId, eventKey), eventId);
+	}
+
+	// record the pending event of a side just read from the datastore
+	public synchronized void putRead(String relId, String eventKey, String eventId) {
+		Side side = getSide(relId, eventKey);
+		setPending(side, eventId);
+		side.readDate = System.currentTimeMillis();
+	}
+
+	// record sides just read from the datastore whose pending requests were all removed
+	public synchronized void putCleared(List<String> relIds, List<String> eventKeys) {
+		for (int i = 0; i < relIds.size(); i++) {
+			putRead(relIds.get(i), eventKeys.get(i), "");
+		}
+	}
+
+	// forget removed events (of any type)
+	public synchronized void removeEvents(List<SMString> eventIds) {
+		for (int i = 0; i < eventIds.size(); i++) {
+			Side side = sidesByEvent.get(eventIds.get(i).getValue());
+			if (side != null) {
+				setPending(side, "");
+			}
+		}
+	}
+
+	private Side getSide(String relId, String eventKey) {
+		String key = relId + "/" + eventKey;
+		Side side = sides.get(key);
+		if (side == null) {
+			side = new Side();
+			sides.put(key, side);
+		}
+		return side;
+	}
+
+	private void setPending(Side side, String eventId) {
+		if (!side.eventId.isEmpty()) {
+			sidesByEvent.remove(side.eventId);
+		}
+		side.eventId = eventId;
+		if (!eventId.isEmpty()) {
+			sidesByEvent.put(eventId, side);
+		}
+	}
+
+	private static class Side {
+		String eventId = "";
+		// date the side's events were read (0 if only changed in this process)
+		long readDate = 0L;
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.core.customcode.CustomCodeMethod;
+import com.stackmob.core.rest.ProcessedAPIRequest;
+import com.stackmob.core.rest.ResponseToProcess;
+import com.stackmob.sdkapi.SDKServiceProvider;
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.lang.String;
+import java.lang.Long;
+
+// people the user may know, ranked by the number of mutual friends, from the social graph index
+// the graph is process-local: the user's and the friends' relationships are read again when they were loaded more than
+// SocialGraphIndex.RELOAD_INTERVAL_MILLIS ago, so suggestions and their counts may miss friendships made (or ended) since in other processes
+// (already related users are skipped as known here, the client may still get one it is related to since)
+public class SuggestFriends implements CustomCodeMethod {
+
+	public static final int DEFAULT_LIMIT = 20;
+	public static final int MAX_LIMIT = 100;
+	// at most this many of the user's friends are visited for their friends
+	public static final int MAX_FRIENDS_VISITED = 5000;
+	// friends not in the graph index yet are read this many at a time
+	public static final int READ_BATCH_SIZE = 100;
+	// mutual friends of users with more friends than this are counted in parallel
+	public static final int PARALLEL_THRESHOLD = 1000;
+
+	private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "suggest-friends");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	@Override
+	public String getMethodName() {
+		return "suggest_friends";
+	}
+
+	@Override
+	public List<String> getParams() {
+		return Arrays.asList("limit");
+	}
+
+	@Override
+	public ResponseToProcess execute(ProcessedAPIRequest request, SDKServiceProvider serviceProvider) {
+		// only allow GET method
+		String verb = request.getVerb().toString();
+		if (!verb.equalsIgnoreCase("get")) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid method");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_METHOD, errParams); // http 405 - method not allowed
+		}
+
+		// try getting logged-in user
+		String username = request.getLoggedInUser();
+		if (username == null || username.isEmpty()) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "no user is logged in");
+			return new ResponseToProcess(HttpURLConnection.HTTP_UNAUTHORIZED, errParams); // http 401 - unauthorized
+		}
+		SMString userId = new SMString(username);
+
+		// get the parameters
+		int limit = DEFAULT_LIMIT;
+		try {
+			String limitParam = request.getParams().get("limit");
+			if (limitParam != null && !limitParam.isEmpty()) {
+				limit = Integer.parseInt(limitParam);
+			}
+		} catch (NumberFormatException e) {
+			limit = -1;
+		}
+		if (limit < 1 || limit > MAX_LIMIT) {
+			HashMap<String, String> errParams = new HashMap<String, String>();
+			errParams.put("error", "invalid request parameter");
+			return new ResponseToProcess(HttpURLConnection.HTTP_BAD_REQUEST, errParams); // http 400 - bad request
+		}
+
+		// get the datastore service
+		DataService dataService = serviceProvider.getDataService();
+
+		// create a response
+		try {
+			Map<String, Object> returnMap = new HashMap<String, Object>();
+			List<Map<String, Object>> suggestions = new ArrayList<Map<String, Object>>();
+			returnMap.put("suggestions", suggestions);
+
+			// 1. user's friends (from the graph index, read if not loaded yet)
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			if (!graph.isLoaded(username)) {
+				List<SMString> userIdList = new ArrayList<SMString>();
+				userIdList.add(userId);
+				graph.loadUsers(dataService, userIdList);
+			}
+			int user = graph.getUserInt(username);
+			if (user < 0) {
+				return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+			}
+			int[] friends = graph.getFriends(new int[] {user})[0];
+			if (friends.length > MAX_FRIENDS_VISITED) {
+				friends = Arrays.copyOf(friends, MAX_FRIENDS_VISITED);
+			}
+
+			// 2. friends of the friends (read those not loaded yet in batches)
+			List<SMString> unloadedIds = new ArrayList<SMString>();
+			for (int i = 0; i < friends.length; i++) {
+				String friendName = graph.getUsername(friends[i]);
+				if (!graph.isLoaded(friendName)) {
+					unloadedIds.add(new SMString(friendName));
+				}
+			}
+			for (int i = 0; i < unloadedIds.size(); i += READ_BATCH_SIZE) {
+				graph.loadUsers(dataService, unloadedIds.subList(i, Math.min(i + READ_BATCH_SIZE, unloadedIds.size())));
+			}
+			int[][] friendsOfFriends = graph.getFriends(friends);
+
+			// 3. count mutual friends of everyone two hops away, except the user and anyone already related to the user
+			int[] counts = countMutualFriends(friendsOfFriends, graph.getUserCount());
+			counts[user] = 0;
+			int[] related = graph.getRelated(user);
+			for (int i = 0; i < related.length; i++) {
+				counts[related[i]] = 0;
+			}
+
+			// 4. keep the top ones in a min-heap of {user, count}
+			PriorityQueue<int[]> heap = new PriorityQueue<int[]>(limit + 1, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] a, int[] b) {
+					if (a[1] != b[1]) {
+						return a[1] < b[1] ? -1 : 1;
+					}
+					return a[0] > b[0] ? -1 : (a[0] < b[0] ? 1 : 0);
+				}
+			});
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0) {
+					continue;
+				}
+				if (heap.size() < limit) {
+					heap.add(new int[] {i, counts[i]});
+				} else if (counts[i] > heap.peek()[1]) {
+					heap.poll();
+					heap.add(new int[] {i, counts[i]});
+				}
+			}
+			int[][] top = new int[heap.size()][];
+			for (int i = top.length - 1; i >= 0; i--) {
+				top[i] = heap.poll();
+			}
+			if (top.length == 0) {
+				return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+			}
+
+			// 5. fetch the suggested users' data
+			// - build query
+			List<SMString> suggestedIds = new ArrayList<SMString>();
+			for (int i = 0; i < top.length; i++) {
+				suggestedIds.add(new SMString(graph.getUsername(top[i][0])));
+			}
+			List<SMCondition> suggestedQuery = new ArrayList<SMCondition>();
+			suggestedQuery.add(new SMIn("username", suggestedIds));
+			// - build result filter
+			List<String> suggestedFields = new ArrayList<String>();
+			suggestedFields.add("username");
+			suggestedFields.add("name");
+			suggestedFields.add("profile_image_url");
+			ResultFilters suggestedFilter = new ResultFilters(0, -1, null, suggestedFields);
+			// - execute query
+			List<SMObject> suggestedObjects = dataService.readObjects("user", suggestedQuery, 0, suggestedFilter);
+			Map<String, SMObject> suggestedMap = new HashMap<String, SMObject>();
+			if (suggestedObjects != null) {
+				for (int i = 0; i < suggestedObjects.size(); i++) {
+					SMObject suggestedObject = suggestedObjects.get(i);
+					suggestedMap.put(((SMString)suggestedObject.getValue().get("username")).getValue(), suggestedObject);
+				}
+			}
+			// return in rank order (skip invite emails and removed users)
+			for (int i = 0; i < top.length; i++) {
+				SMObject suggestedObject = suggestedMap.get(suggestedIds.get(i).getValue());
+				if (suggestedObject == null) {
+					continue;
+				}
+				Map<String, Object> friendMap = new HashMap<String, Object>();
+				friendMap.put("username", suggestedIds.get(i));
+				friendMap.put("name", (SMString)suggestedObject.getValue().get("name"));
+				friendMap.put("profile_image_url", (SMString)suggestedObject.getValue().get("profile_image_url"));
+				friendMap.put("mutual_count", new Long(top[i][1]));
+				suggestions.add(friendMap);
+			}
+			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
+		} catch (InvalidSchemaException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "invalid_schema");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (DatastoreException e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "datastore_exception");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		} catch (Exception e) {
+			HashMap<String, String> errMap = new HashMap<String, String>();
+			errMap.put("error", "unknown");
+			errMap.put("detail", e.toString());
+			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
+		}
+	}
+
+	// number of the friends' friend lists each user is in, indexed by user int
+	// (lists of high-degree users are split among the threads and their counts added up)
+	static int[] countMutualFriends(final int[][] friendsOfFriends, final int userCount) throws Exception {
+		if (friendsOfFriends.length <= PARALLEL_THRESHOLD) {
+			return countRange(friendsOfFriends, 0, friendsOfFriends.length, userCount);
+		}
+		int chunk = (friendsOfFriends.length + THREADS - 1) / THREADS;
+		List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+		for (int start = chunk; start < friendsOfFriends.length; start += chunk) {
+			final int from = start;
+			final int to = Math.min(start + chunk, friendsOfFriends.length);
+			futures.add(EXECUTOR.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					return countRange(friendsOfFriends, from, to, userCount);
+				}
+			}));
+		}
+		// the first chunk is counted on the calling thread
+		int[] counts = countRange(friendsOfFriends, 0, chunk, userCount);
+		for (int i = 0; i < futures.size(); i++) {
+			int[] partial = futures.get(i).get();
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] += partial[j];
+			}
+		}
+		return counts;
+	}
+
+	private static int[] countRange(int[][] friendsOfFriends, int from, int to, int userCount) {
+		int[] counts = new int[userCount];
+		for (int i = from; i < to; i++) {
+			int[] others = friendsOfFriends[i];
+			for (int j = 0; j < others.length; j++) {
+				counts[others[j]]++;
+			}
+		}
+		return counts;
+	}
+}
@@ -286,8 +286,8 @@ public class UpdateGroup implements CustomCodeMethod {
 				relFields.add("type_by_receiver");
 				relFields.add("owner");
 				relFields.add("receiver");
-				relFields.add("events_by_owner");
-				relFields.add("events_by_receiver");
+				EventStore.addEventFields(relFields, "", "events_by_owner");
+				EventStore.addEventFields(relFields, "", "events_by_receiver");
 				relFields.add("groups_by_owner");
 				relFields.add("groups_by_owner.group_id");
 				relFields.add("groups_by_owner.relationship_order");
@@ -310,12 +310,16 @@ public class UpdateGroup implements CustomCodeMethod {
 					SMString relId = (SMString)relObject.getValue().get("relationship_id");
 					// find user's role in this relationship
 					SMString relOwnerId = (SMString)relObject.getValue().get("owner");
+					// (no receiver for invites)
+					String receiverName = null;
 					String userRole = "";
 					if (relOwnerId.equals(userId)) {
 						userRole = "owner";
-					} else if (relObject.getValue().containsKey("receiver")) {
+					}
+					if (relObject.getValue().containsKey("receiver")) {
 						SMString receiverId = (SMString)relObject.getValue().get("receiver");
-						if (receiverId.equals(userId)) {
+						receiverName = receiverId.getValue();
+						if (userRole.isEmpty() && receiverId.equals(userId)) {
 							userRole = "receiver";
 						}
 					}
@@ -329,25 +333,27 @@ public class UpdateGroup implements CustomCodeMethod {
 							SMInt typeOther = (SMInt)relObject.getValue().get(typeOtherKey);
 							// remove all events from both sides (no need to remove if any of the types is already block or delete)
 							if (typeUser.getValue().longValue() < 3L && typeOther.getValue().longValue() < 3L) {
-								if (relObject.getValue().containsKey("events_by_owner")) {
-									SMList<SMString> eventsValue = (SMList<SMString>)relObject.getValue().get("events_by_owner");
-									List<SMString> events = eventsValue.getValue();
-									if (events.size() > 0) {
-										dataService.removeRelatedObjects("relationship", relId, "events_by_owner", events, true);
-									}
-									if (userRole.equals("receiver")) {
-										removedEventIds.addAll(events);
-									}
+								List<SMObject> ownerEvents = EventStore.getEvents(relObject, "events_by_owner");
+								List<SMString> ownerEventIds = EventStore.getIds(ownerEvents);
+								if (ownerEventIds.size() > 0) {
+									EventStore.removeEvents(dataService, relId, "events_by_owner", ownerEventIds);
+									StatusRequestIndex.getInstance().removeEvents(ownerEventIds);
+									NotificationInbox.getInstance().removeEvents(ownerEventIds);
+									BadgeCounts.subtract(dataService, receiverName, ownerEvents);
 								}
-								if (relObject.getValue().containsKey("events_by_receiver")) {
-									SMList<SMString> eventsValue = (SMList<SMString>)relObject.getValue().get("events_by_receiver");
-									List<SMString> events = eventsValue.getValue();
-									if (events.size() > 0) {
-										dataService.removeRelatedObjects("relationship", relId, "events_by_receiver", events, true);
-									}
-									if (userRole.equals("owner")) {
-										removedEventIds.addAll(events);
-									}
+								if (userRole.equals("receiver")) {
+									removedEventIds.addAll(ownerEventIds);
+								}
+								List<SMObject> receiverEvents = EventStore.getEvents(relObject, "events_by_receiver");
+								List<SMString> receiverEventIds = EventStore.getIds(receiverEvents);
+								if (receiverEventIds.size() > 0) {
+									EventStore.removeEvents(dataService, relId, "events_by_receiver", receiverEventIds);
+									StatusRequestIndex.getInstance().removeEvents(receiverEventIds);
+									NotificationInbox.getInstance().removeEvents(receiverEventIds);
+									BadgeCounts.subtract(dataService, relOwnerId.getValue(), receiverEvents);
+								}
+								if (userRole.equals("owner")) {
+									removedEventIds.addAll(receiverEventIds);
 								}
 							}
 							// if type changes from friend, remove this relationship from all groups
@@ -385,6 +391,7 @@ public class UpdateGroup implements CustomCodeMethod {
 							List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
 							relUpdates.add(new SMSet(typeUserKey, new SMInt(type)));
 							dataService.updateObject("relationship", relId, relUpdates);
+							SocialGraphIndex.getInstance().setType(relId.getValue(), userRole, type);
 							
 							foundRelIds.add(relId);
 						}
@@ -76,16 +76,12 @@ public class UpdateInvites implements CustomCodeMethod {
 		
 		// create a response
 		try {
-			// fetch relationship object
-			// - build query
-			List<SMCondition> relQuery = new ArrayList<SMCondition>();
-			relQuery.add(new SMEquals("invite_email", userId));
+			// fetch relationship object (the user's invites, from the invite index)
 			// - build result filter
 			List<String> fields = new ArrayList<String>();
 			fields.add("relationship_id");
-			ResultFilters filter = new ResultFilters(0, -1, null, fields);
 			// - execute query
-			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 0, filter);
+			List<SMObject> rels = InviteIndex.getInstance().readInvites(dataService, username, fields, 0);
 			if (rels != null) {
 				// connect each relationship with the user
 				List<SMString> relIds = new ArrayList<SMString>();
@@ -102,6 +98,7 @@ public class UpdateInvites implements CustomCodeMethod {
 					List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
 					relUpdates.add(new SMSet("invite_email", new SMString("")));
 					dataService.updateObject("relationship", relId, relUpdates);
+					InviteIndex.getInstance().remove(username, relId.getValue());
 				}
 				// add all relationships in user's relationships_by_others
 				dataService.addRelatedObjects("user", userId, "relationships_by_others", relIds);
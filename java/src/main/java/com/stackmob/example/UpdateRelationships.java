@@ -115,46 +115,62 @@ public class UpdateRelationships implements CustomCodeMethod {
 		
 		// create a response
 		try {
+			// skip relationships the graph index knows the user is not in (owner & receiver never change),
+			// the types in the index may be stale so the others are always read
+			SocialGraphIndex graph = SocialGraphIndex.getInstance();
+			List<SMString> reqIds = new ArrayList<SMString>(acceptIds);
+			reqIds.addAll(blockIds);
+			reqIds.addAll(deleteIds);
+			List<SMString> allIds = new ArrayList<SMString>();
+			for (int i = 0; i < reqIds.size(); i++) {
+				SMString relId = reqIds.get(i);
+				String userRole = graph.getRole(relId.getValue(), username);
+				if (userRole == null || !userRole.isEmpty()) {
+					allIds.add(relId);
+				}
+			}
 			// fetch relationship objects
-			// - build query
-			List<SMString> allIds = new ArrayList<SMString>(acceptIds);
-			allIds.addAll(blockIds);
-			allIds.addAll(deleteIds);
-			List<SMCondition> relQuery = new ArrayList<SMCondition>();
-			relQuery.add(new SMIn("relationship_id", allIds));
-			// - build result filter
-			List<String> fields = new ArrayList<String>();
-			fields.add("relationship_id");
-			fields.add("type_by_owner");
-			fields.add("type_by_receiver");
-			fields.add("invite_email");
-			fields.add("owner");
-			fields.add("owner.username");
-			fields.add("owner.action");
-			fields.add("owner.place");
-			fields.add("owner.status_mod_date");
-			fields.add("receiver");
-			fields.add("receiver.username");
-			fields.add("receiver.action");
-			fields.add("receiver.place");
-			fields.add("receiver.status_mod_date");
-			fields.add("events_by_owner");
-			fields.add("events_by_receiver");
-			fields.add("groups_by_owner");
-			fields.add("groups_by_owner.group_id");
-			fields.add("groups_by_owner.relationship_order");
-			fields.add("groups_by_receiver");
-			fields.add("groups_by_receiver.group_id");
-			fields.add("groups_by_receiver.relationship_order");
-			ResultFilters filter = new ResultFilters(0, -1, null, fields);
-			// - execute query
-			List<SMObject> rels = dataService.readObjects("relationship", relQuery, 1, filter);
-			// report error if query failed
-			if (rels == null || rels.size() != allIds.size()) {
-				HashMap<String, String> errMap = new HashMap<String, String>();
-				errMap.put("error", "invalid relationship fetch");
-				errMap.put("detail", (rels == null ? "null fetch result" : ("fetch result count = " + rels.size())));
-				return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+			List<SMObject> rels = new ArrayList<SMObject>();
+			if (allIds.size() > 0) {
+				// - build query
+				List<SMCondition> relQuery = new ArrayList<SMCondition>();
+				relQuery.add(new SMIn("relationship_id", allIds));
+				// - build result filter
+				List<String> fields = new ArrayList<String>();
+				fields.add("relationship_id");
+				fields.add("type_by_owner");
+				fields.add("type_by_receiver");
+				fields.add("invite_email");
+				fields.add("owner");
+				fields.add("owner.username");
+				fields.add("owner.action");
+				fields.add("owner.place");
+				fields.add("owner.status_mod_date");
+				fields.add("owner.status_pull");
+				fields.add("receiver");
+				fields.add("receiver.username");
+				fields.add("receiver.action");
+				fields.add("receiver.place");
+				fields.add("receiver.status_mod_date");
+				fields.add("receiver.status_pull");
+				EventStore.addEventFields(fields, "", "events_by_owner");
+				EventStore.addEventFields(fields, "", "events_by_receiver");
+				fields.add("groups_by_owner");
+				fields.add("groups_by_owner.group_id");
+				fields.add("groups_by_owner.relationship_order");
+				fields.add("groups_by_receiver");
+				fields.add("groups_by_receiver.group_id");
+				fields.add("groups_by_receiver.relationship_order");
+				ResultFilters filter = new ResultFilters(0, -1, null, fields);
+				// - execute query
+				rels = dataService.readObjects("relationship", relQuery, 1, filter);
+				// report error if query failed
+				if (rels == null || rels.size() != allIds.size()) {
+					HashMap<String, String> errMap = new HashMap<String, String>();
+					errMap.put("error", "invalid relationship fetch");
+					errMap.put("detail", (rels == null ? "null fetch result" : ("fetch result count = " + rels.size())));
+					return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap);
+				}
 			}
 			
 			Map<String, Object> returnMap = new HashMap<String, Object>();
@@ -168,16 +184,24 @@ public class UpdateRelationships implements CustomCodeMethod {
 				// find user's role in this relationship
 				SMObject ownerObject = (SMObject)relObject.getValue().get("owner");
 				SMString ownerId = (SMString)ownerObject.getValue().get("username");
+				// (no receiver for invites)
+				String receiverName = null;
 				String userRole = "";
 				if (ownerId.equals(userId)) {
 					userRole = "owner";
-				} else if (relObject.getValue().containsKey("receiver")) {
+				}
+				if (relObject.getValue().containsKey("receiver")) {
 					SMObject receiverObject = (SMObject)relObject.getValue().get("receiver");
 					SMString receiverId = (SMString)receiverObject.getValue().get("username");
-					if (receiverId.equals(userId)) {
+					receiverName = receiverId.getValue();
+					if (userRole.isEmpty() && receiverId.equals(userId)) {
 						userRole = "receiver";
 					}
 				}
+				SMInt typeOwnerValue = (SMInt)relObject.getValue().get("type_by_owner");
+				SMInt typeReceiverValue = (SMInt)relObject.getValue().get("type_by_receiver");
+				graph.putRelationship(relId.getValue(), ownerId.getValue(), (receiverName == null ? ((SMString)relObject.getValue().get("invite_email")).getValue() : receiverName),
+						typeOwnerValue.getValue().longValue(), typeReceiverValue.getValue().longValue());
 				// if user is in this relationship, change its type by user
 				if (!userRole.isEmpty()) {
 					long type = 2L;
@@ -194,43 +218,35 @@ public class UpdateRelationships implements CustomCodeMethod {
 						String typeOtherKey = "type_by_" + (userRole.equals("owner") ? "receiver" : "owner");
 						SMInt typeOther = (SMInt)relObject.getValue().get(typeOtherKey);
 						if (type == 2L && typeUser.getValue().longValue() == 1L && typeOther.getValue().longValue() == 2L) {
-							Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-							eventMap.put("sm_owner", new SMString("user/" + username));
-							eventMap.put("type", new SMInt(2L));
-							SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-							// get the new event id
-							SMString eventId = (SMString)eventObject.getValue().get("event_id");
-							// add event in relationship's events_by_owner
-							List<SMString> joinEventIdList = new ArrayList<SMString>();
-							joinEventIdList.add(eventId);
-							dataService.addRelatedObjects("relationship", relId, "events_by_" + userRole, joinEventIdList);
-							// add relationship as event's relationship
-							List<SMString> relIdList = new ArrayList<SMString>();
-							relIdList.add(relId);
-							dataService.addRelatedObjects("event", eventId, "relationship_by_" + userRole, relIdList);
+							SMObject eventObject = EventStore.createEvent(dataService, relId, "events_by_" + userRole, username, 2L, new ArrayList<SMString>());
+							String friendName = userRole.equals("owner") ? receiverName : ownerId.getValue();
+							BadgeCounts.add(dataService, friendName, 2L, 1L);
+							NotificationInbox.getInstance().add(friendName, eventObject, relId, username);
 						}
 						// if type changes to block or delete, remove all events from both sides
 						// no need to remove if any of the types is already block or delete
 						if (type >= 3L && typeUser.getValue().longValue() < 3L && typeOther.getValue().longValue() < 3L) {
-							if (relObject.getValue().containsKey("events_by_owner")) {
-								SMList<SMString> eventsValue = (SMList<SMString>)relObject.getValue().get("events_by_owner");
-								List<SMString> events = eventsValue.getValue();
-								if (events.size() > 0) {
-									dataService.removeRelatedObjects("relationship", relId, "events_by_owner", events, true);
-								}
-								if (userRole.equals("receiver")) {
-									removedEventIds.addAll(events);
-								}
+							List<SMObject> ownerEvents = EventStore.getEvents(relObject, "events_by_owner");
+							List<SMString> ownerEventIds = EventStore.getIds(ownerEvents);
+							if (ownerEventIds.size() > 0) {
+								EventStore.removeEvents(dataService, relId, "events_by_owner", ownerEventIds);
+								StatusRequestIndex.getInstance().removeEvents(ownerEventIds);
+								NotificationInbox.getInstance().removeEvents(ownerEventIds);
+								BadgeCounts.subtract(dataService, receiverName, ownerEvents);
 							}
-							if (relObject.getValue().containsKey("events_by_receiver")) {
-								SMList<SMString> eventsValue = (SMList<SMString>)relObject.getValue().get("events_by_receiver");
-								List<SMString> events = eventsValue.getValue();
-								if (events.size() > 0) {
-									dataService.removeRelatedObjects("relationship", relId, "events_by_receiver", events, true);
-								}
-								if (userRole.equals("owner")) {
-									removedEventIds.addAll(events);
-								}
+							if (userRole.equals("receiver")) {
+								removedEventIds.addAll(ownerEventIds);
+							}
+							List<SMObject> receiverEvents = EventStore.getEvents(relObject, "events_by_receiver");
+							List<SMString> receiverEventIds = EventStore.getIds(receiverEvents);
+							if (receiverEventIds.size() > 0) {
+								EventStore.removeEvents(dataService, relId, "events_by_receiver", receiverEventIds);
+								StatusRequestIndex.getInstance().removeEvents(receiverEventIds);
+								NotificationInbox.getInstance().removeEvents(receiverEventIds);
+								BadgeCounts.subtract(dataService, ownerId.getValue(), receiverEvents);
+							}
+							if (userRole.equals("owner")) {
+								removedEventIds.addAll(receiverEventIds);
 							}
 						}
 						// if type changes from friend to block or delete, remove this relationship from all groups
@@ -270,6 +286,16 @@ public class UpdateRelationships implements CustomCodeMethod {
 						List<SMUpdate> relUpdates = new ArrayList<SMUpdate>();
 						relUpdates.add(new SMSet(typeUserKey, new SMInt(type)));
 						dataService.updateObject("relationship", relId, relUpdates);
+						graph.setType(relId.getValue(), userRole, type);
+						
+						// if both become mutual friends, write each other's current status (or the mark to read it) to their status inboxes
+						if (type == 2L && typeOther.getValue().longValue() == 2L && receiverName != null) {
+							SMObject receiverObject = (SMObject)relObject.getValue().get("receiver");
+							StatusInbox.deliver(dataService, receiverName, ownerId.getValue(), relId.getValue(), ((SMString)ownerObject.getValue().get("action")).getValue(),
+									((SMString)ownerObject.getValue().get("place")).getValue(), ((SMInt)ownerObject.getValue().get("status_mod_date")).getValue().longValue(), StatusInbox.isPulled(ownerObject));
+							StatusInbox.deliver(dataService, ownerId.getValue(), receiverName, relId.getValue(), ((SMString)receiverObject.getValue().get("action")).getValue(),
+									((SMString)receiverObject.getValue().get("place")).getValue(), ((SMInt)receiverObject.getValue().get("status_mod_date")).getValue().longValue(), StatusInbox.isPulled(receiverObject));
+						}
 						
 						// if change to Accept, return friend's data for syncing
 						if (type == 2L) {
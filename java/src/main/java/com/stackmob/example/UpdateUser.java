@@ -27,6 +27,8 @@ import com.stackmob.core.DatastoreException;
 
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +43,10 @@ import org.json.JSONObject;
 
 public class UpdateUser implements CustomCodeMethod {
 
+	// AppConfig setting: maximum number of joining & cancel events on one relationship side, the oldest are evicted when a new one is added
+	public static final String MAX_JOIN_EVENTS_SETTING = "max_join_events_per_side";
+	public static final long DEFAULT_MAX_JOIN_EVENTS_PER_SIDE = 10L;
+
 	@Override
 	public String getMethodName() {
 		return "update_user";
@@ -138,19 +144,25 @@ public class UpdateUser implements CustomCodeMethod {
 				fields.add("groups");
 				fields.add("group_order");
 			}
-			if (newAction) fields.add("action");
-			if (newPlace) fields.add("place");
 			if (newAction || newPlace) {
+				fields.add("action");
+				fields.add("place");
+				fields.add("status_pull");
 				fields.add("relationships_by_user");
 				fields.add("relationships_by_user.relationship_id");
-				fields.add("relationships_by_user.events_by_receiver");
-				fields.add("relationships_by_user.events_by_receiver.event_id");
-				fields.add("relationships_by_user.events_by_receiver.type");
+				fields.add("relationships_by_user.type_by_owner");
+				fields.add("relationships_by_user.type_by_receiver");
+				fields.add("relationships_by_user.receiver");
+				fields.add("relationships_by_user.receiver.username");
+				// (pending status requests are always read, requests created in other processes must be cleared too)
+				EventStore.addEventFields(fields, "relationships_by_user.", "events_by_receiver");
 				fields.add("relationships_by_others");
 				fields.add("relationships_by_others.relationship_id");
-				fields.add("relationships_by_others.events_by_owner");
-				fields.add("relationships_by_others.events_by_owner.event_id");
-				fields.add("relationships_by_others.events_by_owner.type");
+				fields.add("relationships_by_others.type_by_owner");
+				fields.add("relationships_by_others.type_by_receiver");
+				fields.add("relationships_by_others.owner");
+				fields.add("relationships_by_others.owner.username");
+				EventStore.addEventFields(fields, "relationships_by_others.", "events_by_owner");
 			}
 			ResultFilters filter = new ResultFilters(0, -1, null, fields);
 			// - execute query
@@ -210,6 +222,8 @@ public class UpdateUser implements CustomCodeMethod {
 			
 			// check if action or place are different
 			boolean statusChanged = false;
+			// friend the new action is joining or joined (if any)
+			String linkedFriend = null;
 			// 5. change action
 			if (newAction) {
 				SMString oldAction = (SMString)userObject.getValue().get("action");
@@ -232,12 +246,8 @@ public class UpdateUser implements CustomCodeMethod {
 						relFields.add("owner.username");
 						relFields.add("receiver");
 						relFields.add("receiver.username");
-						relFields.add("events_by_owner");
-						relFields.add("events_by_owner.event_id");
-						relFields.add("events_by_owner.type");
-						relFields.add("events_by_receiver");
-						relFields.add("events_by_receiver.event_id");
-						relFields.add("events_by_receiver.type");
+						EventStore.addEventFields(relFields, "", "events_by_owner");
+						EventStore.addEventFields(relFields, "", "events_by_receiver");
 						ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
 						// - execute query
 						List<SMObject> rels = dataService.readObjects("relationship", relQuery, 1, relFilter);
@@ -257,39 +267,34 @@ public class UpdateUser implements CustomCodeMethod {
 							}
 							if (!userRole.isEmpty()) {
 								String eventKey = "events_by_" + userRole;
-								List<SMObject> eventsList = new ArrayList<SMObject>();
-								if (relObject.getValue().containsKey(eventKey)) {
-									SMList<SMObject> eventsValue = (SMList<SMObject>)relObject.getValue().get(eventKey);
-									eventsList = eventsValue.getValue();
-								}
-								List<SMString> joinEventIdList = new ArrayList<SMString>();
+								List<SMObject> eventsList = EventStore.getEvents(relObject, eventKey);
+								List<SMObject> removedEvents = new ArrayList<SMObject>();
 								for (int i = 0; i < eventsList.size(); i++) {
 									SMObject eventObject = eventsList.get(i);
 									SMInt eventType = (SMInt)eventObject.getValue().get("type");
 									if (eventType.getValue().longValue() == 4L) {
-										joinEventIdList.add((SMString)eventObject.getValue().get("event_id"));
+										removedEvents.add(eventObject);
 									}
 								}
-								if (joinEventIdList.size() > 0) {
-									dataService.removeRelatedObjects("relationship", relId, eventKey, joinEventIdList, true);
-								}
 								// if not change to joined the same friend, add a cancel event (mutual friend only)
-								if (!(toJoined && relId.getValue().equals(action.substring(7))) && typeOwner.getValue().longValue() == 2L && typeOwner.getValue().longValue() == 2L) {
-									Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-									eventMap.put("sm_owner", new SMString("user/" + username));
-									eventMap.put("type", new SMInt(5L));
-									SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-									// get the new event id
-									SMString eventId = (SMString)eventObject.getValue().get("event_id");
-									// add event in relationship's events_by_owner
-									List<SMString> cancelEventIdList = new ArrayList<SMString>();
-									cancelEventIdList.add(eventId);
-									dataService.addRelatedObjects("relationship", relId, eventKey, cancelEventIdList);
-									// add relationship as event's relationship
-									List<SMString> relIdList = new ArrayList<SMString>();
-									relIdList.add(relId);
-									dataService.addRelatedObjects("event", eventId, "relationship_by_" + userRole, relIdList);
+								boolean addCancel = !(toJoined && relId.getValue().equals(action.substring(7))) && typeOwner.getValue().longValue() == 2L && typeOwner.getValue().longValue() == 2L;
+								// evict the oldest events over the cap together with the joining events
+								if (addCancel) {
+									removedEvents.addAll(getEvictedEvents(dataService, eventsList, removedEvents));
 								}
+								List<SMString> removedEventIdList = EventStore.getIds(removedEvents);
+								// the events are for the friend
+								String friendName = (userRole.equals("owner") ? receiverId : ownerId).getValue();
+								long[] badgeDeltas = BadgeCounts.countRemoved(removedEvents);
+								if (addCancel) {
+									SMObject eventObject = EventStore.createEvent(dataService, relId, eventKey, username, 5L, removedEventIdList);
+									NotificationInbox.getInstance().add(friendName, eventObject, relId, username);
+									badgeDeltas[5]++;
+								} else if (removedEventIdList.size() > 0) {
+									EventStore.removeEvents(dataService, relId, eventKey, removedEventIdList);
+								}
+								NotificationInbox.getInstance().removeEvents(removedEventIdList);
+								BadgeCounts.apply(dataService, friendName, badgeDeltas);
 							}
 						}
 					}
@@ -310,6 +315,8 @@ public class UpdateUser implements CustomCodeMethod {
 						relFields.add("owner.username");
 						relFields.add("receiver");
 						relFields.add("receiver.username");
+						EventStore.addEventFields(relFields, "", "events_by_owner");
+						EventStore.addEventFields(relFields, "", "events_by_receiver");
 						ResultFilters relFilter = new ResultFilters(0, -1, null, relFields);
 						// - execute query
 						List<SMObject> rels = dataService.readObjects("relationship", relQuery, 1, relFilter);
@@ -329,20 +336,20 @@ public class UpdateUser implements CustomCodeMethod {
 								userRole = "receiver";
 							}
 							if (!userRole.isEmpty() && typeOwner.getValue().longValue() == 2L && typeOwner.getValue().longValue() == 2L) {
-								Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
-								eventMap.put("sm_owner", new SMString("user/" + username));
-								eventMap.put("type", new SMInt(4L));
-								SMObject eventObject = dataService.createObject("event", new SMObject(eventMap));
-								// get the new event id
-								SMString eventId = (SMString)eventObject.getValue().get("event_id");
-								// add event in relationship's events_by_owner
-								List<SMString> joinEventIdList = new ArrayList<SMString>();
-								joinEventIdList.add(eventId);
-								dataService.addRelatedObjects("relationship", relId, "events_by_" + userRole, joinEventIdList);
-								// add relationship as event's relationship
-								List<SMString> relIdList = new ArrayList<SMString>();
-								relIdList.add(relId);
-								dataService.addRelatedObjects("event", eventId, "relationship_by_" + userRole, relIdList);
+								// evict the oldest events over the cap
+								String eventKey = "events_by_" + userRole;
+								List<SMObject> eventsList = EventStore.getEvents(relObject, eventKey);
+								List<SMObject> evictedEvents = getEvictedEvents(dataService, eventsList, new ArrayList<SMObject>());
+								List<SMString> evictedEventIdList = EventStore.getIds(evictedEvents);
+								SMObject eventObject = EventStore.createEvent(dataService, relId, eventKey, username, 4L, evictedEventIdList);
+								// the events are for the friend
+								String friendName = (userRole.equals("owner") ? receiverId : ownerId).getValue();
+								NotificationInbox.getInstance().removeEvents(evictedEventIdList);
+								NotificationInbox.getInstance().add(friendName, eventObject, relId, username);
+								long[] badgeDeltas = BadgeCounts.countRemoved(evictedEvents);
+								badgeDeltas[4]++;
+								BadgeCounts.apply(dataService, friendName, badgeDeltas);
+								linkedFriend = friendName;
 								
 								// must be no place 
 								place = "";
@@ -400,6 +407,7 @@ public class UpdateUser implements CustomCodeMethod {
 								action = joinedAction.getValue();
 								place = joinedPlace.getValue();
 								fixPlace = true;
+								linkedFriend = (userRole.equals("owner") ? receiverId : ownerId).getValue();
 							} else {
 								validAction = false;
 							}
@@ -410,6 +418,8 @@ public class UpdateUser implements CustomCodeMethod {
 					// change action only if it is valid
 					if (validAction) {
 						userUpdates.add(new SMSet("action", new SMString(action)));
+						// (the friend the user is now together with, read by get_clusters)
+						userUpdates.add(new SMSet("cluster_link", new SMString(linkedFriend == null ? "" : linkedFriend)));
 						returnMap.put("action", action);
 						statusChanged = true;
 						// change place if it's action-dependent
@@ -434,70 +444,73 @@ public class UpdateUser implements CustomCodeMethod {
 			if (statusChanged) {
 				userUpdates.add(new SMSet("status_mod_date", new SMInt(currentTime)));
 				returnMap.put("status_mod_date", new Long(currentTime));
-				// remove all status update request events
+				// remove all status update request events (queued for the worker, the removed ids are returned right away)
 				List<SMString> removedEventList = new ArrayList<SMString>();
-				// - relationships by user
-				List<SMObject> relList = new ArrayList<SMObject>();
-				if (userObject.getValue().containsKey("relationships_by_user")) {
-					SMList<SMObject> relListValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_user");
-					relList = relListValue.getValue();
-				}
-				for (int i = 0; i < relList.size(); i++) {
-					SMObject relObject = relList.get(i);
-					List<SMObject> eventList = new ArrayList<SMObject>();
-					if (relObject.getValue().containsKey("events_by_receiver")) {
-						SMList<SMObject> eventListValue = (SMList<SMObject>)relObject.getValue().get("events_by_receiver");
-						eventList = eventListValue.getValue();
-					}
-					List<SMString> statReqList = new ArrayList<SMString>();
-					for (int j = 0; j < eventList.size(); j++) {
-						SMObject eventObject = eventList.get(i);
-						SMInt eventType = (SMInt)eventObject.getValue().get("type");
-						if (eventType.getValue().longValue() == 3L) {
-							SMString eventId = (SMString)eventObject.getValue().get("event_id");
-							statReqList.add(eventId);
-							removedEventList.add(eventId);
-						}
+				// - events of relationships by user and by others (then keep the emptied sides in the index)
+				List<String> scannedRelIds = new ArrayList<String>();
+				List<String> scannedEventKeys = new ArrayList<String>();
+				String[] relKeys = {"relationships_by_user", "relationships_by_others"};
+				String[] eventKeys = {"events_by_receiver", "events_by_owner"};
+				for (int k = 0; k < relKeys.length; k++) {
+					List<SMObject> relList = new ArrayList<SMObject>();
+					if (userObject.getValue().containsKey(relKeys[k])) {
+						SMList<SMObject> relListValue = (SMList<SMObject>)userObject.getValue().get(relKeys[k]);
+						relList = relListValue.getValue();
 					}
-					if (statReqList.size() > 0) {
+					for (int i = 0; i < relList.size(); i++) {
+						SMObject relObject = relList.get(i);
 						SMString relId = (SMString)relObject.getValue().get("relationship_id");
-						dataService.removeRelatedObjects("relationship", relId, "events_by_receiver", statReqList, true);
-					}
-				}
-				// - relationships by others
-				relList = new ArrayList<SMObject>();
-				if (userObject.getValue().containsKey("relationships_by_others")) {
-					SMList<SMObject> relListValue = (SMList<SMObject>)userObject.getValue().get("relationships_by_others");
-					relList = relListValue.getValue();
-				}
-				for (int i = 0; i < relList.size(); i++) {
-					SMObject relObject = relList.get(i);
-					List<SMObject> eventList = new ArrayList<SMObject>();
-					if (relObject.getValue().containsKey("events_by_owner")) {
-						SMList<SMObject> eventListValue = (SMList<SMObject>)relObject.getValue().get("events_by_owner");
-						eventList = eventListValue.getValue();
-					}
-					List<SMString> statReqList = new ArrayList<SMString>();
-					for (int j = 0; j < eventList.size(); j++) {
-						SMObject eventObject = eventList.get(i);
-						SMInt eventType = (SMInt)eventObject.getValue().get("type");
-						if (eventType.getValue().longValue() == 3L) {
-							SMString eventId = (SMString)eventObject.getValue().get("event_id");
-							statReqList.add(eventId);
-							removedEventList.add(eventId);
+						List<SMObject> eventList = EventStore.getEvents(relObject, eventKeys[k]);
+						List<SMString> statReqList = new ArrayList<SMString>();
+						for (int j = 0; j < eventList.size(); j++) {
+							SMObject eventObject = eventList.get(j);
+							SMInt eventType = (SMInt)eventObject.getValue().get("type");
+							if (eventType.getValue().longValue() == 3L) {
+								SMString eventId = (SMString)eventObject.getValue().get("event_id");
+								statReqList.add(eventId);
+								removedEventList.add(eventId);
+							}
 						}
-					}
-					if (statReqList.size() > 0) {
-						SMString relId = (SMString)relObject.getValue().get("relationship_id");
-						dataService.removeRelatedObjects("relationship", relId, "events_by_owner", statReqList, true);
+						if (statReqList.size() > 0) {
+							EventCleanupQueue.getInstance().removeLater(dataService, relId, eventKeys[k], statReqList);
+						}
+						scannedRelIds.add(relId.getValue());
+						scannedEventKeys.add(eventKeys[k]);
 					}
 				}
+				StatusRequestIndex.getInstance().putCleared(scannedRelIds, scannedEventKeys);
 				returnMap.put("removed_events", removedEventList);
+				// the removed requests were for this user
+				NotificationInbox.getInstance().removeEvents(removedEventList);
+				if (removedEventList.size() > 0) {
+					userUpdates.add(new SMIncrement(BadgeCounts.fieldName(3L), -removedEventList.size()));
+				}
 			}
 			// update user (only if there is one)
 			if (userUpdates.size() > 0) {
 				dataService.updateObject("user", userId, userUpdates);
 			}
+			// re-key the new name in friends' search indexes
+			if (returnMap.containsKey("name")) {
+				FriendSearchIndex.getInstance().setName(username, name);
+			}
+			// keep the indexes up to date
+			if (statusChanged) {
+				String newActionValue = returnMap.containsKey("action") ? (String)returnMap.get("action") : ((SMString)userObject.getValue().get("action")).getValue();
+				String newPlaceValue = returnMap.containsKey("place") ? (String)returnMap.get("place") : ((SMString)userObject.getValue().get("place")).getValue();
+				PlaceIndex.getInstance().update(username, newPlaceValue);
+				StatusHistory.getInstance().append(dataService, username, newActionValue, newPlaceValue, currentTime);
+				// (the user is marked when the friends start or stop reading the status instead)
+				boolean pulled = StatusInbox.isPulled(userObject);
+				if (StatusInbox.publish(dataService, username, newActionValue, newPlaceValue, currentTime, getMutualFriends(userObject), pulled) != pulled) {
+					List<SMUpdate> pullUpdates = new ArrayList<SMUpdate>();
+					pullUpdates.add(new SMSet("status_pull", new SMInt(pulled ? 0L : 1L)));
+					dataService.updateObject("user", userId, pullUpdates);
+				}
+				if (returnMap.containsKey("action")) {
+					ClusterIndex.getInstance().setLink(username, linkedFriend);
+				}
+			}
 			// return updated data for local database
 			returnMap.put("last_sync_date", new Long(currentTime));
 			return new ResponseToProcess(HttpURLConnection.HTTP_OK, returnMap);
@@ -518,4 +531,54 @@ public class UpdateUser implements CustomCodeMethod {
 			return new ResponseToProcess(HttpURLConnection.HTTP_INTERNAL_ERROR, errMap); // http 500 - internal server error
 		}
 	}
+	
+	// relationship ids of the user's mutual friends (both types are friend) by friend username
+	private static Map<String, String> getMutualFriends(SMObject userObject) {
+		Map<String, String> relIdsByFriend = new HashMap<String, String>();
+		String[] relKeys = {"relationships_by_user", "relationships_by_others"};
+		String[] friendRoles = {"receiver", "owner"};
+		for (int i = 0; i < relKeys.length; i++) {
+			List<SMObject> relList = new ArrayList<SMObject>();
+			if (userObject.getValue().containsKey(relKeys[i])) {
+				SMList<SMObject> relListValue = (SMList<SMObject>)userObject.getValue().get(relKeys[i]);
+				relList = relListValue.getValue();
+			}
+			for (int j = 0; j < relList.size(); j++) {
+				SMObject relObject = relList.get(j);
+				SMInt typeOwner = (SMInt)relObject.getValue().get("type_by_owner");
+				SMInt typeReceiver = (SMInt)relObject.getValue().get("type_by_receiver");
+				// invites have no receiver
+				if (typeOwner.getValue().longValue() == 2L && typeReceiver.getValue().longValue() == 2L && relObject.getValue().containsKey(friendRoles[i])) {
+					SMObject friendObject = (SMObject)relObject.getValue().get(friendRoles[i]);
+					relIdsByFriend.put(((SMString)friendObject.getValue().get("username")).getValue(), ((SMString)relObject.getValue().get("relationship_id")).getValue());
+				}
+			}
+		}
+		return relIdsByFriend;
+	}
+	
+	// oldest joining & cancel events of a relationship side to evict before one more is added (excluding events already being removed)
+	private static List<SMObject> getEvictedEvents(DataService dataService, List<SMObject> eventsList, List<SMObject> removedEvents) throws InvalidSchemaException, DatastoreException {
+		List<SMObject> cappedEvents = new ArrayList<SMObject>();
+		for (int i = 0; i < eventsList.size(); i++) {
+			SMObject eventObject = eventsList.get(i);
+			long eventType = ((SMInt)eventObject.getValue().get("type")).getValue().longValue();
+			if ((eventType == 4L || eventType == 5L) && !removedEvents.contains(eventObject)) {
+				cappedEvents.add(eventObject);
+			}
+		}
+		long excess = cappedEvents.size() + 1 - AppConfig.getInstance().getLong(dataService, MAX_JOIN_EVENTS_SETTING, DEFAULT_MAX_JOIN_EVENTS_PER_SIDE);
+		if (excess <= 0) {
+			return new ArrayList<SMObject>();
+		}
+		Collections.sort(cappedEvents, new Comparator<SMObject>() {
+			@Override
+			public int compare(SMObject a, SMObject b) {
+				long dateA = ((SMInt)a.getValue().get("createddate")).getValue().longValue();
+				long dateB = ((SMInt)b.getValue().get("createddate")).getValue().longValue();
+				return dateA < dateB ? -1 : (dateA == dateB ? 0 : 1);
+			}
+		});
+		return new ArrayList<SMObject>(cappedEvents.subList(0, (int)Math.min(excess, cappedEvents.size())));
+	}
 }
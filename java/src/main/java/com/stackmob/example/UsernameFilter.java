@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.lang.String;
+import java.lang.Boolean;
+import java.lang.Double;
+import java.lang.Long;
+
+// process-wide bloom filter over the existing usernames, a miss means the username is definitely not a user
+// it is rebuilt with the contact matcher's index (every ContactMatcher.REBUILD_INTERVAL_MILLIS)
+// and users are added as they are initialized in this process or read as recent users by the contact matcher
+// (users created in other processes since the last rebuild may be missing until they are read)
+public class UsernameFilter {
+
+	// bits per username & number of hash functions (about 1% false positives)
+	public static final int BITS_PER_USER = 10;
+	public static final int HASHES = 7;
+
+	private static final UsernameFilter INSTANCE = new UsernameFilter();
+
+	public static UsernameFilter getInstance() {
+		return INSTANCE;
+	}
+
+	private long[] bits = null;
+	private long bitCount = 0L;
+	private long userCount = 0L;
+	// hashes added since the last rebuild (added again to the next filter, in case the rebuild read the users before them)
+	private long[] added = new long[16];
+	private int addedCount = 0;
+	// metrics (false positives are only counted when the username is looked up anyway,
+	// missed users are misses of the contact matcher that were users after all)
+	private final AtomicLong negativeCount = new AtomicLong();
+	private final AtomicLong falsePositiveCount = new AtomicLong();
+	private final AtomicLong missedUserCount = new AtomicLong();
+
+	UsernameFilter() {
+	}
+
+	// replace the filter with one of the username hashes
+	public synchronized void rebuild(long[] hashes) {
+		long newBitCount = Math.max(64L, (long)(hashes.length + addedCount) * BITS_PER_USER);
+		long[] newBits = new long[(int)((newBitCount + 63L) / 64L)];
+		newBitCount = newBits.length * 64L;
+		for (int i = 0; i < hashes.length; i++) {
+			setBits(newBits, newBitCount, hashes[i]);
+		}
+		for (int i = 0; i < addedCount; i++) {
+			setBits(newBits, newBitCount, added[i]);
+		}
+		bits = newBits;
+		bitCount = newBitCount;
+		userCount = hashes.length + addedCount;
+		addedCount = 0;
+	}
+
+	public void add(String username) {
+		add(hash(username));
+	}
+
+	public synchronized void add(long value) {
+		if (bits == null) {
+			return;
+		}
+		setBits(bits, bitCount, value);
+		userCount++;
+		if (addedCount == added.length) {
+			added = Arrays.copyOf(added, addedCount * 2);
+		}
+		added[addedCount++] = value;
+	}
+
+	public synchronized boolean isReady() {
+		return bits != null;
+	}
+
+	// false if the username is definitely not a user (true if it may be one, or the filter is not built yet)
+	public boolean mightContain(String username) {
+		return mightContain(hash(username));
+	}
+
+	public synchronized boolean mightContain(long value) {
+		if (bits == null) {
+			return true;
+		}
+		// double hashing with the two halves of the hash
+		long h1 = value >>> 32;
+		long h2 = value & 0xFFFFFFFFL;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+				negativeCount.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// record usernames the filter may have contained that turned out not to be users
+	public void addFalsePositives(long count) {
+		falsePositiveCount.addAndGet(count);
+	}
+
+	// record misses that turned out to be users
+	public void addMissedUsers(long count) {
+		missedUserCount.addAndGet(count);
+	}
+
+	public long getNegativeCount() {
+		return negativeCount.get();
+	}
+
+	public long getFalsePositiveCount() {
+		return falsePositiveCount.get();
+	}
+
+	// observed false positive rate: false positives / usernames that are not users
+	public double getFalsePositiveRate() {
+		long falsePositives = falsePositiveCount.get();
+		long total = falsePositives + negativeCount.get();
+		return total == 0L ? 0.0 : (double)falsePositives / total;
+	}
+
+	public long getMissedUserCount() {
+		return missedUserCount.get();
+	}
+
+	// the filter's metrics, as returned by run_background_work
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("ready", Boolean.valueOf(bits != null));
+		stats.put("user_count", Long.valueOf(userCount));
+		stats.put("negative_count", Long.valueOf(getNegativeCount()));
+		stats.put("false_positive_count", Long.valueOf(getFalsePositiveCount()));
+		stats.put("false_positive_rate", Double.valueOf(getFalsePositiveRate()));
+		stats.put("expected_false_positive_rate", Double.valueOf(getExpectedFalsePositiveRate()));
+		stats.put("missed_user_count", Long.valueOf(getMissedUserCount()));
+		return stats;
+	}
+
+	// expected false positive rate for the current number of users: (1 - e^(-kn/m))^k
+	public synchronized double getExpectedFalsePositiveRate() {
+		if (bits == null) {
+			return 1.0;
+		}
+		return Math.pow(1.0 - Math.exp(-(double)HASHES * userCount / bitCount), HASHES);
+	}
+
+	private static void setBits(long[] bits, long bitCount, long value) {
+		long h1 = value >>> 32;
+		long h2 = value & 0xFFFFFFFFL;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			bits[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	// 64-bit FNV-1a of the characters, then mixed (so both halves are usable for double hashing)
+	static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.core.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+import java.lang.System;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// durable queue of work left over by requests, one "work_item" object per item (kind, payload, attempts, retry_date)
+// an item is claimed by moving its retry_date CLAIM_MILLIS ahead with a conditional update, so it is run by one worker at a time
+// and run again if the worker dies; done items are deleted, failed ones retried after RETRY_DELAY_MILLIS (doubled each time)
+public class WorkQueue {
+
+	public static final int MAX_ATTEMPTS = 5;
+	public static final long RETRY_DELAY_MILLIS = 10L * 1000L;
+	// time a worker has to finish a claimed item before others may claim it
+	public static final long CLAIM_MILLIS = 5L * 60L * 1000L;
+
+	private static final String SCHEMA = "work_item";
+
+	public static class Item {
+		public final SMString itemId;
+		public final JSONObject payload;
+		public final int attempts;
+
+		Item(SMString itemId, JSONObject payload, int attempts) {
+			this.itemId = itemId;
+			this.payload = payload;
+			this.attempts = attempts;
+		}
+	}
+
+	// save an item of the kind, it is due right away
+	public static void add(DataService dataService, String kind, JSONObject payload) throws InvalidSchemaException, DatastoreException {
+		Map<String, SMValue> itemMap = new HashMap<String, SMValue>();
+		itemMap.put("kind", new SMString(kind));
+		itemMap.put("payload", new SMString(payload.toString()));
+		itemMap.put("attempts", new SMInt(0L));
+		itemMap.put("retry_date", new SMInt(System.currentTimeMillis()));
+		dataService.createObject(SCHEMA, new SMObject(itemMap));
+	}
+
+	// claim up to max due items of the kind (oldest first), null if they can't be read
+	public static List<Item> claimDue(DataService dataService, String kind, int max) throws InvalidSchemaException, DatastoreException {
+		long now = System.currentTimeMillis();
+		List<SMCondition> query = new ArrayList<SMCondition>();
+		query.add(new SMEquals("kind", new SMString(kind)));
+		query.add(new SMLessOrEqual("retry_date", new SMInt(now)));
+		List<SMOrdering> orderings = new ArrayList<SMOrdering>();
+		orderings.add(new SMOrdering("retry_date", OrderingDirection.ASCENDING));
+		List<String> fields = new ArrayList<String>();
+		fields.add("work_item_id");
+		fields.add("payload");
+		fields.add("attempts");
+		fields.add("retry_date");
+		List<SMObject> itemObjects = dataService.readObjects(SCHEMA, query, 0, new ResultFilters(0, max - 1, orderings, fields));
+		if (itemObjects == null) {
+			return null;
+		}
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < itemObjects.size(); i++) {
+			SMObject itemObject = itemObjects.get(i);
+			SMString itemId = (SMString)itemObject.getValue().get("work_item_id");
+			List<SMCondition> claimConditions = new ArrayList<SMCondition>();
+			claimConditions.add(new SMEquals("retry_date", (SMInt)itemObject.getValue().get("retry_date")));
+			List<SMUpdate> claimUpdates = new ArrayList<SMUpdate>();
+			claimUpdates.add(new SMSet("retry_date", new SMInt(now + CLAIM_MILLIS)));
+			// (claimed by another worker meanwhile)
+			if (dataService.updateObject(SCHEMA, itemId, claimConditions, claimUpdates) == null) {
+				continue;
+			}
+			int attempts = ((SMInt)itemObject.getValue().get("attempts")).getValue().intValue();
+			try {
+				items.add(new Item(itemId, new JSONObject(((SMString)itemObject.getValue().get("payload")).getValue()), attempts));
+			} catch (JSONException e) {
+				// (an unreadable item can't be run)
+				dataService.deleteObject(SCHEMA, itemId);
+			}
+		}
+		return items;
+	}
+
+	// delete a claimed item that was run
+	public static void done(DataService dataService, Item item) throws InvalidSchemaException, DatastoreException {
+		dataService.deleteObject(SCHEMA, item.itemId);
+	}
+
+	// retry a claimed item that failed later, return false if it was dropped after MAX_ATTEMPTS
+	public static boolean failed(DataService dataService, Item item) throws InvalidSchemaException, DatastoreException {
+		int attempts = item.attempts + 1;
+		if (attempts >= MAX_ATTEMPTS) {
+			dataService.deleteObject(SCHEMA, item.itemId);
+			return false;
+		}
+		List<SMUpdate> retryUpdates = new ArrayList<SMUpdate>();
+		retryUpdates.add(new SMSet("attempts", new SMInt((long)attempts)));
+		retryUpdates.add(new SMSet("retry_date", new SMInt(System.currentTimeMillis() + (RETRY_DELAY_MILLIS << (attempts - 1)))));
+		dataService.updateObject(SCHEMA, item.itemId, retryUpdates);
+		return true;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.lang.String;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContactMatcherTest {
+
+	@Test
+	public void allContactsMatchBeforeTheIndexIsBuilt() {
+		ContactMatcher matcher = new ContactMatcher(new UsernameFilter());
+		List<SMString> contacts = strings("alice", "bob@example.com");
+		assertEquals(values(contacts), values(matcher.match(contacts)));
+	}
+
+	@Test
+	public void onlyUsersMatchInOrder() {
+		ContactMatcher matcher = build(1000);
+		List<SMString> contacts = strings("user7", "carol@example.com", "user999", "user1000", "user3", "user7");
+		assertEquals(Arrays.asList("user7", "user999", "user3", "user7"), values(matcher.match(contacts)));
+	}
+
+	@Test
+	public void noContactsMatchNothing() {
+		ContactMatcher matcher = build(10);
+		assertEquals(new ArrayList<String>(), values(matcher.match(new ArrayList<SMString>())));
+	}
+
+	@Test
+	public void addedUsersMatchUntilTheyAreIndexed() {
+		ContactMatcher matcher = build(10);
+		assertEquals(new ArrayList<String>(), values(matcher.match(strings("dave"))));
+		matcher.addUsers(Arrays.asList("dave", "dave"));
+		assertEquals(Arrays.asList("dave"), values(matcher.match(strings("dave", "erin"))));
+		// (a rebuild that has the user keeps matching it, one that doesn't yet keeps it as a recent user)
+		matcher.replace(hashes(10), 2L);
+		assertEquals(Arrays.asList("dave"), values(matcher.match(strings("dave"))));
+		matcher.replace(hashes(10, "dave"), 3L);
+		assertEquals(Arrays.asList("dave"), values(matcher.match(strings("dave"))));
+	}
+
+	@Test
+	public void falsePositivesAreCounted() {
+		UsernameFilter usernameFilter = new UsernameFilter();
+		ContactMatcher matcher = new ContactMatcher(usernameFilter);
+		matcher.replace(hashes(1000), 1L);
+		List<SMString> contacts = new ArrayList<SMString>();
+		for (int i = 0; i < 10000; i++) {
+			contacts.add(new SMString("contact" + i + "@example.com"));
+		}
+		assertEquals(new ArrayList<String>(), values(matcher.match(contacts)));
+		// every contact was either ruled out by the filter or counted as a false positive
+		assertEquals(10000L, usernameFilter.getNegativeCount() + usernameFilter.getFalsePositiveCount());
+		assertEquals(0.01, usernameFilter.getFalsePositiveRate(), 0.01);
+	}
+
+	// a matcher whose index has user0 to user<count - 1>
+	private static ContactMatcher build(int count) {
+		ContactMatcher matcher = new ContactMatcher(new UsernameFilter());
+		matcher.replace(hashes(count), 1L);
+		return matcher;
+	}
+
+	private static long[] hashes(int count, String... others) {
+		long[] hashes = new long[count + others.length];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = UsernameFilter.hash("user" + i);
+		}
+		for (int i = 0; i < others.length; i++) {
+			hashes[count + i] = UsernameFilter.hash(others[i]);
+		}
+		Arrays.sort(hashes);
+		return hashes;
+	}
+
+	private static List<String> values(List<SMString> strings) {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < strings.size(); i++) {
+			values.add(strings.get(i).getValue());
+		}
+		return values;
+	}
+
+	private static List<SMString> strings(String... values) {
+		List<SMString> strings = new ArrayList<SMString>();
+		for (int i = 0; i < values.length; i++) {
+			strings.add(new SMString(values[i]));
+		}
+		return strings;
+	}
+}
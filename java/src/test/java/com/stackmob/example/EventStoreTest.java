@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.lang.String;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventStoreTest {
+
+	private static final String INLINE_ID = "inline.rel1.owner.0123abcd";
+
+	@Test
+	public void inlineIdsNameTheirSide() {
+		assertTrue(EventStore.isInline(INLINE_ID));
+		assertFalse(EventStore.isInline("4f2a9c"));
+		assertEquals("rel1", EventStore.getInlineRelId(INLINE_ID));
+		assertEquals("events_by_owner", EventStore.getInlineEventKey(INLINE_ID));
+	}
+
+	@Test
+	public void sideFieldsIncludeTheInlineList() {
+		List<String> fields = new ArrayList<String>();
+		EventStore.addEventFields(fields, "relationships_by_user.", "events_by_receiver");
+		assertTrue(fields.contains("relationships_by_user.events_by_receiver.createddate"));
+		assertTrue(fields.contains("relationships_by_user.inline_events_by_receiver"));
+		assertEquals("inline_events_by_receiver_version", EventStore.versionKey("events_by_receiver"));
+	}
+
+	@Test
+	public void packedEventsAreReadWithLinkedOnes() {
+		List<SMObject> linked = new ArrayList<SMObject>();
+		linked.add(event("4f2a9c", 1L, 1000L));
+		List<SMString> packed = new ArrayList<SMString>();
+		packed.add(new SMString("3|2000|" + INLINE_ID));
+		Map<String, SMValue> relMap = new HashMap<String, SMValue>();
+		relMap.put("events_by_owner", new SMList<SMObject>(linked));
+		relMap.put("inline_events_by_owner", new SMList<SMString>(packed));
+
+		List<SMObject> events = EventStore.getEvents(new SMObject(relMap), "events_by_owner");
+		assertEquals(2, events.size());
+		SMObject inlineEvent = events.get(1);
+		assertEquals(INLINE_ID, ((SMString)inlineEvent.getValue().get("event_id")).getValue());
+		assertEquals(3L, ((SMInt)inlineEvent.getValue().get("type")).getValue().longValue());
+		assertEquals(2000L, ((SMInt)inlineEvent.getValue().get("createddate")).getValue().longValue());
+		assertEquals(2, EventStore.getIds(events).size());
+	}
+
+	@Test
+	public void eventIdsMayContainTheSeparator() {
+		List<SMString> packed = new ArrayList<SMString>();
+		packed.add(new SMString("4|3000|inline.rel1.owner.a|b"));
+		Map<String, SMValue> relMap = new HashMap<String, SMValue>();
+		relMap.put("inline_events_by_owner", new SMList<SMString>(packed));
+
+		List<SMObject> events = EventStore.getEvents(new SMObject(relMap), "events_by_owner");
+		assertEquals("inline.rel1.owner.a|b", ((SMString)events.get(0).getValue().get("event_id")).getValue());
+	}
+
+	@Test
+	public void sidesWithoutEventsAreEmpty() {
+		assertEquals(0, EventStore.getEvents(new SMObject(new HashMap<String, SMValue>()), "events_by_receiver").size());
+	}
+
+	private static SMObject event(String eventId, long type, long createdDate) {
+		Map<String, SMValue> eventMap = new HashMap<String, SMValue>();
+		eventMap.put("event_id", new SMString(eventId));
+		eventMap.put("type", new SMInt(type));
+		eventMap.put("createddate", new SMInt(createdDate));
+		return new SMObject(eventMap);
+	}
+}
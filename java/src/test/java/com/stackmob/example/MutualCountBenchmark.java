@@ -0,0 +1,133 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.lang.Integer;
+import java.lang.String;
+import java.lang.System;
+
+// times the mutual_count of each friend (as get_database adds them) on a synthetic power-law graph (not run by the unit tests)
+// for a hub, a user with many friends and a typical user: SocialGraphIndex.getMutualCounts against intersecting hash sets of friends
+// usage: MutualCountBenchmark [user count] [iterations]
+public class MutualCountBenchmark {
+
+	public static void main(String[] args) {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int[][] friends = SyntheticGraphs.powerLaw(userCount, 42L);
+		int[] users = SyntheticGraphs.byDegree(friends);
+
+		// load every user into the graph index as get_database reads them (the lower user int owns the relationship)
+		SocialGraphIndex graph = SocialGraphIndex.getInstance();
+		for (int user = 0; user < userCount; user++) {
+			List<SMObject> relsByUser = new ArrayList<SMObject>();
+			List<SMObject> relsByOthers = new ArrayList<SMObject>();
+			for (int i = 0; i < friends[user].length; i++) {
+				int friend = friends[user][i];
+				if (user < friend) {
+					relsByUser.add(relationship(user, friend, "receiver", friend));
+				} else {
+					relsByOthers.add(relationship(friend, user, "owner", friend));
+				}
+			}
+			Map<String, SMValue> userMap = new HashMap<String, SMValue>();
+			userMap.put("relationships_by_user", new SMList<SMObject>(relsByUser));
+			userMap.put("relationships_by_others", new SMList<SMObject>(relsByOthers));
+			graph.loadUser(name(user), new SMObject(userMap));
+		}
+		System.out.println(userCount + " users, most friends " + friends[users[0]].length + ", median " + friends[users[userCount / 2]].length);
+
+		String[] names = {"hub", "top 1%", "median"};
+		int[] samples = {users[0], users[userCount / 100], users[userCount / 2]};
+		for (int s = 0; s < samples.length; s++) {
+			String username = name(samples[s]);
+			List<String> others = new ArrayList<String>();
+			for (int i = 0; i < friends[samples[s]].length; i++) {
+				others.add(name(friends[samples[s]][i]));
+			}
+
+			// the counts have to be the same either way
+			int[] counts = graph.getMutualCounts(username, others);
+			int[] setCounts = countWithSets(friends, samples[s]);
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != setCounts[i]) {
+					throw new IllegalStateException("count mismatch for " + others.get(i));
+				}
+			}
+
+			// (each is run as many times before it is timed, for the jit)
+			long bitNanos = 0;
+			long setNanos = 0;
+			for (int i = 0; i < 2 * iterations; i++) {
+				long start = System.nanoTime();
+				graph.getMutualCounts(username, others);
+				long middle = System.nanoTime();
+				countWithSets(friends, samples[s]);
+				long end = System.nanoTime();
+				if (i >= iterations) {
+					bitNanos += middle - start;
+					setNanos += end - middle;
+				}
+			}
+			System.out.println(names[s] + ": " + others.size() + " friends, graph index " + format(bitNanos / iterations)
+					+ ", hash sets " + format(setNanos / iterations));
+		}
+	}
+
+	// mutual friends with each friend by intersecting hash sets of their friends
+	private static int[] countWithSets(int[][] friends, int user) {
+		Set<Integer> userFriends = new HashSet<Integer>();
+		for (int i = 0; i < friends[user].length; i++) {
+			userFriends.add(Integer.valueOf(friends[user][i]));
+		}
+		int[] counts = new int[friends[user].length];
+		for (int i = 0; i < counts.length; i++) {
+			int[] otherFriends = friends[friends[user][i]];
+			for (int j = 0; j < otherFriends.length; j++) {
+				if (userFriends.contains(Integer.valueOf(otherFriends[j]))) {
+					counts[i]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	private static SMObject relationship(int owner, int receiver, String friendKey, int friend) {
+		Map<String, SMValue> relMap = new HashMap<String, SMValue>();
+		relMap.put("relationship_id", new SMString(owner + "-" + receiver));
+		relMap.put("type_by_owner", new SMInt(2L));
+		relMap.put("type_by_receiver", new SMInt(2L));
+		relMap.put(friendKey, new SMString(name(friend)));
+		return new SMObject(relMap);
+	}
+
+	private static String name(int user) {
+		return "user" + user;
+	}
+
+	private static String format(long nanos) {
+		return String.format("%.3f ms", nanos / 1000000.0);
+	}
+}
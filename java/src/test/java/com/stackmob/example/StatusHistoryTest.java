@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.lang.String;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatusHistoryTest {
+
+	@Test
+	public void blocksRoundTrip() throws Exception {
+		StatusHistory.Block block = new StatusHistory.Block();
+		block.add(1000L, "joining:rel1", "home");
+		block.add(61000L, "", "home");
+		block.add(121000L, "joining:rel1", "work");
+		// (a retried status older than the others)
+		block.add(90000L, "", "");
+
+		StatusHistory.Block decoded = decode(block);
+		assertEquals(4, decoded.getSize());
+		long[] dates = {1000L, 61000L, 121000L, 90000L};
+		String[] actions = {"joining:rel1", "", "joining:rel1", ""};
+		String[] places = {"home", "home", "work", ""};
+		for (int i = 0; i < dates.length; i++) {
+			assertEquals(dates[i], decoded.getDate(i));
+			assertEquals(actions[i], decoded.getAction(i));
+			assertEquals(places[i], decoded.getPlace(i));
+		}
+		assertEquals(1000L, decoded.getStartDate());
+		assertEquals(121000L, decoded.getEndDate());
+	}
+
+	@Test
+	public void repeatedValuesShareTheDictionary() throws Exception {
+		StatusHistory.Block block = new StatusHistory.Block();
+		for (int i = 0; i < 10; i++) {
+			block.add(i * 1000L, "joining:rel1", "home");
+		}
+		assertEquals(2, block.dictionary.size());
+		assertEquals(2, decode(block).dictionary.size());
+	}
+
+	@Test
+	public void fullBlocksAndLargeGapsRoundTrip() throws Exception {
+		StatusHistory.Block block = new StatusHistory.Block();
+		long date = 1356998400000L;
+		for (int i = 0; i < StatusHistory.BLOCK_SIZE; i++) {
+			// (gaps from a millisecond to years, growing and shrinking)
+			date += (i % 2 == 0) ? 1L : 100000000000L;
+			block.add(date, "action" + (i % 3), "place" + (i % 5));
+		}
+		StatusHistory.Block decoded = decode(block);
+		assertEquals(StatusHistory.BLOCK_SIZE, decoded.getSize());
+		for (int i = 0; i < StatusHistory.BLOCK_SIZE; i++) {
+			assertEquals(block.getDate(i), decoded.getDate(i));
+			assertEquals(block.getAction(i), decoded.getAction(i));
+			assertEquals(block.getPlace(i), decoded.getPlace(i));
+		}
+	}
+
+	@Test
+	public void emptyBlocksRoundTrip() throws Exception {
+		assertEquals(0, decode(new StatusHistory.Block()).getSize());
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void truncatedDataIsRejected() throws Exception {
+		StatusHistory.Block block = new StatusHistory.Block();
+		for (int i = 0; i < 50; i++) {
+			block.add(i * 7919L, "action" + i, "place" + i);
+		}
+		String data = block.encode();
+		StatusHistory.Block.fromObject(blockObject(block, data.substring(0, data.length() / 2)));
+	}
+
+	@Test
+	public void retriedStatusesAreFound() {
+		StatusHistory.Block block = new StatusHistory.Block();
+		block.add(1000L, "joining:rel1", "home");
+		assertTrue(block.contains(1000L, "joining:rel1", "home"));
+		assertFalse(block.contains(1000L, "joining:rel1", "work"));
+		assertFalse(block.contains(2000L, "joining:rel1", "home"));
+	}
+
+	private static StatusHistory.Block decode(StatusHistory.Block block) throws Exception {
+		return StatusHistory.Block.fromObject(blockObject(block, block.encode()));
+	}
+
+	private static SMObject blockObject(StatusHistory.Block block, String data) {
+		List<SMString> dictionary = new ArrayList<SMString>();
+		for (int i = 0; i < block.dictionary.size(); i++) {
+			dictionary.add(new SMString(block.dictionary.get(i)));
+		}
+		Map<String, SMValue> blockMap = new HashMap<String, SMValue>();
+		blockMap.put("status_history_id", new SMString("block1"));
+		blockMap.put("dictionary", new SMList<SMString>(dictionary));
+		blockMap.put("data", new SMString(data));
+		return new SMObject(blockMap);
+	}
+}
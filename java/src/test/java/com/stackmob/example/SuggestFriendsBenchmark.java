@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.lang.Integer;
+import java.lang.String;
+import java.lang.System;
+
+// times the mutual friend counting of suggest_friends on a synthetic power-law graph (not run by the unit tests)
+// for a hub, a user with many friends and a typical user: the flat counting array (sequential & parallel) against a hash map of counts
+// usage: SuggestFriendsBenchmark [user count] [iterations]
+public class SuggestFriendsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int[][] friends = SyntheticGraphs.powerLaw(userCount, 42L);
+		int[] users = SyntheticGraphs.byDegree(friends);
+		System.out.println(userCount + " users, most friends " + friends[users[0]].length + ", median " + friends[users[userCount / 2]].length);
+
+		String[] names = {"hub", "top 1%", "median"};
+		int[] samples = {users[0], users[userCount / 100], users[userCount / 2]};
+		for (int s = 0; s < samples.length; s++) {
+			int[] userFriends = friends[samples[s]];
+			if (userFriends.length > SuggestFriends.MAX_FRIENDS_VISITED) {
+				userFriends = Arrays.copyOf(userFriends, SuggestFriends.MAX_FRIENDS_VISITED);
+			}
+			int[][] friendsOfFriends = new int[userFriends.length][];
+			long listed = 0;
+			for (int i = 0; i < userFriends.length; i++) {
+				friendsOfFriends[i] = friends[userFriends[i]];
+				listed += friendsOfFriends[i].length;
+			}
+
+			// the counts have to be the same either way
+			int[] counts = SuggestFriends.countMutualFriends(friendsOfFriends, userCount);
+			Map<Integer, Integer> mapCounts = countWithMap(friendsOfFriends);
+			for (int user = 0; user < userCount; user++) {
+				Integer mapCount = mapCounts.get(Integer.valueOf(user));
+				if (counts[user] != (mapCount == null ? 0 : mapCount.intValue())) {
+					throw new IllegalStateException("count mismatch for user " + user);
+				}
+			}
+
+			// (each is run as many times before it is timed, for the jit)
+			long arrayNanos = 0;
+			long mapNanos = 0;
+			for (int i = 0; i < 2 * iterations; i++) {
+				long start = System.nanoTime();
+				SuggestFriends.countMutualFriends(friendsOfFriends, userCount);
+				long middle = System.nanoTime();
+				countWithMap(friendsOfFriends);
+				long end = System.nanoTime();
+				if (i >= iterations) {
+					arrayNanos += middle - start;
+					mapNanos += end - middle;
+				}
+			}
+			System.out.println(names[s] + ": " + userFriends.length + " friends, " + listed + " friends of friends, "
+					+ (friendsOfFriends.length > SuggestFriends.PARALLEL_THRESHOLD ? "parallel" : "sequential") + " array "
+					+ format(arrayNanos / iterations) + ", hash map " + format(mapNanos / iterations));
+		}
+	}
+
+	private static Map<Integer, Integer> countWithMap(int[][] friendsOfFriends) {
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int i = 0; i < friendsOfFriends.length; i++) {
+			for (int j = 0; j < friendsOfFriends[i].length; j++) {
+				Integer other = Integer.valueOf(friendsOfFriends[i][j]);
+				Integer count = counts.get(other);
+				counts.put(other, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+		return counts;
+	}
+
+	private static String format(long nanos) {
+		return String.format("%.3f ms", nanos / 1000000.0);
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// synthetic social graphs for the benchmarks
+// friendships follow a power law like real ones: each new user befriends EDGES_PER_USER users picked in proportion to their friend count
+// (preferential attachment), so a few users have very many friends and most have few
+public class SyntheticGraphs {
+
+	public static final int EDGES_PER_USER = 8;
+
+	private SyntheticGraphs() {
+	}
+
+	// sorted friend lists of userCount users (user ints 0 to userCount - 1)
+	public static int[][] powerLaw(int userCount, long seed) {
+		Random random = new Random(seed);
+		// both ends of every friendship so far, a uniform pick is a pick in proportion to the friend count
+		int[] ends = new int[userCount * EDGES_PER_USER * 2];
+		int endCount = 0;
+		int[] degrees = new int[userCount];
+		int[][] friends = new int[userCount][];
+		for (int user = 0; user < userCount; user++) {
+			friends[user] = new int[EDGES_PER_USER];
+		}
+		for (int user = 1; user < userCount; user++) {
+			int edges = Math.min(EDGES_PER_USER, user);
+			int[] picked = new int[edges];
+			int pickedCount = 0;
+			while (pickedCount < edges) {
+				int other = endCount == 0 ? 0 : ends[random.nextInt(endCount)];
+				// (a random user now and then, otherwise the first users get every friendship)
+				if (random.nextInt(10) == 0) {
+					other = random.nextInt(user);
+				}
+				boolean duplicate = false;
+				for (int i = 0; i < pickedCount; i++) {
+					duplicate |= picked[i] == other;
+				}
+				if (!duplicate) {
+					picked[pickedCount++] = other;
+				}
+			}
+			for (int i = 0; i < edges; i++) {
+				add(friends, degrees, user, picked[i]);
+				add(friends, degrees, picked[i], user);
+				ends[endCount++] = user;
+				ends[endCount++] = picked[i];
+			}
+		}
+		for (int user = 0; user < userCount; user++) {
+			friends[user] = Arrays.copyOf(friends[user], degrees[user]);
+			Arrays.sort(friends[user]);
+		}
+		return friends;
+	}
+
+	// the users sorted by friend count, most friends first
+	public static int[] byDegree(int[][] friends) {
+		long[] keyed = new long[friends.length];
+		for (int user = 0; user < friends.length; user++) {
+			keyed[user] = ((long)(Integer.MAX_VALUE - friends[user].length) << 32) | user;
+		}
+		Arrays.sort(keyed);
+		int[] users = new int[friends.length];
+		for (int i = 0; i < keyed.length; i++) {
+			users[i] = (int)keyed[i];
+		}
+		return users;
+	}
+
+	private static void add(int[][] friends, int[] degrees, int user, int friend) {
+		if (degrees[user] == friends[user].length) {
+			friends[user] = Arrays.copyOf(friends[user], friends[user].length * 2);
+		}
+		friends[user][degrees[user]++] = friend;
+	}
+}
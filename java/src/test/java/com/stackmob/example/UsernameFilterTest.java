@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.example;
+
+import java.util.Map;
+import java.lang.Boolean;
+import java.lang.Double;
+import java.lang.Long;
+import java.lang.String;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsernameFilterTest {
+
+	@Test
+	public void everythingMightBeAUserBeforeTheFirstBuild() {
+		UsernameFilter usernameFilter = new UsernameFilter();
+		assertFalse(usernameFilter.isReady());
+		assertTrue(usernameFilter.mightContain("anyone"));
+		// (users added before the first build are left to the build)
+		usernameFilter.add("alice");
+		assertEquals(0L, usernameFilter.getNegativeCount());
+	}
+
+	@Test
+	public void usersAreNeverMissed() {
+		UsernameFilter usernameFilter = build(10000);
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(usernameFilter.mightContain("user" + i));
+		}
+		assertEquals(0L, usernameFilter.getNegativeCount());
+	}
+
+	@Test
+	public void falsePositivesAreAboutOnePercent() {
+		UsernameFilter usernameFilter = build(10000);
+		int positiveCount = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (usernameFilter.mightContain("contact" + i + "@example.com")) {
+				positiveCount++;
+			}
+		}
+		assertEquals(0.01, positiveCount / 100000.0, 0.005);
+		assertEquals(0.01, usernameFilter.getExpectedFalsePositiveRate(), 0.005);
+		assertEquals(100000L - positiveCount, usernameFilter.getNegativeCount());
+	}
+
+	@Test
+	public void addedUsersSurviveTheNextBuild() {
+		UsernameFilter usernameFilter = build(100);
+		assertFalse(usernameFilter.mightContain("dave"));
+		usernameFilter.add("dave");
+		assertTrue(usernameFilter.mightContain("dave"));
+		// (the rebuild read the users before dave was added)
+		usernameFilter.rebuild(hashes(100));
+		assertTrue(usernameFilter.mightContain("dave"));
+		// but it's only kept until the build after that
+		usernameFilter.rebuild(hashes(100));
+		assertFalse(usernameFilter.mightContain("dave"));
+	}
+
+	@Test
+	public void statsReportTheObservedRate() {
+		UsernameFilter usernameFilter = build(100);
+		for (int i = 0; i < 3; i++) {
+			assertFalse(usernameFilter.mightContain("nobody" + i));
+		}
+		usernameFilter.addFalsePositives(1L);
+		usernameFilter.addMissedUsers(2L);
+		assertEquals(0.25, usernameFilter.getFalsePositiveRate(), 0.0);
+		Map<String, Object> stats = usernameFilter.getStats();
+		assertEquals(Boolean.TRUE, stats.get("ready"));
+		assertEquals(Long.valueOf(100L), stats.get("user_count"));
+		assertEquals(Long.valueOf(3L), stats.get("negative_count"));
+		assertEquals(Long.valueOf(1L), stats.get("false_positive_count"));
+		assertEquals(0.25, ((Double)stats.get("false_positive_rate")).doubleValue(), 0.0);
+		assertEquals(Long.valueOf(2L), stats.get("missed_user_count"));
+	}
+
+	private static UsernameFilter build(int count) {
+		UsernameFilter usernameFilter = new UsernameFilter();
+		usernameFilter.rebuild(hashes(count));
+		return usernameFilter;
+	}
+
+	private static long[] hashes(int count) {
+		long[] hashes = new long[count];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = UsernameFilter.hash("user" + i);
+		}
+		return hashes;
+	}
+}